@@ -0,0 +1,55 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+
+/**
+ * Measure the throughput and latency of bundle and framework event delivery.
+ *
+ * The time covers the synchronous listeners and the hand off to the asynchronous ones.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 29-Oct-2012
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BundleEventBenchmark {
+
+    @Benchmark
+    public void fireBundleEvent(EventBenchmarkState state) {
+        state.eventsPlugin.fireBundleEvent(state.systemBundle, BundleEvent.STARTED);
+    }
+
+    @Benchmark
+    public void fireFrameworkEvent(EventBenchmarkState state) {
+        state.eventsPlugin.fireFrameworkEvent(state.systemBundle, FrameworkEvent.INFO, null);
+    }
+}
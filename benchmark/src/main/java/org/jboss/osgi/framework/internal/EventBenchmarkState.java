@@ -0,0 +1,263 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.osgi.framework.AsynchronousServiceListener;
+import org.jboss.osgi.spi.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.hooks.service.EventHook;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * A framework with a number of bundles and event listeners.
+ *
+ * Every bundle registers the same number of bundle, service and framework listeners. The service listeners
+ * use no filter, an objectClass filter or an objectClass and property filter. Half of the objectClass filters
+ * refer to a class that is never registered. The listeners are synchronous, asynchronous or a mix of both.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 29-Oct-2012
+ */
+@State(Scope.Benchmark)
+public class EventBenchmarkState {
+
+    static final String SERVICE_CLASS = BenchmarkService.class.getName();
+    static final String OTHER_CLASS = "org.jboss.osgi.framework.benchmark.OtherService";
+
+    @Param({ "10", "100" })
+    int bundles;
+
+    @Param({ "10", "100" })
+    int listeners;
+
+    @Param({ "none", "objectClass", "property" })
+    String filter;
+
+    @Param({ "false", "true" })
+    boolean hooks;
+
+    @Param({ "sync", "async", "mixed" })
+    String delivery;
+
+    Framework framework;
+    BundleContext systemContext;
+    AbstractBundleState systemBundle;
+    FrameworkEventsPlugin eventsPlugin;
+    ServiceRegistration registration;
+    ServiceReference reference;
+    ServiceState serviceState;
+    Hashtable<String, Object> propsA;
+    Hashtable<String, Object> propsB;
+
+    private final List<Bundle> installed = new ArrayList<Bundle>();
+    private final DrainListener drainListener = new DrainListener();
+    private final List<ServiceRegistration> hookRegistrations = new ArrayList<ServiceRegistration>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Constants.FRAMEWORK_STORAGE, new File("target/osgi-store").getAbsolutePath());
+        props.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        framework = new FrameworkBuilder(props).createFramework();
+        framework.start();
+
+        systemContext = framework.getBundleContext();
+        AbstractBundleContext context = AbstractBundleContext.assertBundleContext(systemContext);
+        systemBundle = context.getBundleState();
+        eventsPlugin = context.getFrameworkState().getFrameworkEventsPlugin();
+
+        for (int i = 0; i < bundles; i++) {
+            Bundle bundle = systemContext.installBundle("benchmark-bundle-" + i, getBundleStream("benchmark-bundle-" + i));
+            bundle.start();
+            installed.add(bundle);
+        }
+        for (Bundle bundle : installed) {
+            BundleContext bundleContext = bundle.getBundleContext();
+            for (int i = 0; i < listeners; i++) {
+                boolean async = "async".equals(delivery) || ("mixed".equals(delivery) && i % 2 == 1);
+                bundleContext.addServiceListener(async ? new AsyncServiceListener() : new SyncServiceListener(), getFilter(i));
+                bundleContext.addBundleListener(async ? new AsyncBundleListener() : new SyncBundleListener());
+                bundleContext.addFrameworkListener(new CountingFrameworkListener());
+            }
+        }
+        systemContext.addFrameworkListener(drainListener);
+        if (hooks) {
+            hookRegistrations.add(systemContext.registerService(EventHook.class.getName(), new NoopEventHook(), null));
+        }
+
+        propsA = new Hashtable<String, Object>();
+        propsA.put("rank", Integer.valueOf(10));
+        propsB = new Hashtable<String, Object>();
+        propsB.put("rank", Integer.valueOf(0));
+        registration = systemContext.registerService(SERVICE_CLASS, new BenchmarkService(), propsA);
+        reference = registration.getReference();
+        serviceState = ServiceState.assertServiceState(reference);
+    }
+
+    /**
+     * Wait for the queued framework events, which are not bounded, so that they do not pile up between iterations
+     */
+    @TearDown(Level.Iteration)
+    public void awaitFrameworkEvents() throws InterruptedException {
+        Throwable marker = new Throwable("marker");
+        CountDownLatch latch = drainListener.expect(marker);
+        eventsPlugin.fireFrameworkEvent(systemBundle, FrameworkEvent.INFO, marker);
+        latch.await(60, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registration.unregister();
+        for (ServiceRegistration reg : hookRegistrations) {
+            reg.unregister();
+        }
+        for (Bundle bundle : installed) {
+            bundle.uninstall();
+        }
+        framework.stop();
+        framework.waitForStop(10000);
+    }
+
+    private String getFilter(int index) {
+        String className = index % 2 == 0 ? SERVICE_CLASS : OTHER_CLASS;
+        if ("objectClass".equals(filter))
+            return "(objectClass=" + className + ")";
+        if ("property".equals(filter))
+            return "(&(objectClass=" + className + ")(rank>=" + (index % 10) + "))";
+        return null;
+    }
+
+    private static InputStream getBundleStream(String name) {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(archive.getName());
+                builder.addBundleVersion("1.0.0");
+                return builder.openStream();
+            }
+        });
+        return archive.as(ZipExporter.class).exportAsInputStream();
+    }
+
+    /**
+     * The service that is registered by the benchmarks
+     */
+    public static class BenchmarkService {
+    }
+
+    static class SyncServiceListener implements ServiceListener {
+        int count;
+
+        public void serviceChanged(ServiceEvent event) {
+            count++;
+        }
+    }
+
+    static class AsyncServiceListener implements AsynchronousServiceListener {
+        int count;
+
+        public void serviceChanged(ServiceEvent event) {
+            count++;
+        }
+    }
+
+    static class SyncBundleListener implements SynchronousBundleListener {
+        int count;
+
+        public void bundleChanged(BundleEvent event) {
+            count++;
+        }
+    }
+
+    static class AsyncBundleListener implements BundleListener {
+        int count;
+
+        public void bundleChanged(BundleEvent event) {
+            count++;
+        }
+    }
+
+    static class CountingFrameworkListener implements FrameworkListener {
+        int count;
+
+        public void frameworkEvent(FrameworkEvent event) {
+            count++;
+        }
+    }
+
+    static class DrainListener implements FrameworkListener {
+        private volatile Throwable marker;
+        private volatile CountDownLatch latch;
+
+        CountDownLatch expect(Throwable marker) {
+            this.latch = new CountDownLatch(1);
+            this.marker = marker;
+            return latch;
+        }
+
+        public void frameworkEvent(FrameworkEvent event) {
+            if (event.getThrowable() != null && event.getThrowable() == marker)
+                latch.countDown();
+        }
+    }
+
+    static class NoopEventHook implements EventHook {
+        @SuppressWarnings("rawtypes")
+        public void event(ServiceEvent event, Collection contexts) {
+        }
+    }
+}
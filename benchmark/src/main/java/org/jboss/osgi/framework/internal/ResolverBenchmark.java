@@ -0,0 +1,53 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.service.resolver.ResolutionException;
+
+/**
+ * Measure the time to resolve a bundle that imports two packages as the number of installed bundles grows.
+ *
+ * The result is not applied, so that every invocation resolves the same importer. With the incremental
+ * resolve context the time should stay flat, because the unresolved providers are not explored.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResolverBenchmark {
+
+    @Benchmark
+    public Map<Resource, List<Wire>> resolveImporter(ResolverBenchmarkState state) throws ResolutionException {
+        return state.resolverPlugin.resolve(state.createResolveContext());
+    }
+}
@@ -0,0 +1,143 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.resolver.XBundle;
+import org.jboss.osgi.resolver.XBundleRevision;
+import org.jboss.osgi.resolver.XEnvironment;
+import org.jboss.osgi.spi.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * A framework with a growing number of installed bundles and one unresolved importer.
+ *
+ * The bundles export one of ten packages. Every other bundle also imports a package that nobody exports,
+ * so that half of them stay unresolved and compete as providers. The importer imports two of the packages.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+@State(Scope.Benchmark)
+public class ResolverBenchmarkState {
+
+    static final int PACKAGES = 10;
+    static final String PACKAGE_PREFIX = "org.jboss.osgi.framework.benchmark.pkg";
+
+    @Param({ "10", "100", "1000" })
+    int bundles;
+
+    @Param({ "false", "true" })
+    boolean incremental;
+
+    Framework framework;
+    ResolverPlugin resolverPlugin;
+    XEnvironment environment;
+    XBundleRevision importer;
+
+    private final List<Bundle> installed = new ArrayList<Bundle>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Constants.FRAMEWORK_STORAGE, new File("target/osgi-store").getAbsolutePath());
+        props.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        props.put(org.jboss.osgi.framework.Constants.PROPERTY_RESOLVER_INCREMENTAL, Boolean.toString(incremental));
+        framework = new FrameworkBuilder(props).createFramework();
+        framework.start();
+
+        BundleContext systemContext = framework.getBundleContext();
+        FrameworkState frameworkState = AbstractBundleContext.assertBundleContext(systemContext).getFrameworkState();
+        resolverPlugin = frameworkState.getResolverPlugin();
+        environment = frameworkState.getEnvironment();
+
+        for (int i = 0; i < bundles; i++) {
+            String name = "resolver-bundle-" + i;
+            String missing = i % 2 == 1 ? PACKAGE_PREFIX + ".missing" : null;
+            installed.add(systemContext.installBundle(name, getBundleStream(name, PACKAGE_PREFIX + (i % PACKAGES), missing)));
+        }
+        PackageAdmin packageAdmin = (PackageAdmin) systemContext.getService(systemContext.getServiceReference(PackageAdmin.class.getName()));
+        packageAdmin.resolveBundles(null);
+
+        String imports = PACKAGE_PREFIX + "0," + PACKAGE_PREFIX + "1";
+        Bundle bundle = systemContext.installBundle("resolver-importer", getBundleStream("resolver-importer", null, imports));
+        installed.add(bundle);
+        importer = ((XBundle) bundle).getBundleRevision();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (Bundle bundle : installed) {
+            bundle.uninstall();
+        }
+        framework.stop();
+        framework.waitForStop(10000);
+    }
+
+    /**
+     * Create the context that resolves the importer, without applying the result
+     */
+    ResolveContext createResolveContext() {
+        ResolveContext context = resolverPlugin.createResolveContext(environment, Collections.singleton(importer), null);
+        return incremental ? new IncrementalResolveContext(context) : context;
+    }
+
+    private static InputStream getBundleStream(final String name, final String exports, final String imports) {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(name);
+                builder.addBundleVersion("1.0.0");
+                if (exports != null)
+                    builder.addExportPackages(exports);
+                if (imports != null)
+                    builder.addImportPackages(imports.split(","));
+                return builder.openStream();
+            }
+        });
+        return archive.as(ZipExporter.class).exportAsInputStream();
+    }
+}
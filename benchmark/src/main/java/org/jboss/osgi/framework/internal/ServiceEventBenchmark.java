@@ -0,0 +1,79 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Measure the throughput and latency of service event delivery
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 29-Oct-2012
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServiceEventBenchmark {
+
+    /**
+     * Deliver a MODIFIED event for an unchanged service
+     */
+    @Benchmark
+    public void fireServiceEvent(EventBenchmarkState state) {
+        state.eventsPlugin.fireServiceEvent(state.systemBundle, ServiceEvent.MODIFIED, state.serviceState);
+    }
+
+    /**
+     * Register and unregister a service, which delivers a REGISTERED and an UNREGISTERING event
+     */
+    @Benchmark
+    public void registerUnregister(EventBenchmarkState state) {
+        ServiceRegistration reg = state.systemContext.registerService(EventBenchmarkState.SERVICE_CLASS, new EventBenchmarkState.BenchmarkService(), state.propsA);
+        reg.unregister();
+    }
+
+    /**
+     * Modify the service properties back and forth, which delivers MODIFIED and MODIFIED_ENDMATCH events
+     */
+    @Benchmark
+    public void modifyProperties(EventBenchmarkState state) {
+        state.registration.setProperties(state.propsB);
+        state.registration.setProperties(state.propsA);
+    }
+
+    /**
+     * Get and unget the service, which delivers no events
+     */
+    @Benchmark
+    public Object getUngetService(EventBenchmarkState state) {
+        Object service = state.systemContext.getService(state.reference);
+        state.systemContext.ungetService(state.reference);
+        return service;
+    }
+}
@@ -0,0 +1,44 @@
+package org.jboss.osgi.framework;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import org.osgi.framework.ServiceListener;
+
+/**
+ * A {@link ServiceListener} that is called asynchronously.
+ *
+ * Service events are matched against the listener's filter when they are fired, but delivered on a
+ * framework thread. The events for a given listener are delivered one at a time and in the order they
+ * were fired. By the time an event arrives, the service may already have been modified or unregistered.
+ *
+ * No service event is lost. If a listener falls behind by more than
+ * {@link Constants#PROPERTY_SERVICE_EVENT_QUEUE_CAPACITY} events, firing a further event waits until
+ * the listener has caught up.
+ *
+ * The listener is called synchronously when the framework property
+ * {@link Constants#PROPERTY_SERVICE_EVENT_ASYNC} is set to false.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 27-Oct-2012
+ */
+public interface AsynchronousServiceListener extends ServiceListener {
+}
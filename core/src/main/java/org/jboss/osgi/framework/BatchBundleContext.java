@@ -0,0 +1,86 @@
+package org.jboss.osgi.framework;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.Dictionary;
+import java.util.List;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * A {@link BundleContext} that can register many services at once.
+ *
+ * Every {@link BundleContext} provided by the framework implements this interface.
+ *
+ * <pre>
+ * if (context instanceof BatchBundleContext) {
+ *     ServiceBatch batch = ((BatchBundleContext) context).createServiceBatch();
+ *     batch.addService(Foo.class.getName(), foo, null);
+ *     batch.addService(Bar.class.getName(), bar, props);
+ *     List&lt;ServiceRegistration&lt;?&gt;&gt; registrations = batch.register();
+ * }
+ * </pre>
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 24-Oct-2012
+ */
+public interface BatchBundleContext extends BundleContext {
+
+    /**
+     * Create a new empty batch of services
+     */
+    ServiceBatch createServiceBatch();
+
+    /**
+     * A batch of services that is registered in a single modification of the service registry.
+     *
+     * All services are validated before any of them is registered. They become visible together and a
+     * {@link ServiceEvent#REGISTERED} event is delivered for each of them afterwards, in the order they were added.
+     */
+    interface ServiceBatch {
+
+        /**
+         * Add a service to the batch
+         *
+         * @see BundleContext#registerService(String[], Object, Dictionary)
+         */
+        ServiceBatch addService(String[] classNames, Object service, Dictionary<String, ?> properties);
+
+        /**
+         * Add a service to the batch
+         *
+         * @see BundleContext#registerService(String, Object, Dictionary)
+         */
+        ServiceBatch addService(String className, Object service, Dictionary<String, ?> properties);
+
+        /**
+         * Register the services of this batch.
+         *
+         * @return The registrations in the order the services were added
+         * @throws IllegalStateException If the batch has already been registered or the context is no longer valid
+         * @throws IllegalArgumentException If any of the services is invalid, in which case no service is registered
+         */
+        List<ServiceRegistration> register();
+    }
+}
@@ -48,9 +48,87 @@ public interface Constants extends org.osgi.framework.Constants {
     /** A list of URLs to bundles that get installed and started on framework startup */
     String PROPERTY_AUTO_START_URLS = "org.jboss.osgi.auto.start";
 
+    /** A comma separated list of service property keys that are indexed for filter based service lookups */
+    String PROPERTY_SERVICE_INDEX_KEYS = "org.jboss.osgi.framework.service.index.keys";
+
+    /** If true, the framework collects service registry statistics */
+    String PROPERTY_SERVICE_STATISTICS = "org.jboss.osgi.framework.service.statistics";
+
+    /** If true, the service registry statistics are also registered with the platform MBeanServer */
+    String PROPERTY_SERVICE_STATISTICS_JMX = "org.jboss.osgi.framework.service.statistics.jmx";
+
+    /** If true, the lock statistics are registered with the platform MBeanServer */
+    String PROPERTY_LOCK_STATISTICS_JMX = "org.jboss.osgi.framework.lock.statistics.jmx";
+
+    /** The time in milliseconds that a batch of resolve requests waits for concurrent requests to join, 0 by default */
+    String PROPERTY_RESOLVER_BATCH_WINDOW = "org.jboss.osgi.framework.resolver.batch.window";
+
+    /** If true, the resolver prefers the providers that are already resolved and only falls back to all providers on failure */
+    String PROPERTY_RESOLVER_INCREMENTAL = "org.jboss.osgi.framework.resolver.incremental";
+
+    /** The maximum number of threads that deliver asynchronous bundle events */
+    String PROPERTY_BUNDLE_EVENT_THREADS = "org.jboss.osgi.framework.bundle.event.threads";
+
+    /** The maximum number of asynchronous bundle events that are queued for a single listener */
+    String PROPERTY_BUNDLE_EVENT_QUEUE_CAPACITY = "org.jboss.osgi.framework.bundle.event.queue.capacity";
+
+    /** If true, the asynchronous events of a framework operation like a package refresh are delivered as a batch */
+    String PROPERTY_EVENT_BATCHING = "org.jboss.osgi.framework.event.batching";
+
+    /** The time in milliseconds after which a listener callback is reported as slow, 0 disables the reporting */
+    String PROPERTY_SLOW_LISTENER_THRESHOLD = "org.jboss.osgi.framework.listener.slow.threshold";
+
+    /** The kind of executor that runs asynchronous framework work, see the EXECUTOR_* values */
+    String PROPERTY_FRAMEWORK_EXECUTOR = "org.jboss.osgi.framework.executor";
+
+    /** The number of threads of a shared framework executor, by default the sum of the maximum threads of the executors that share it */
+    String PROPERTY_FRAMEWORK_EXECUTOR_THREADS = "org.jboss.osgi.framework.executor.threads";
+
+    /** Every framework component uses its own threads. This is the default */
+    String EXECUTOR_DEDICATED = "dedicated";
+
+    /** The framework components share a bounded thread pool */
+    String EXECUTOR_SHARED = "shared";
+
+    /** The framework components share a ForkJoinPool, if available */
+    String EXECUTOR_FORKJOIN = "forkjoin";
+
+    /** Every task runs on a new virtual thread, if available */
+    String EXECUTOR_VIRTUAL = "virtual";
+
+    /** If false, an {@link AsynchronousServiceListener} is called synchronously like any other service listener */
+    String PROPERTY_SERVICE_EVENT_ASYNC = "org.jboss.osgi.framework.service.event.async";
+
+    /** The maximum number of threads that deliver service events to asynchronous service listeners */
+    String PROPERTY_SERVICE_EVENT_THREADS = "org.jboss.osgi.framework.service.event.threads";
+
+    /** The maximum number of service events that are queued for a single asynchronous service listener */
+    String PROPERTY_SERVICE_EVENT_QUEUE_CAPACITY = "org.jboss.osgi.framework.service.event.queue.capacity";
+
     /** The default timeout for the framework to initialize is 5sec */
     int DEFAULT_FRAMEWORK_INIT_TIMEOUT = 5000;
 
     /** The default timeout for the framework to start is 10sec */
     int DEFAULT_FRAMEWORK_START_TIMEOUT = 10000;
+
+    /** The default number of bundle event threads is 4 */
+    int DEFAULT_BUNDLE_EVENT_THREADS = 4;
+
+    /** The default bundle event queue capacity is 1000 events per listener */
+    int DEFAULT_BUNDLE_EVENT_QUEUE_CAPACITY = 1000;
+
+    /** By default slow listeners are not reported */
+    long DEFAULT_SLOW_LISTENER_THRESHOLD = 0;
+
+    /** By default the number of shared framework executor threads is sized from the executors that share it */
+    int DEFAULT_FRAMEWORK_EXECUTOR_THREADS = 0;
+
+    /** The default number of service event threads is 4 */
+    int DEFAULT_SERVICE_EVENT_THREADS = 4;
+
+    /** The default service event queue capacity is 1000 events per listener */
+    int DEFAULT_SERVICE_EVENT_QUEUE_CAPACITY = 1000;
+
+    /** The service property keys that are indexed by default */
+    String DEFAULT_SERVICE_INDEX_KEYS = Constants.SERVICE_PID;
 }
\ No newline at end of file
@@ -0,0 +1,62 @@
+package org.jboss.osgi.framework;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import org.jboss.msc.service.Service;
+
+/**
+ * A plugin that provides the executors for asynchronous framework work, like the delivery of
+ * asynchronous events, start level changes and package refreshes.
+ *
+ * The default implementation is configured with {@link Constants#PROPERTY_FRAMEWORK_EXECUTOR}.
+ * An integration may replace it, for example to run this work on container managed threads.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 28-Oct-2012
+ */
+public interface ExecutorServicePlugin extends Service<ExecutorServicePlugin> {
+
+    /**
+     * Create an executor for a framework component.
+     *
+     * The tasks are started in submission order and at most maxThreads of them run at the same time.
+     * The component that creates the executor also shuts it down.
+     *
+     * @param name The name of the executor, which is also used to name dedicated threads
+     * @param maxThreads The maximum number of tasks that run at the same time
+     */
+    ExecutorService createExecutorService(String name, int maxThreads);
+
+    /**
+     * Get the number of queued tasks by executor name
+     */
+    Map<String, Integer> getQueueSizes();
+
+    /**
+     * Get the fraction of busy threads by executor name
+     */
+    Map<String, Double> getUtilization();
+}
@@ -56,6 +56,9 @@ public interface IntegrationService<T> extends Service<T> {
     /** The service name for the {@link BundleInstallPlugin} */
     ServiceName BUNDLE_INSTALL_PLUGIN = INTEGRATION_BASE_NAME.append("BundleInstallPlugin");
 
+    /** The service name for the {@link ExecutorServicePlugin} */
+    ServiceName EXECUTOR_SERVICE_PLUGIN = INTEGRATION_BASE_NAME.append("ExecutorServicePlugin");
+
     /** The service name for the {@link FrameworkModulePlugin} */
     ServiceName FRAMEWORK_MODULE_PLUGIN = INTEGRATION_BASE_NAME.append("FrameworkModulePlugin");
 
@@ -0,0 +1,92 @@
+package org.jboss.osgi.framework;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.Map;
+
+import org.jboss.osgi.framework.ServiceStatistics.LatencyHistogram;
+
+/**
+ * Contention statistics of the framework locks and the bundle locks.
+ *
+ * The statistics are always collected. The system bundle registers this service and with
+ * {@link Constants#PROPERTY_LOCK_STATISTICS_JMX} it is also registered as an MXBean with the name {@link #OBJECT_NAME}.
+ *
+ * The framework locks are named "framework" and "environment".
+ * The bundle locks are named "bundle.&lt;operation&gt;" for the times and by bundle for the current states.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public interface LockStatistics {
+
+    /** The object name of the MXBean */
+    String OBJECT_NAME = "jboss.osgi:service=LockStatistics";
+
+    /**
+     * Get the wait and hold times of the locks that have been used, by lock name
+     */
+    Map<String, LockTime> getLockTimes();
+
+    /**
+     * Get the locks that are currently held or waited for, by lock name
+     */
+    Map<String, LockState> getLockStates();
+
+    /**
+     * Reset the lock times
+     */
+    void reset();
+
+    /**
+     * The accumulated wait and hold times of a lock.
+     *
+     * The wait time includes acquisitions that timed out. For a framework lock that is only held in shared mode
+     * the hold time is recorded by the items below it.
+     */
+    interface LockTime {
+
+        LatencyHistogram getWaitTime();
+
+        LatencyHistogram getHoldTime();
+
+        long getTimeoutCount();
+    }
+
+    /**
+     * The current state of a lock
+     */
+    interface LockState {
+
+        /** The name of the thread that holds the lock exclusively or null */
+        String getOwner();
+
+        /** The operation of the current owner */
+        String getOperation();
+
+        /** The number of shared holds */
+        int getSharedCount();
+
+        /** The estimated number of threads that wait for the lock */
+        int getQueueLength();
+    }
+}
@@ -0,0 +1,154 @@
+package org.jboss.osgi.framework;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.Map;
+
+/**
+ * Statistics of the service registry and event delivery.
+ *
+ * The statistics are collected when the framework property {@link Constants#PROPERTY_SERVICE_STATISTICS} is set to true.
+ * In that case the system bundle registers this service. With {@link Constants#PROPERTY_SERVICE_STATISTICS_JMX} it is
+ * also registered as an MXBean with the name {@link #OBJECT_NAME}.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 25-Oct-2012
+ */
+public interface ServiceStatistics {
+
+    /** The object name of the MXBean */
+    String OBJECT_NAME = "jboss.osgi:service=ServiceStatistics";
+
+    /**
+     * Get the number of service lookups by objectClass.
+     * Lookups without a class name are counted under "*".
+     */
+    Map<String, Long> getLookupCounts();
+
+    /**
+     * Get the number of services that have been evaluated against a lookup filter
+     */
+    long getFilterEvaluations();
+
+    /**
+     * Get the number of services that have been examined by lookups
+     */
+    long getCandidatesExamined();
+
+    /**
+     * Get the number of services that have been returned by lookups
+     */
+    long getCandidatesReturned();
+
+    /**
+     * Get the duration of service lookups, including the find hooks
+     */
+    LatencyHistogram getLookupTime();
+
+    /**
+     * Get the duration of find hook processing
+     */
+    LatencyHistogram getFindHookTime();
+
+    /**
+     * Get the duration of event hook processing
+     */
+    LatencyHistogram getEventHookTime();
+
+    /**
+     * Get the duration of service listener callbacks
+     */
+    LatencyHistogram getListenerDispatchTime();
+
+    /**
+     * Get the number of asynchronous events that are queued for delivery
+     */
+    long getAsyncEventQueueDepth();
+
+    /**
+     * Get the highest number of asynchronous events that were queued for delivery
+     */
+    long getMaxAsyncEventQueueDepth();
+
+    /**
+     * Get the duration of asynchronous listener callbacks
+     */
+    LatencyHistogram getAsyncListenerDispatchTime();
+
+    /**
+     * Get the callback times of the bundle, service and framework listeners by the bundle that registered them
+     */
+    Map<String, ListenerTime> getListenerTimesByBundle();
+
+    /**
+     * Get the callback times of the bundle, service and framework listeners by listener class
+     */
+    Map<String, ListenerTime> getListenerTimesByListener();
+
+    /**
+     * Get the number of queued tasks of the framework executors by name
+     */
+    Map<String, Integer> getExecutorQueueSizes();
+
+    /**
+     * Get the fraction of busy threads of the framework executors by name
+     */
+    Map<String, Double> getExecutorUtilization();
+
+    /**
+     * Reset all statistics
+     */
+    void reset();
+
+    /**
+     * A snapshot of recorded durations.
+     *
+     * Bucket zero counts the durations below one microsecond. Bucket i counts the durations of at least 2^(i-1)
+     * and below 2^i microseconds. The last bucket also counts all longer durations.
+     */
+    interface LatencyHistogram {
+
+        long getCount();
+
+        long getTotalNanos();
+
+        long getMaxNanos();
+
+        long[] getBuckets();
+    }
+
+    /**
+     * The accumulated callback times of a group of listeners.
+     *
+     * A callback is slow if it exceeds {@link Constants#PROPERTY_SLOW_LISTENER_THRESHOLD}.
+     */
+    interface ListenerTime {
+
+        long getCount();
+
+        long getTotalNanos();
+
+        long getMaxNanos();
+
+        long getSlowCount();
+    }
+}
@@ -36,6 +36,7 @@ import org.jboss.msc.service.ServiceContainer;
 import org.jboss.msc.service.ServiceController;
 import org.jboss.msc.service.ServiceName;
 import org.jboss.osgi.deployment.deployer.Deployment;
+import org.jboss.osgi.framework.BatchBundleContext;
 import org.jboss.osgi.framework.BundleInstallPlugin;
 import org.jboss.osgi.framework.FutureServiceValue;
 import org.jboss.osgi.vfs.AbstractVFS;
@@ -59,7 +60,7 @@ import org.osgi.framework.ServiceRegistration;
  * @author thomas.diesler@jboss.com
  * @since 29-Jun-2010
  */
-abstract class AbstractBundleContext implements BundleContext {
+abstract class AbstractBundleContext implements BatchBundleContext {
 
     private final AbstractBundleState bundleState;
     private boolean destroyed;
@@ -310,6 +311,12 @@ abstract class AbstractBundleContext implements BundleContext {
         return serviceState.getRegistration();
     }
 
+    @Override
+    public ServiceBatch createServiceBatch() {
+        checkValidBundleContext();
+        return new ServiceBatchImpl();
+    }
+
     @Override
     public ServiceReference getServiceReference(String className) {
         if (className == null)
@@ -400,4 +407,43 @@ abstract class AbstractBundleContext implements BundleContext {
     public String toString() {
         return "BundleContext[" + bundleState + "]";
     }
+
+    private class ServiceBatchImpl implements ServiceBatch {
+
+        private final List<ServiceManagerPlugin.ServiceSpec> serviceSpecs = new ArrayList<ServiceManagerPlugin.ServiceSpec>();
+        private boolean registered;
+
+        @Override
+        public ServiceBatch addService(String className, Object service, Dictionary<String, ?> properties) {
+            return addService(new String[] { className }, service, properties);
+        }
+
+        @Override
+        public synchronized ServiceBatch addService(String[] classNames, Object service, Dictionary<String, ?> properties) {
+            if (classNames == null || classNames.length == 0)
+                throw MESSAGES.illegalArgumentNull("classNames");
+            if (service == null)
+                throw MESSAGES.illegalArgumentNull("service");
+            if (registered)
+                throw MESSAGES.illegalStateServiceBatchRegistered();
+            serviceSpecs.add(new ServiceManagerPlugin.ServiceSpec(classNames, service, properties));
+            return this;
+        }
+
+        @Override
+        public synchronized List<ServiceRegistration> register() {
+            if (registered)
+                throw MESSAGES.illegalStateServiceBatchRegistered();
+            checkValidBundleContext();
+            ServiceManagerPlugin serviceManager = getFrameworkState().getServiceManagerPlugin();
+            List<ServiceState> serviceStates = serviceManager.registerServices(bundleState, serviceSpecs);
+            registered = true;
+
+            List<ServiceRegistration> result = new ArrayList<ServiceRegistration>();
+            for (ServiceState serviceState : serviceStates)
+                result.add(serviceState.getRegistration());
+
+            return result;
+        }
+    }
 }
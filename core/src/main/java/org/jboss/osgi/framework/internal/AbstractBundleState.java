@@ -84,7 +84,8 @@ abstract class AbstractBundleState implements XBundle {
     private final BundleLock bundleLock = new BundleLock();
     private final AtomicInteger bundleState = new AtomicInteger(UNINSTALLED);
     private final List<ServiceState> registeredServices = new CopyOnWriteArrayList<ServiceState>();
-    private final ConcurrentHashMap<ServiceState, AtomicInteger> usedServices = new ConcurrentHashMap<ServiceState, AtomicInteger>();
+    private final Set<ServiceState> usedServices = Collections.newSetFromMap(new ConcurrentHashMap<ServiceState, Boolean>());
+    private final AssignabilityCache assignabilityCache = new AssignabilityCache(this);
     private ResolutionException lastResolutionException;
     private BundleStateRevision currentRevision;
     private AbstractBundleContext bundleContext;
@@ -159,6 +160,7 @@ abstract class AbstractBundleState implements XBundle {
     void addBundleRevision(BundleStateRevision rev) {
         rev.addAttachment(Bundle.class, this);
         currentRevision = rev;
+        assignabilityCache.clear();
     }
 
     abstract BundleStateRevision getBundleRevisionById(int revisionId);
@@ -217,6 +219,10 @@ abstract class AbstractBundleState implements XBundle {
 
         bundleState.set(state);
 
+        if (frameworkActive && (state == Bundle.UNINSTALLED || eventType == BundleEvent.UNRESOLVED)) {
+            evictAssignability();
+        }
+
         // Fire the bundle event
         if (frameworkActive && eventType != 0) {
             fireBundleEvent(eventType);
@@ -228,6 +234,17 @@ abstract class AbstractBundleState implements XBundle {
         eventsPlugin.fireBundleEvent(this, eventType);
     }
 
+    AssignabilityCache getAssignabilityCache() {
+        return assignabilityCache;
+    }
+
+    /**
+     * Remove the cached assignability that refers to a revision of this bundle, from this and every other bundle
+     */
+    void evictAssignability() {
+        assignabilityCache.evict();
+    }
+
     void addRegisteredService(ServiceState serviceState) {
         LOGGER.tracef("Add registered service %s to: %s", serviceState, this);
         registeredServices.add(serviceState);
@@ -271,27 +288,18 @@ abstract class AbstractBundleState implements XBundle {
     }
 
     Set<ServiceState> getServicesInUseInternal() {
-        return Collections.unmodifiableSet(usedServices.keySet());
+        return Collections.unmodifiableSet(usedServices);
     }
 
+    // The use count is maintained by the {@link ServiceState}
     void addServiceInUse(ServiceState serviceState) {
         LOGGER.tracef("Add service in use %s to: %s", serviceState, this);
-        usedServices.putIfAbsent(serviceState, new AtomicInteger());
-        AtomicInteger count = usedServices.get(serviceState);
-        count.incrementAndGet();
+        usedServices.add(serviceState);
     }
 
-    int removeServiceInUse(ServiceState serviceState) {
+    void removeServiceInUse(ServiceState serviceState) {
         LOGGER.tracef("Remove service in use %s from: %s", serviceState, this);
-        AtomicInteger count = usedServices.get(serviceState);
-        if (count == null)
-            return -1;
-
-        int countVal = count.decrementAndGet();
-        if (countVal == 0)
-            usedServices.remove(serviceState);
-
-        return countVal;
+        usedServices.remove(serviceState);
     }
 
     @Override
@@ -565,11 +573,11 @@ abstract class AbstractBundleState implements XBundle {
     abstract void uninstallInternal() throws BundleException;
 
     boolean aquireBundleLock(Method method) {
-        return bundleLock.tryLock(this, method);
+        return bundleLock.tryLock(this, method, getBundleManager().injectedLockManager.getValue());
     }
 
     void releaseBundleLock(Method method) {
-        bundleLock.unlock(this, method);
+        bundleLock.unlock(this, method, getBundleManager().injectedLockManager.getValue());
     }
 
     boolean ensureResolved(boolean fireEvent) {
@@ -588,7 +596,7 @@ abstract class AbstractBundleState implements XBundle {
                 if (isResolved() == false) {
                     try {
                         ResolverPlugin resolverPlugin = getFrameworkState().getResolverPlugin();
-                        resolverPlugin.resolveAndApply(Collections.singleton(getBundleRevision()), null);
+                        resolverPlugin.resolveAndApplyBatched(getBundleRevision());
 
                         if (LOGGER.isDebugEnabled()) {
                             BundleWiring wiring = getBundleRevision().getWiring();
@@ -671,24 +679,50 @@ abstract class AbstractBundleState implements XBundle {
             RESOLVE, START, STOP, UNINSTALL
         }
 
-        boolean tryLock(XBundle bundle, Method method) {
+        private volatile Method operation;
+        private long aquiredNanos;
+
+        boolean tryLock(XBundle bundle, Method method, LockManagerPlugin lockManager) {
+            LockMetrics metrics = lockManager.getBundleLockMetrics(method);
+            long startNanos = System.nanoTime();
             try {
                 LOGGER.tracef("Aquire %s lock on: %s", method, bundle);
                 if (tryLock(30, TimeUnit.SECONDS)) {
+                    metrics.recordWait(startNanos, true);
+                    if (getHoldCount() == 1) {
+                        operation = method;
+                        aquiredNanos = System.nanoTime();
+                        lockManager.bundleLockAquired(bundle, this);
+                    }
                     return true;
                 } else {
+                    metrics.recordWait(startNanos, false);
                     LOGGER.errorCannotAquireBundleLock(method.toString(), bundle);
                     return false;
                 }
             } catch (InterruptedException ex) {
+                metrics.recordWait(startNanos, false);
                 LOGGER.debugf("Interupted while trying to aquire %s lock on: %s", method, bundle);
                 return false;
             }
         }
 
-        void unlock(XBundle bundle, Method method) {
+        void unlock(XBundle bundle, Method method, LockManagerPlugin lockManager) {
             LOGGER.tracef("Release %s lock on: %s", method, bundle);
+            if (getHoldCount() == 1) {
+                lockManager.getBundleLockMetrics(operation).recordHold(aquiredNanos);
+                lockManager.bundleLockReleased(this);
+                operation = null;
+            }
             unlock();
         }
+
+        Thread getOwnerThread() {
+            return getOwner();
+        }
+
+        Method getOperation() {
+            return operation;
+        }
     }
 }
@@ -26,6 +26,8 @@ import java.util.concurrent.ExecutorService;
 import org.jboss.msc.service.StartContext;
 import org.jboss.msc.service.StartException;
 import org.jboss.msc.service.StopContext;
+import org.jboss.msc.value.InjectedValue;
+import org.jboss.osgi.framework.ExecutorServicePlugin;
 
 
 /**
@@ -36,6 +38,7 @@ import org.jboss.msc.service.StopContext;
  */
 abstract class AbstractExecutorService<T> extends AbstractPluginService<T> {
 
+    final InjectedValue<ExecutorServicePlugin> injectedExecutorPlugin = new InjectedValue<ExecutorServicePlugin>();
     private ExecutorService executorService;
 
     @Override
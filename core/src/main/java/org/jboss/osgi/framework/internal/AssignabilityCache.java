@@ -0,0 +1,180 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.osgi.resolver.XBundle;
+import org.jboss.osgi.resolver.XBundleRevision;
+
+/**
+ * Caches the results of {@link ServiceState#isAssignableTo(org.osgi.framework.Bundle, String)} for a requesting bundle.
+ *
+ * Entries are keyed by the owner revision and the class name. Every entry remembers the requesting revision and
+ * the wirings of both sides it was computed for. An entry is ignored as soon as either bundle has been updated
+ * or re-wired, so that a cache hit never touches a class loader.
+ *
+ * The entries for an owner are removed from every cache when the owner is unresolved or uninstalled, so that
+ * the cache does not keep its revisions, wirings and class loaders reachable. The cache of the owner knows
+ * the caches that hold entries for it, so that the eviction does not visit the caches of unrelated bundles.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 20-Oct-2012
+ */
+final class AssignabilityCache {
+
+    private final XBundle bundle;
+    private final ConcurrentMap<XBundleRevision, ConcurrentMap<String, Entry>> entries = new ConcurrentHashMap<XBundleRevision, ConcurrentMap<String, Entry>>();
+    // The caches of other bundles that hold entries for this bundle as owner
+    private final Set<AssignabilityCache> dependents = Collections.newSetFromMap(new ConcurrentHashMap<AssignabilityCache, Boolean>());
+
+    AssignabilityCache(XBundle bundle) {
+        assert bundle != null : "Null bundle";
+        this.bundle = bundle;
+    }
+
+    /**
+     * Get the cached assignability of the given class name
+     *
+     * @return The cached result or null if there is no valid entry
+     */
+    Boolean get(XBundle owner, String className) {
+        XBundleRevision ownerRev = owner.getBundleRevision();
+        ConcurrentMap<String, Entry> ownerEntries = ownerRev != null ? entries.get(ownerRev) : null;
+        if (ownerEntries == null)
+            return null;
+
+        Entry entry = ownerEntries.get(className);
+        if (entry == null)
+            return null;
+
+        XBundleRevision brev = bundle.getBundleRevision();
+        if (brev == null || entry.isValid(brev, brev.getWiring(), ownerRev.getWiring()) == false) {
+            ownerEntries.remove(className, entry);
+            return null;
+        }
+        return entry.result;
+    }
+
+    /**
+     * Cache the assignability of the given class name.
+     *
+     * This must be called after the result has been computed, so that the entry captures wirings that may
+     * have been created while loading the class.
+     */
+    void put(XBundle owner, String className, boolean result) {
+        XBundleRevision ownerRev = owner.getBundleRevision();
+        XBundleRevision brev = bundle.getBundleRevision();
+        if (ownerRev == null || brev == null)
+            return;
+
+        ConcurrentMap<String, Entry> ownerEntries = entries.get(ownerRev);
+        if (ownerEntries == null) {
+            pruneRevisions(owner, ownerRev);
+            // Register before adding, so that a concurrent eviction of the owner finds the entries
+            AssignabilityCache ownerCache = getCache(owner);
+            if (ownerCache != null)
+                ownerCache.dependents.add(this);
+            ConcurrentMap<String, Entry> newEntries = new ConcurrentHashMap<String, Entry>();
+            ownerEntries = entries.putIfAbsent(ownerRev, newEntries);
+            if (ownerEntries == null)
+                ownerEntries = newEntries;
+        }
+        ownerEntries.put(className, new Entry(brev, brev.getWiring(), ownerRev.getWiring(), result));
+    }
+
+    /**
+     * Remove all cached entries
+     */
+    void clear() {
+        for (XBundleRevision ownerRev : entries.keySet()) {
+            AssignabilityCache ownerCache = getCache(ownerRev.getBundle());
+            if (ownerCache != null)
+                ownerCache.dependents.remove(this);
+        }
+        entries.clear();
+    }
+
+    /**
+     * Remove all cached entries and the entries for the bundle of this cache from the caches of other bundles,
+     * because the bundle has been unresolved or uninstalled
+     */
+    void evict() {
+        clear();
+        for (AssignabilityCache aux : dependents) {
+            dependents.remove(aux);
+            aux.removeOwner(bundle);
+        }
+    }
+
+    /**
+     * Remove the entries for all revisions of the given owner
+     */
+    void removeOwner(XBundle owner) {
+        pruneRevisions(owner, null);
+    }
+
+    /**
+     * True if there are no cached entries
+     */
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // Drop the entries for the revisions of the given owner, except the given one
+    private void pruneRevisions(XBundle owner, XBundleRevision ownerRev) {
+        Iterator<XBundleRevision> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            XBundleRevision aux = iterator.next();
+            if (aux != ownerRev && owner.equals(aux.getBundle()))
+                iterator.remove();
+        }
+    }
+
+    private static AssignabilityCache getCache(Object owner) {
+        return owner instanceof AbstractBundleState ? ((AbstractBundleState) owner).getAssignabilityCache() : null;
+    }
+
+    private static final class Entry {
+
+        private final XBundleRevision revision;
+        private final Object wiring;
+        private final Object ownerWiring;
+        private final Boolean result;
+
+        Entry(XBundleRevision revision, Object wiring, Object ownerWiring, boolean result) {
+            this.revision = revision;
+            this.wiring = wiring;
+            this.ownerWiring = ownerWiring;
+            this.result = Boolean.valueOf(result);
+        }
+
+        boolean isValid(XBundleRevision currentRevision, Object currentWiring, Object currentOwnerWiring) {
+            return revision == currentRevision && wiring == currentWiring && ownerWiring == currentOwnerWiring;
+        }
+    }
+}
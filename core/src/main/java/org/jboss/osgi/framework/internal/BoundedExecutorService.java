@@ -0,0 +1,182 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor service that runs its tasks on a shared executor.
+ *
+ * The tasks are started in submission order and at most maxThreads of them run at the same time, so that a
+ * component that uses a single thread keeps its ordering on a shared pool. Shutting down this executor
+ * does not shut down the shared one.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 28-Oct-2012
+ */
+class BoundedExecutorService extends java.util.concurrent.AbstractExecutorService {
+
+    private final Executor delegate;
+    private final int maxThreads;
+
+    // Guarded by this
+    private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+    private int activeCount;
+    private boolean shutdown;
+
+    BoundedExecutorService(Executor delegate, int maxThreads) {
+        assert delegate != null : "Null delegate";
+        assert maxThreads > 0 : "Invalid maxThreads";
+        this.delegate = delegate;
+        this.maxThreads = maxThreads;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            if (shutdown)
+                throw new RejectedExecutionException();
+            if (activeCount >= maxThreads) {
+                tasks.add(task);
+                return;
+            }
+            activeCount++;
+        }
+        startWorker(task);
+    }
+
+    private void startWorker(final Runnable firstTask) {
+        try {
+            delegate.execute(new Runnable() {
+                public void run() {
+                    Runnable task = firstTask;
+                    try {
+                        while (task != null) {
+                            task.run();
+                            task = nextTask();
+                        }
+                    } finally {
+                        // The task failed, continue with the remaining tasks on another worker
+                        if (task != null)
+                            continueWork();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            synchronized (this) {
+                activeCount--;
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    private synchronized Runnable nextTask() {
+        Runnable task = tasks.poll();
+        if (task == null) {
+            activeCount--;
+            notifyAll();
+        }
+        return task;
+    }
+
+    private void continueWork() {
+        Runnable task = nextTask();
+        if (task != null)
+            startWorker(task);
+    }
+
+    int getMaxThreads() {
+        return maxThreads;
+    }
+
+    synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    synchronized int getQueueSize() {
+        return tasks.size();
+    }
+
+    @Override
+    public void shutdown() {
+        boolean first;
+        synchronized (this) {
+            first = shutdown == false;
+            shutdown = true;
+            notifyAll();
+        }
+        if (first)
+            shutdownStarted();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        boolean first;
+        List<Runnable> result;
+        synchronized (this) {
+            first = shutdown == false;
+            shutdown = true;
+            result = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            notifyAll();
+        }
+        if (first)
+            shutdownStarted();
+        return result;
+    }
+
+    /**
+     * Called once when this executor is shut down, without holding its monitor
+     */
+    void shutdownStarted() {
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && activeCount == 0;
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (isTerminated() == false) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (millis <= 0)
+                return false;
+            wait(millis);
+        }
+        return true;
+    }
+}
@@ -434,6 +434,7 @@ final class BundleManagerPlugin extends AbstractPluginService<BundleManager> imp
             env.uninstallResources(abr);
         }
 
+        userBundle.evictAssignability();
         FrameworkEventsPlugin eventsPlugin = getFrameworkState().getFrameworkEventsPlugin();
         eventsPlugin.fireBundleEvent(userBundle, BundleEvent.UNRESOLVED);
 
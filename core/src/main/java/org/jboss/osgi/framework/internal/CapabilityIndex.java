@@ -0,0 +1,176 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+/**
+ * An index of the installed resources, keyed by namespace and primary attribute.
+ *
+ * Resources are indexed by the package names, bundle symbolic names and host symbolic names of their capabilities
+ * and by the same attributes of their requirements. For a requirement, the value is taken from a mandatory
+ * equality term of its filter. Requirements without such a term are kept in a separate set, that is part of every
+ * lookup in that namespace.
+ *
+ * A lookup narrows the candidates, it never replaces the match of a capability against a requirement.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+final class CapabilityIndex {
+
+    static final List<String> INDEXED_NAMESPACES = Collections.unmodifiableList(Arrays.asList(PackageNamespace.PACKAGE_NAMESPACE,
+            BundleNamespace.BUNDLE_NAMESPACE, HostNamespace.HOST_NAMESPACE));
+
+    // namespace => attribute value => resources, guarded by this
+    private final Map<String, Map<String, Set<Resource>>> providers = new HashMap<String, Map<String, Set<Resource>>>();
+    private final Map<String, Map<String, Set<Resource>>> requirers = new HashMap<String, Map<String, Set<Resource>>>();
+    private final Map<String, Set<Resource>> unindexedRequirers = new HashMap<String, Set<Resource>>();
+
+    synchronized void addResources(Collection<? extends Resource> resources) {
+        for (Resource res : resources) {
+            for (String namespace : INDEXED_NAMESPACES) {
+                for (Capability cap : res.getCapabilities(namespace)) {
+                    Object value = cap.getAttributes().get(namespace);
+                    if (value instanceof String) {
+                        getResources(providers, namespace, (String) value, true).add(res);
+                    }
+                }
+                for (Requirement req : res.getRequirements(namespace)) {
+                    String value = getRequirementValue(req);
+                    if (value != null) {
+                        getResources(requirers, namespace, value, true).add(res);
+                    } else {
+                        getUnindexed(namespace, true).add(res);
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized void removeResources(Collection<? extends Resource> resources) {
+        for (Resource res : resources) {
+            for (String namespace : INDEXED_NAMESPACES) {
+                for (Capability cap : res.getCapabilities(namespace)) {
+                    Object value = cap.getAttributes().get(namespace);
+                    if (value instanceof String) {
+                        remove(providers, namespace, (String) value, res);
+                    }
+                }
+                for (Requirement req : res.getRequirements(namespace)) {
+                    String value = getRequirementValue(req);
+                    if (value != null) {
+                        remove(requirers, namespace, value, res);
+                    } else {
+                        Set<Resource> unindexed = getUnindexed(namespace, false);
+                        if (unindexed != null && unindexed.remove(res) && unindexed.isEmpty()) {
+                            unindexedRequirers.remove(namespace);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the resources that provide a capability with the given primary attribute value
+     */
+    synchronized List<Resource> getProviders(String namespace, String value) {
+        Set<Resource> result = getResources(providers, namespace, value, false);
+        return result != null ? new ArrayList<Resource>(result) : Collections.<Resource> emptyList();
+    }
+
+    /**
+     * Get the resources with a requirement that may match a capability with the given primary attribute value
+     */
+    synchronized List<Resource> getRequirers(String namespace, String value) {
+        List<Resource> result = new ArrayList<Resource>();
+        Set<Resource> indexed = getResources(requirers, namespace, value, false);
+        if (indexed != null) {
+            result.addAll(indexed);
+        }
+        Set<Resource> unindexed = getUnindexed(namespace, false);
+        if (unindexed != null) {
+            result.addAll(unindexed);
+        }
+        return result;
+    }
+
+    private static String getRequirementValue(Requirement req) {
+        String namespace = req.getNamespace();
+        Object value = req.getAttributes().get(namespace);
+        if (value instanceof String)
+            return (String) value;
+
+        String filter = req.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+        return FilterTerms.getEqualityTerms(filter).get(namespace);
+    }
+
+    private static Set<Resource> getResources(Map<String, Map<String, Set<Resource>>> index, String namespace, String value, boolean create) {
+        Map<String, Set<Resource>> byValue = index.get(namespace);
+        if (byValue == null) {
+            if (create == false)
+                return null;
+            byValue = new HashMap<String, Set<Resource>>();
+            index.put(namespace, byValue);
+        }
+        Set<Resource> result = byValue.get(value);
+        if (result == null && create) {
+            result = new LinkedHashSet<Resource>();
+            byValue.put(value, result);
+        }
+        return result;
+    }
+
+    private static void remove(Map<String, Map<String, Set<Resource>>> index, String namespace, String value, Resource res) {
+        Map<String, Set<Resource>> byValue = index.get(namespace);
+        Set<Resource> resources = byValue != null ? byValue.get(value) : null;
+        if (resources != null && resources.remove(res) && resources.isEmpty()) {
+            byValue.remove(value);
+        }
+    }
+
+    private Set<Resource> getUnindexed(String namespace, boolean create) {
+        Set<Resource> result = unindexedRequirers.get(namespace);
+        if (result == null && create) {
+            result = new LinkedHashSet<Resource>();
+            unindexedRequirers.put(namespace, result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,265 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.jboss.osgi.framework.internal.FrameworkLogger.LOGGER;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.msc.service.ServiceBuilder;
+import org.jboss.msc.service.ServiceController;
+import org.jboss.msc.service.ServiceController.Mode;
+import org.jboss.msc.service.ServiceName;
+import org.jboss.msc.service.ServiceTarget;
+import org.jboss.msc.service.StartContext;
+import org.jboss.msc.service.StartException;
+import org.jboss.msc.service.StopContext;
+import org.jboss.osgi.framework.Constants;
+import org.jboss.osgi.framework.ExecutorServicePlugin;
+import org.jboss.osgi.framework.IntegrationService;
+
+/**
+ * The default plugin that provides the executors for asynchronous framework work.
+ *
+ * Depending on {@link Constants#PROPERTY_FRAMEWORK_EXECUTOR}, every executor has its own threads, or
+ * the executors share a bounded thread pool, a ForkJoinPool or virtual threads. The ForkJoinPool and
+ * virtual threads are looked up reflectively and fall back to the shared pool when not available.
+ *
+ * Unless {@link Constants#PROPERTY_FRAMEWORK_EXECUTOR_THREADS} is configured, a shared executor has as many threads
+ * as the maxThreads of the executors that share it add up to. Framework components block in their tasks, for example
+ * a start level change waits for the bundles to start, so that a smaller pool could starve them.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 28-Oct-2012
+ */
+final class DefaultExecutorServicePlugin extends AbstractPluginService<ExecutorServicePlugin> implements ExecutorServicePlugin, IntegrationService<ExecutorServicePlugin> {
+
+    // The ForkJoinPool starts its threads on demand, which the bounds of the executors limit
+    private static final int UNLIMITED_PARALLELISM = 0x7fff;
+
+    private final FrameworkBuilder frameworkBuilder;
+    private final ConcurrentMap<String, ExecutorService> executors = new ConcurrentHashMap<String, ExecutorService>();
+    private ExecutorService sharedExecutor;
+    // The shared thread pool that is sized from the bounds of its executors, guarded by this
+    private ThreadPoolExecutor sizedSharedPool;
+    private int sharedThreads;
+
+    DefaultExecutorServicePlugin(FrameworkBuilder frameworkBuilder) {
+        this.frameworkBuilder = frameworkBuilder;
+    }
+
+    @Override
+    public ServiceName getServiceName() {
+        return IntegrationService.EXECUTOR_SERVICE_PLUGIN;
+    }
+
+    @Override
+    public ServiceController<ExecutorServicePlugin> install(ServiceTarget serviceTarget) {
+        ServiceBuilder<ExecutorServicePlugin> builder = serviceTarget.addService(getServiceName(), this);
+        builder.setInitialMode(Mode.ON_DEMAND);
+        return builder.install();
+    }
+
+    @Override
+    public void start(StartContext context) throws StartException {
+        super.start(context);
+        String type = (String) frameworkBuilder.getProperty(Constants.PROPERTY_FRAMEWORK_EXECUTOR, Constants.EXECUTOR_DEDICATED);
+        Object value = frameworkBuilder.getProperty(Constants.PROPERTY_FRAMEWORK_EXECUTOR_THREADS);
+        int threads = value != null ? Integer.parseInt(value.toString().trim()) : Constants.DEFAULT_FRAMEWORK_EXECUTOR_THREADS;
+        if (threads < 0)
+            threads = Constants.DEFAULT_FRAMEWORK_EXECUTOR_THREADS;
+
+        type = type.trim();
+        if (Constants.EXECUTOR_FORKJOIN.equals(type)) {
+            sharedExecutor = createForkJoinPool(threads > 0 ? threads : UNLIMITED_PARALLELISM);
+        } else if (Constants.EXECUTOR_VIRTUAL.equals(type)) {
+            sharedExecutor = createVirtualThreadExecutor();
+        } else if (Constants.EXECUTOR_DEDICATED.equals(type) == false && Constants.EXECUTOR_SHARED.equals(type) == false) {
+            LOGGER.warnExecutorTypeNotAvailable(type);
+            type = Constants.EXECUTOR_DEDICATED;
+        }
+
+        // An unavailable executor falls back to the shared thread pool
+        if (sharedExecutor == null && Constants.EXECUTOR_DEDICATED.equals(type) == false) {
+            ThreadPoolExecutor pool = createThreadPool("OSGi Framework Thread", threads > 0 ? threads : 1, true);
+            synchronized (this) {
+                sizedSharedPool = threads > 0 ? null : pool;
+                sharedThreads = 0;
+            }
+            sharedExecutor = pool;
+        }
+        LOGGER.debugf("Framework executor: %s", type);
+    }
+
+    @Override
+    public void stop(StopContext context) {
+        super.stop(context);
+        if (sharedExecutor != null) {
+            sharedExecutor.shutdown();
+            sharedExecutor = null;
+        }
+        synchronized (this) {
+            sizedSharedPool = null;
+        }
+        executors.clear();
+    }
+
+    @Override
+    public DefaultExecutorServicePlugin getValue() {
+        return this;
+    }
+
+    @Override
+    public ExecutorService createExecutorService(final String name, final int maxThreads) {
+        ExecutorService result;
+        if (sharedExecutor != null) {
+            result = new BoundedExecutorService(sharedExecutor, maxThreads) {
+                @Override
+                void shutdownStarted() {
+                    executors.remove(name, this);
+                    resizeSharedPool(-maxThreads);
+                }
+            };
+            resizeSharedPool(maxThreads);
+        } else {
+            result = createThreadPool(name, maxThreads, maxThreads > 1);
+        }
+        executors.put(name, result);
+        return result;
+    }
+
+    // Grow or shrink a shared thread pool that is sized from the bounds of its executors
+    private synchronized void resizeSharedPool(int delta) {
+        if (sizedSharedPool == null)
+            return;
+
+        sharedThreads += delta;
+        int size = Math.max(sharedThreads, 1);
+        if (size > sizedSharedPool.getMaximumPoolSize()) {
+            sizedSharedPool.setMaximumPoolSize(size);
+            sizedSharedPool.setCorePoolSize(size);
+        } else {
+            sizedSharedPool.setCorePoolSize(size);
+            sizedSharedPool.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Get the maximum number of threads of a shared thread pool or 0
+     */
+    int getSharedThreads() {
+        ExecutorService executor = sharedExecutor;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getMaximumPoolSize() : 0;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueSizes() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (Entry<String, ExecutorService> entry : executors.entrySet()) {
+            ExecutorService executor = entry.getValue();
+            if (executor instanceof BoundedExecutorService) {
+                result.put(entry.getKey(), ((BoundedExecutorService) executor).getQueueSize());
+            } else {
+                result.put(entry.getKey(), ((ThreadPoolExecutor) executor).getQueue().size());
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public Map<String, Double> getUtilization() {
+        Map<String, Double> result = new HashMap<String, Double>();
+        for (Entry<String, ExecutorService> entry : executors.entrySet()) {
+            ExecutorService executor = entry.getValue();
+            if (executor instanceof BoundedExecutorService) {
+                BoundedExecutorService bounded = (BoundedExecutorService) executor;
+                result.put(entry.getKey(), (double) bounded.getActiveCount() / bounded.getMaxThreads());
+            } else {
+                ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+                result.put(entry.getKey(), (double) pool.getActiveCount() / pool.getMaximumPoolSize());
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private ThreadPoolExecutor createThreadPool(final String name, int maxThreads, final boolean numbered) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable run) {
+                Thread thread = new Thread(run);
+                thread.setName(numbered ? name + " " + count.incrementAndGet() : name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory) {
+            @Override
+            public void shutdown() {
+                executors.remove(name, this);
+                super.shutdown();
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                executors.remove(name, this);
+                return super.shutdownNow();
+            }
+        };
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ExecutorService createForkJoinPool(int parallelism) {
+        try {
+            Class<?> poolClass = Class.forName("java.util.concurrent.ForkJoinPool");
+            return (ExecutorService) poolClass.getConstructor(Integer.TYPE).newInstance(parallelism);
+        } catch (Exception ex) {
+            LOGGER.warnExecutorTypeNotAvailable(Constants.EXECUTOR_FORKJOIN);
+            return null;
+        }
+    }
+
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            LOGGER.warnExecutorTypeNotAvailable(Constants.EXECUTOR_VIRTUAL);
+            return null;
+        }
+    }
+}
@@ -24,6 +24,7 @@ package org.jboss.osgi.framework.internal;
 
 import static org.jboss.osgi.framework.internal.FrameworkMessages.MESSAGES;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeoutException;
 
@@ -37,6 +38,7 @@ import org.jboss.msc.service.StopContext;
 import org.jboss.msc.value.InjectedValue;
 import org.jboss.osgi.framework.AbstractBundleWiring;
 import org.jboss.osgi.framework.Services;
+import org.jboss.osgi.framework.internal.LockManagerPlugin.LockMode;
 import org.jboss.osgi.resolver.XBundleRevision;
 import org.jboss.osgi.resolver.XEnvironment;
 import org.jboss.osgi.resolver.XResource;
@@ -53,6 +55,7 @@ import org.osgi.resource.Wiring;
 final class EnvironmentPlugin extends AbstractEnvironment implements Service<XEnvironment> {
 
     private final InjectedValue<LockManagerPlugin> injectedLockManager = new InjectedValue<LockManagerPlugin>();
+    private final CapabilityIndex capabilityIndex = new CapabilityIndex();
 
     static void addService(ServiceTarget serviceTarget) {
         EnvironmentPlugin service = new EnvironmentPlugin();
@@ -90,51 +93,62 @@ final class EnvironmentPlugin extends AbstractEnvironment implements Service<XEn
                 throw MESSAGES.cannotObtainBundleFromResource(res);
         }
 
-        aquireFrameworkLock();
+        long lockNanos = lockEnvironment();
         try {
             super.installResources(resources);
+            capabilityIndex.addResources(Arrays.asList(resources));
         } finally {
-            releaseFrameworkLock();
+            unlockEnvironment(lockNanos);
         }
     }
 
     @Override
-    public synchronized void uninstallResources(XResource... resources) {
-        aquireFrameworkLock();
+    public void uninstallResources(XResource... resources) {
+        long lockNanos = lockEnvironment();
         try {
             super.uninstallResources(resources);
+            capabilityIndex.removeResources(Arrays.asList(resources));
         } finally {
-            releaseFrameworkLock();
+            unlockEnvironment(lockNanos);
         }
     }
 
     @Override
     public void refreshResources(XResource... resources) {
-        aquireFrameworkLock();
+        long lockNanos = lockEnvironment();
         try {
             super.refreshResources(resources);
         } finally {
-            releaseFrameworkLock();
+            unlockEnvironment(lockNanos);
         }
     }
 
+    /**
+     * Get the index of the installed resources by namespace and primary attribute.
+     * A refresh does not change the declared capabilities and requirements, so that the index is not affected by it.
+     */
+    CapabilityIndex getCapabilityIndex() {
+        return capabilityIndex;
+    }
+
     @Override
     public Wiring createWiring(XResource res, List<Wire> required, List<Wire> provided) {
         XBundleRevision brev = (XBundleRevision) res;
         return new AbstractBundleWiring(brev, required, provided);
     }
 
-    private void aquireFrameworkLock() {
+    // AbstractEnvironment is not thread safe, its mutations are serialized by the exclusive environment lock
+    private long lockEnvironment() {
+        LockManagerPlugin lockManager = injectedLockManager.getValue();
         try {
-            LockManagerPlugin lockManager = injectedLockManager.getValue();
-            lockManager.aquireFrameworkLock();
+            return lockManager.lockEnvironment(LockMode.EXCLUSIVE);
         } catch (TimeoutException ex) {
             throw new IllegalStateException(ex);
         }
     }
 
-    private void releaseFrameworkLock() {
+    private void unlockEnvironment(long lockNanos) {
         LockManagerPlugin lockManager = injectedLockManager.getValue();
-        lockManager.releaseFrameworkLock();
+        lockManager.unlockEnvironment(LockMode.EXCLUSIVE, lockNanos);
     }
 }
@@ -249,13 +249,19 @@ final class FallbackLoader implements LocalLoader {
             for (Bundle bundle : unresolved)
                 LOGGER.tracef("   %s", bundle);
         }
+        List<XBundleRevision> revisions = new ArrayList<XBundleRevision>();
         for (Bundle bundle : unresolved) {
             if (!(bundle instanceof AbstractBundleState)) {
                 LOGGER.tracef("Ignore invalid bundle type: %s", bundle);
                 continue;
             }
-            LOGGER.tracef("Attempt to resolve: %s", bundle);
-            AbstractBundleState.assertBundleState(bundle).ensureResolved(false);
+            revisions.add(AbstractBundleState.assertBundleState(bundle).getBundleRevision());
+        }
+        // Resolve the unresolved bundles together in a single resolver pass
+        if (revisions.isEmpty() == false) {
+            ResolverPlugin resolverPlugin = bundleManager.getFrameworkState().getResolverPlugin();
+            Set<XBundleRevision> failed = resolverPlugin.resolveAndApplyBatched(revisions);
+            LOGGER.tracef("Unresolvable modules: %s", failed);
         }
         return findInResolvedModules(resName, matchingPatterns);
     }
@@ -0,0 +1,182 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extracts the equality terms that every match of an LDAP filter must satisfy.
+ *
+ * Only terms that are the filter itself or that are (nested) operands of a top level AND are
+ * collected. Terms below an OR or NOT, approximate, ordering and substring terms are ignored.
+ * The result can be used to narrow the candidates of a filter evaluation, it never replaces it.
+ *
+ * It also collects the names of all attributes a filter refers to. A filter cannot change its result
+ * unless one of these attributes changes.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 19-Oct-2012
+ */
+final class FilterTerms {
+
+    // Hide ctor
+    private FilterTerms() {
+    }
+
+    /**
+     * Get the mandatory equality terms of the given filter
+     *
+     * @return A map of lower case attribute names to their required values, which may be empty
+     */
+    static Map<String, String> getEqualityTerms(String filter) {
+        if (filter == null)
+            return Collections.emptyMap();
+
+        Map<String, String> terms = new LinkedHashMap<String, String>();
+        try {
+            Parser parser = new Parser(filter, null);
+            parser.parseFilter(terms, true);
+        } catch (RuntimeException ex) {
+            // An unexpected filter structure does not allow any narrowing
+            return Collections.emptyMap();
+        }
+        return terms;
+    }
+
+    /**
+     * Get the attributes that the given filter refers to
+     *
+     * @return A set of lower case attribute names or null if the filter cannot be analyzed
+     */
+    static Set<String> getAttributes(String filter) {
+        if (filter == null)
+            return null;
+
+        Set<String> attributes = new HashSet<String>();
+        try {
+            Parser parser = new Parser(filter, attributes);
+            parser.parseFilter(new LinkedHashMap<String, String>(), true);
+        } catch (RuntimeException ex) {
+            return null;
+        }
+        return attributes;
+    }
+
+    private static class Parser {
+
+        private final char[] chars;
+        private final Set<String> attributes;
+        private int pos;
+
+        Parser(String filter, Set<String> attributes) {
+            this.chars = filter.toCharArray();
+            this.attributes = attributes;
+        }
+
+        void parseFilter(Map<String, String> terms, boolean mandatory) {
+            skipWhitespace();
+            expect('(');
+            skipWhitespace();
+            switch (chars[pos]) {
+                case '&':
+                    pos++;
+                    parseFilterList(terms, mandatory);
+                    break;
+                case '|':
+                    pos++;
+                    parseFilterList(terms, false);
+                    break;
+                case '!':
+                    pos++;
+                    parseFilter(terms, false);
+                    break;
+                default:
+                    parseOperation(terms, mandatory);
+            }
+            skipWhitespace();
+            expect(')');
+        }
+
+        private void parseFilterList(Map<String, String> terms, boolean mandatory) {
+            skipWhitespace();
+            while (chars[pos] == '(') {
+                parseFilter(terms, mandatory);
+                skipWhitespace();
+            }
+        }
+
+        private void parseOperation(Map<String, String> terms, boolean mandatory) {
+            int start = pos;
+            while ("=<>~()".indexOf(chars[pos]) < 0)
+                pos++;
+
+            String attr = new String(chars, start, pos - start).trim();
+            if (attributes != null)
+                attributes.add(attr.toLowerCase(Locale.ENGLISH));
+            boolean equality = (chars[pos] == '=');
+            if (equality == false) {
+                pos++;
+                expect('=');
+            } else {
+                pos++;
+            }
+
+            boolean wildcard = false;
+            StringBuilder value = new StringBuilder();
+            while (chars[pos] != ')') {
+                char ch = chars[pos++];
+                if (ch == '\\') {
+                    value.append(chars[pos++]);
+                } else {
+                    if (ch == '*')
+                        wildcard = true;
+                    value.append(ch);
+                }
+            }
+
+            // Leading and trailing whitespace is left to the filter implementation
+            String valstr = value.toString();
+            boolean exact = valstr.length() > 0 && valstr.equals(valstr.trim());
+            if (mandatory && equality && exact && !wildcard && attr.length() > 0) {
+                String key = attr.toLowerCase(Locale.ENGLISH);
+                if (terms.containsKey(key) == false)
+                    terms.put(key, valstr);
+            }
+        }
+
+        private void skipWhitespace() {
+            while (Character.isWhitespace(chars[pos]))
+                pos++;
+        }
+
+        private void expect(char ch) {
+            if (chars[pos++] != ch)
+                throw new IllegalArgumentException("Expected '" + ch + "' at: " + (pos - 1));
+        }
+    }
+}
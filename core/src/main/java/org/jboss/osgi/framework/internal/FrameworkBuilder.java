@@ -163,6 +163,7 @@ public final class FrameworkBuilder {
             PackageAdminPlugin.addService(serviceTarget);
             ResolverPlugin.addService(serviceTarget);
             ServiceManagerPlugin.addService(serviceTarget);
+            ServiceStatisticsPlugin.addService(serviceTarget);
             StartLevelPlugin.addService(serviceTarget);
             DefaultStorageStatePlugin.addService(serviceTarget);
             SystemBundleService.addService(serviceTarget, frameworkState);
@@ -170,6 +171,7 @@ public final class FrameworkBuilder {
 
             installIntegrationService(serviceContainer, serviceTarget, new DefaultBootstrapBundlesInstall());
             installIntegrationService(serviceContainer, serviceTarget, new DefaultBundleInstallPlugin());
+            installIntegrationService(serviceContainer, serviceTarget, new DefaultExecutorServicePlugin(this));
             installIntegrationService(serviceContainer, serviceTarget, new DefaultFrameworkModulePlugin());
             installIntegrationService(serviceContainer, serviceTarget, new DefaultModuleLoaderPlugin());
             installIntegrationService(serviceContainer, serviceTarget, new DefaultPersistentBundlesInstall());
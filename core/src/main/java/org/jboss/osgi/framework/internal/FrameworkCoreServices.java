@@ -29,6 +29,7 @@ import org.jboss.msc.service.StartException;
 import org.jboss.msc.service.StopContext;
 import org.jboss.msc.value.InjectedValue;
 import org.jboss.osgi.framework.BundleInstallPlugin;
+import org.jboss.osgi.framework.Constants;
 import org.jboss.osgi.framework.IntegrationService;
 import org.jboss.osgi.framework.Services;
 import org.jboss.osgi.framework.SystemServicesPlugin;
@@ -46,7 +47,9 @@ final class FrameworkCoreServices extends AbstractPluginService<FrameworkCoreSer
     private final InjectedValue<FrameworkState> injectedFramework = new InjectedValue<FrameworkState>();
     private final InjectedValue<BundleInstallPlugin> injectedBundleInstall = new InjectedValue<BundleInstallPlugin>();
     private final InjectedValue<LifecycleInterceptorPlugin> injectedLifecycleInterceptor = new InjectedValue<LifecycleInterceptorPlugin>();
+    private final InjectedValue<LockManagerPlugin> injectedLockManager = new InjectedValue<LockManagerPlugin>();
     private final InjectedValue<PackageAdmin> injectedPackageAdmin = new InjectedValue<PackageAdmin>();
+    private final InjectedValue<ServiceStatisticsPlugin> injectedStatistics = new InjectedValue<ServiceStatisticsPlugin>();
     private final InjectedValue<StartLevelPlugin> injectedStartLevel = new InjectedValue<StartLevelPlugin>();
     private final InjectedValue<BundleContext> injectedSystemContext = new InjectedValue<BundleContext>();
     private final InjectedValue<SystemServicesPlugin> injectedSystemServices = new InjectedValue<SystemServicesPlugin>();
@@ -57,7 +60,9 @@ final class FrameworkCoreServices extends AbstractPluginService<FrameworkCoreSer
         builder.addDependency(IntegrationService.BUNDLE_INSTALL_PLUGIN, BundleInstallPlugin.class, service.injectedBundleInstall);
         builder.addDependency(InternalServices.FRAMEWORK_STATE_CREATE, FrameworkState.class, service.injectedFramework);
         builder.addDependency(InternalServices.LIFECYCLE_INTERCEPTOR_PLUGIN, LifecycleInterceptorPlugin.class, service.injectedLifecycleInterceptor);
+        builder.addDependency(InternalServices.LOCK_MANAGER_PLUGIN, LockManagerPlugin.class, service.injectedLockManager);
         builder.addDependency(Services.PACKAGE_ADMIN, PackageAdmin.class, service.injectedPackageAdmin);
+        builder.addDependency(InternalServices.SERVICE_STATISTICS_PLUGIN, ServiceStatisticsPlugin.class, service.injectedStatistics);
         builder.addDependency(Services.START_LEVEL, StartLevelPlugin.class, service.injectedStartLevel);
         builder.addDependency(InternalServices.SYSTEM_CONTEXT, BundleContext.class, service.injectedSystemContext);
         builder.addDependency(IntegrationService.SYSTEM_SERVICES_PLUGIN, SystemServicesPlugin.class, service.injectedSystemServices);
@@ -75,12 +80,17 @@ final class FrameworkCoreServices extends AbstractPluginService<FrameworkCoreSer
         BundleContext systemContext = injectedSystemContext.getValue();
         SystemServicesPlugin systemServices = injectedSystemServices.getValue();
         systemServices.registerSystemServices(systemContext);
+        injectedStatistics.getValue().registerStatisticsService(systemContext);
+        Object lockStatisticsJmx = getFrameworkState().getBundleManager().getProperty(Constants.PROPERTY_LOCK_STATISTICS_JMX);
+        injectedLockManager.getValue().registerStatisticsService(systemContext, Boolean.parseBoolean(String.valueOf(lockStatisticsJmx)));
         getFrameworkState().injectedCoreServices.inject(this);
     }
 
     @Override
     public void stop(StopContext context) {
         super.stop(context);
+        injectedStatistics.getValue().unregisterStatisticsService();
+        injectedLockManager.getValue().unregisterStatisticsService();
         getFrameworkState().injectedCoreServices.uninject();
     }
 
@@ -26,20 +26,20 @@ import static org.jboss.osgi.framework.internal.FrameworkLogger.LOGGER;
 import java.security.AccessControlContext;
 import java.security.AccessController;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 import org.jboss.msc.service.ServiceBuilder;
 import org.jboss.msc.service.ServiceController.Mode;
 import org.jboss.msc.service.ServiceTarget;
@@ -47,6 +47,10 @@ import org.jboss.msc.service.StartContext;
 import org.jboss.msc.service.StartException;
 import org.jboss.msc.service.StopContext;
 import org.jboss.msc.value.InjectedValue;
+import org.jboss.osgi.framework.AsynchronousServiceListener;
+import org.jboss.osgi.framework.Constants;
+import org.jboss.osgi.framework.ExecutorServicePlugin;
+import org.jboss.osgi.framework.IntegrationService;
 import org.jboss.osgi.framework.Services;
 import org.jboss.osgi.framework.util.NoFilter;
 import org.jboss.osgi.framework.util.RemoveOnlyCollection;
@@ -57,7 +61,6 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
-import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.FrameworkListener;
@@ -65,7 +68,6 @@ import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
-import org.osgi.framework.ServiceReference;
 import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.framework.hooks.service.EventHook;
 import org.osgi.framework.hooks.service.ListenerHook;
@@ -83,6 +85,8 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
     private final InjectedValue<BundleManagerPlugin> injectedBundleManager = new InjectedValue<BundleManagerPlugin>();
     private final InjectedValue<BundleContext> injectedSystemContext = new InjectedValue<BundleContext>();
     private final InjectedValue<LockManagerPlugin> injectedLockManager = new InjectedValue<LockManagerPlugin>();
+    private final InjectedValue<ServiceStatisticsPlugin> injectedStatistics = new InjectedValue<ServiceStatisticsPlugin>();
+    private final InjectedValue<ExecutorServicePlugin> injectedExecutorPlugin = new InjectedValue<ExecutorServicePlugin>();
 
     /** The bundleState listeners */
     private final Map<AbstractBundleState, List<BundleListener>> bundleListeners = new ConcurrentHashMap<AbstractBundleState, List<BundleListener>>();
@@ -90,14 +94,36 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
     private final Map<AbstractBundleState, List<FrameworkListener>> frameworkListeners = new ConcurrentHashMap<AbstractBundleState, List<FrameworkListener>>();
     /** The service listeners */
     private final Map<AbstractBundleState, List<ServiceListenerRegistration>> serviceListeners = new ConcurrentHashMap<AbstractBundleState, List<ServiceListenerRegistration>>();
+    /** The service listeners indexed by objectClass, modified while holding the serviceListeners lock */
+    private final ServiceListenerIndex serviceListenerIndex = new ServiceListenerIndex();
+    /** The flattened bundle listeners, rebuilt while holding the bundleListeners lock */
+    private volatile List<BundleListener> bundleListenerSnapshot = Collections.emptyList();
+    /** The flattened framework listeners, rebuilt while holding the frameworkListeners lock */
+    private volatile List<FrameworkListener> frameworkListenerSnapshot = Collections.emptyList();
+    /** The bundles that registered the bundle listeners, rebuilt with the bundle listener snapshot */
+    private volatile Map<BundleListener, AbstractBundleState> bundleListenerOwners = Collections.emptyMap();
+    /** The bundles that registered the framework listeners, rebuilt with the framework listener snapshot */
+    private volatile Map<FrameworkListener, AbstractBundleState> frameworkListenerOwners = Collections.emptyMap();
+    /** The event batch of the current thread, see {@link #beginEventBatch()} */
+    private final ThreadLocal<EventBatch> eventBatch = new ThreadLocal<EventBatch>();
+    /** The batches that hold back asynchronous events, guarded by the batch lock */
+    private final Object batchLock = new Object();
+    private final Map<BundleListener, EventBatch> pendingBundleBatches = new HashMap<BundleListener, EventBatch>();
+    private EventBatch pendingFrameworkBatch;
+    private boolean eventBatching;
 
     /** The set of bundleState events that are delivered to an (asynchronous) BundleListener */
     private Set<Integer> asyncBundleEvents = new HashSet<Integer>();
     /** The set of events that are logged at INFO level */
     private Set<String> infoEvents = new HashSet<String>();
 
-    private final ExecutorService bundleEventExecutor;
-    private final ExecutorService frameworkEventExecutor;
+    /** The time in milliseconds after which an event that waits for a full listener queue logs a warning */
+    private static final long LISTENER_QUEUE_WARNING_TIMEOUT = 10000;
+
+    private OrderedListenerExecutor bundleEventExecutor;
+    /** Delivers to asynchronous service listeners, null if they are called synchronously */
+    private OrderedListenerExecutor serviceEventExecutor;
+    private ExecutorService frameworkEventExecutor;
 
     static void addService(ServiceTarget serviceTarget) {
         FrameworkEventsPlugin service = new FrameworkEventsPlugin();
@@ -105,6 +131,8 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         builder.addDependency(Services.BUNDLE_MANAGER, BundleManagerPlugin.class, service.injectedBundleManager);
         builder.addDependency(InternalServices.SYSTEM_CONTEXT, BundleContext.class, service.injectedSystemContext);
         builder.addDependency(InternalServices.LOCK_MANAGER_PLUGIN, LockManagerPlugin.class, service.injectedLockManager);
+        builder.addDependency(InternalServices.SERVICE_STATISTICS_PLUGIN, ServiceStatisticsPlugin.class, service.injectedStatistics);
+        builder.addDependency(IntegrationService.EXECUTOR_SERVICE_PLUGIN, ExecutorServicePlugin.class, service.injectedExecutorPlugin);
         builder.setInitialMode(Mode.ON_DEMAND);
         builder.install();
     }
@@ -125,38 +153,55 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         infoEvents.add(ConstantsHelper.bundleEvent(BundleEvent.STARTED));
         infoEvents.add(ConstantsHelper.bundleEvent(BundleEvent.STOPPED));
         infoEvents.add(ConstantsHelper.bundleEvent(BundleEvent.UNINSTALLED));
-
-        bundleEventExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable run) {
-                Thread thread = new Thread(run);
-                thread.setName("OSGi BundleEvent Thread");
-                thread.setDaemon(true);
-                return thread;
-            }
-        });
-        frameworkEventExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable run) {
-                Thread thread = new Thread(run);
-                thread.setName("OSGi FrameworkEvent Thread");
-                thread.setDaemon(true);
-                return thread;
-            }
-        });
     }
 
     @Override
     public void start(StartContext context) throws StartException {
         super.start(context);
+        BundleManagerPlugin bundleManager = injectedBundleManager.getValue();
+        ExecutorServicePlugin executorPlugin = injectedExecutorPlugin.getValue();
+        frameworkEventExecutor = executorPlugin.createExecutorService("OSGi FrameworkEvent Thread", 1);
+        int maxThreads = getIntegerProperty(bundleManager, Constants.PROPERTY_BUNDLE_EVENT_THREADS, Constants.DEFAULT_BUNDLE_EVENT_THREADS);
+        int queueCapacity = getIntegerProperty(bundleManager, Constants.PROPERTY_BUNDLE_EVENT_QUEUE_CAPACITY, Constants.DEFAULT_BUNDLE_EVENT_QUEUE_CAPACITY);
+        ServiceStatisticsPlugin statistics = injectedStatistics.getValue();
+        ExecutorService executor = executorPlugin.createExecutorService("OSGi BundleEvent Thread", maxThreads);
+        bundleEventExecutor = new OrderedListenerExecutor(executor, queueCapacity, LISTENER_QUEUE_WARNING_TIMEOUT, statistics);
+        statistics.setAsyncEventExecutor(bundleEventExecutor);
+        Object batching = bundleManager.getProperty(Constants.PROPERTY_EVENT_BATCHING);
+        eventBatching = batching != null && Boolean.parseBoolean(batching.toString());
+        Object async = bundleManager.getProperty(Constants.PROPERTY_SERVICE_EVENT_ASYNC);
+        if (async == null || Boolean.parseBoolean(async.toString())) {
+            maxThreads = getIntegerProperty(bundleManager, Constants.PROPERTY_SERVICE_EVENT_THREADS, Constants.DEFAULT_SERVICE_EVENT_THREADS);
+            queueCapacity = getIntegerProperty(bundleManager, Constants.PROPERTY_SERVICE_EVENT_QUEUE_CAPACITY, Constants.DEFAULT_SERVICE_EVENT_QUEUE_CAPACITY);
+            executor = executorPlugin.createExecutorService("OSGi ServiceEvent Thread", maxThreads);
+            serviceEventExecutor = new OrderedListenerExecutor(executor, queueCapacity, LISTENER_QUEUE_WARNING_TIMEOUT, statistics);
+        }
+    }
+
+    private static int getIntegerProperty(BundleManagerPlugin bundleManager, String key, int defaultValue) {
+        Object value = bundleManager.getProperty(key);
+        int result = value != null ? Integer.parseInt(value.toString().trim()) : defaultValue;
+        return result > 0 ? result : defaultValue;
     }
 
     @Override
     public void stop(StopContext context) {
         super.stop(context);
+        injectedStatistics.getValue().setAsyncEventExecutor(null);
+        bundleEventExecutor.shutdown();
+        frameworkEventExecutor.shutdown();
+        if (serviceEventExecutor != null) {
+            serviceEventExecutor.shutdown();
+            serviceEventExecutor = null;
+        }
         bundleListeners.clear();
         serviceListeners.clear();
+        serviceListenerIndex.clear();
         frameworkListeners.clear();
+        bundleListenerSnapshot = Collections.emptyList();
+        frameworkListenerSnapshot = Collections.emptyList();
+        bundleListenerOwners = Collections.emptyMap();
+        frameworkListenerOwners = Collections.emptyMap();
     }
 
     @Override
@@ -164,6 +209,10 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         return this;
     }
 
+    ServiceStatisticsPlugin getStatisticsPlugin() {
+        return injectedStatistics.getValue();
+    }
+
     void addBundleListener(final AbstractBundleState bundleState, final BundleListener listener) {
         assert listener != null : "Null listener";
         synchronized (bundleListeners) {
@@ -172,8 +221,12 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
                 listeners = new CopyOnWriteArrayList<BundleListener>();
                 bundleListeners.put(bundleState, listeners);
             }
-            if (listeners.contains(listener) == false)
+            if (listeners.contains(listener) == false) {
                 listeners.add(listener);
+                if ((listener instanceof SynchronousBundleListener) == false)
+                    bundleEventExecutor.addListener(listener);
+            }
+            updateBundleListenerSnapshot();
         }
     }
 
@@ -182,20 +235,42 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         synchronized (bundleListeners) {
             List<BundleListener> listeners = bundleListeners.get(bundleState);
             if (listeners != null) {
-                if (listeners.size() > 1)
-                    listeners.remove(listener);
-                else
+                if (listeners.size() > 1) {
+                    if (listeners.remove(listener))
+                        bundleEventExecutor.removeListener(listener);
+                    updateBundleListenerSnapshot();
+                } else {
                     removeBundleListeners(bundleState);
+                }
             }
         }
     }
 
     void removeBundleListeners(final AbstractBundleState bundleState) {
         synchronized (bundleListeners) {
-            bundleListeners.remove(bundleState);
+            List<BundleListener> listeners = bundleListeners.remove(bundleState);
+            if (listeners != null) {
+                updateBundleListenerSnapshot();
+                for (BundleListener listener : listeners) {
+                    bundleEventExecutor.removeListener(listener);
+                }
+            }
         }
     }
 
+    private void updateBundleListenerSnapshot() {
+        List<BundleListener> snapshot = new ArrayList<BundleListener>();
+        Map<BundleListener, AbstractBundleState> owners = new IdentityHashMap<BundleListener, AbstractBundleState>();
+        for (Entry<AbstractBundleState, List<BundleListener>> entry : bundleListeners.entrySet()) {
+            snapshot.addAll(entry.getValue());
+            for (BundleListener listener : entry.getValue()) {
+                owners.put(listener, entry.getKey());
+            }
+        }
+        bundleListenerSnapshot = Collections.unmodifiableList(snapshot);
+        bundleListenerOwners = owners;
+    }
+
     void addFrameworkListener(final AbstractBundleState bundleState, final FrameworkListener listener) {
         assert listener != null : "Null listener";
         synchronized (frameworkListeners) {
@@ -206,6 +281,7 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
             }
             if (listeners.contains(listener) == false)
                 listeners.add(listener);
+            updateFrameworkListenerSnapshot();
         }
     }
 
@@ -214,18 +290,34 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         synchronized (frameworkListeners) {
             List<FrameworkListener> listeners = frameworkListeners.get(bundleState);
             if (listeners != null) {
-                if (listeners.size() > 1)
+                if (listeners.size() > 1) {
                     listeners.remove(listener);
-                else
+                    updateFrameworkListenerSnapshot();
+                } else {
                     removeFrameworkListeners(bundleState);
+                }
             }
         }
     }
 
     void removeFrameworkListeners(final AbstractBundleState bundleState) {
         synchronized (frameworkListeners) {
-            frameworkListeners.remove(bundleState);
+            if (frameworkListeners.remove(bundleState) != null)
+                updateFrameworkListenerSnapshot();
+        }
+    }
+
+    private void updateFrameworkListenerSnapshot() {
+        List<FrameworkListener> snapshot = new ArrayList<FrameworkListener>();
+        Map<FrameworkListener, AbstractBundleState> owners = new IdentityHashMap<FrameworkListener, AbstractBundleState>();
+        for (Entry<AbstractBundleState, List<FrameworkListener>> entry : frameworkListeners.entrySet()) {
+            snapshot.addAll(entry.getValue());
+            for (FrameworkListener listener : entry.getValue()) {
+                owners.put(listener, entry.getKey());
+            }
         }
+        frameworkListenerSnapshot = Collections.unmodifiableList(snapshot);
+        frameworkListenerOwners = owners;
     }
 
     void addServiceListener(final AbstractBundleState bundleState, final ServiceListener listener, final String filterstr) throws InvalidSyntaxException {
@@ -258,6 +350,9 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
 
             // Add the listener to the list
             listeners.add(slreg);
+            serviceListenerIndex.addListener(slreg);
+            if (serviceEventExecutor != null && slreg.isAsynchronousServiceListener())
+                serviceEventExecutor.addListener(listener);
         }
     }
 
@@ -283,6 +378,9 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
                 int index = listeners.indexOf(slreg);
                 if (index >= 0) {
                     slreg = listeners.remove(index);
+                    serviceListenerIndex.removeListener(slreg);
+                    if (serviceEventExecutor != null)
+                        serviceEventExecutor.removeListener(listener);
 
                     // The {@link ListenerHook} 'removed' method is called to provide the hook implementation with information
                     // on newly removed service listeners.
@@ -304,7 +402,15 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
     void removeServiceListeners(final AbstractBundleState bundleState) {
         synchronized (serviceListeners) {
             Collection<ListenerInfo> listenerInfos = getServiceListenerInfos(bundleState);
-            serviceListeners.remove(bundleState);
+            List<ServiceListenerRegistration> listeners = serviceListeners.remove(bundleState);
+            if (listeners != null) {
+                serviceListenerIndex.removeListeners(listeners);
+                if (serviceEventExecutor != null) {
+                    for (ServiceListenerRegistration slreg : listeners) {
+                        serviceEventExecutor.removeListener(slreg.listener);
+                    }
+                }
+            }
 
             // The {@link ListenerHook} 'removed' method is called to provide the hook implementation with information on newly
             // removed service listeners.
@@ -325,21 +431,100 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         if (bundleManager.isFrameworkCreated() == false)
             return Collections.emptyList();
 
-        BundleContext context = injectedSystemContext.getValue();
-        ServiceReference[] srefs = null;
-        try {
-            srefs = context.getServiceReferences(ListenerHook.class.getName(), null);
-        } catch (InvalidSyntaxException e) {
-            // ignore
+        return getServiceHooks().getListenerHooks().getHooks();
+    }
+
+    // The ServiceManagerPlugin depends on this plugin, it cannot be injected
+    private ServiceHooks.Snapshot getServiceHooks() {
+        AbstractBundleContext systemContext = AbstractBundleContext.assertBundleContext(injectedSystemContext.getValue());
+        return systemContext.getFrameworkState().getServiceManagerPlugin().getServiceHooks();
+    }
+
+    /**
+     * Start collecting the asynchronous bundle and framework events that are fired by the current thread.
+     *
+     * Within a batch the collected events are handed to the asynchronous listeners together when the
+     * outermost batch ends. Synchronous listeners
+     * are still called immediately. Batches are only used if {@link Constants#PROPERTY_EVENT_BATCHING} is set.
+     * Every call must be followed by a call to {@link #endEventBatch()}.
+     *
+     * An event that another thread fires for a listener meanwhile must not overtake the events that are held
+     * back for that listener. The held back events are therefore queued before it.
+     */
+    void beginEventBatch() {
+        if (eventBatching == false)
+            return;
+
+        EventBatch batch = eventBatch.get();
+        if (batch == null) {
+            batch = new EventBatch();
+            eventBatch.set(batch);
         }
-        if (srefs == null)
-            return Collections.emptyList();
+        batch.depth++;
+    }
 
-        List<ListenerHook> hooks = new ArrayList<ListenerHook>();
-        for (ServiceReference sref : srefs)
-            hooks.add((ListenerHook) context.getService(sref));
+    /**
+     * End the current event batch and deliver the collected events, if this is the outermost batch
+     */
+    void endEventBatch() {
+        EventBatch batch = eventBatch.get();
+        if (batch == null || --batch.depth > 0)
+            return;
+
+        eventBatch.remove();
+
+        // Every asynchronous listener gets its events in a single delivery
+        synchronized (batchLock) {
+            for (Entry<BundleListener, List<BundleEvent>> entry : batch.bundleEvents.entrySet()) {
+                pendingBundleBatches.remove(entry.getKey());
+                queueBundleEvents(entry.getKey(), entry.getValue());
+            }
+            if (pendingFrameworkBatch == batch) {
+                pendingFrameworkBatch = null;
+                queueFrameworkEvents(batch.frameworkEvents);
+            }
+        }
+    }
+
+    // Queue the events that another batch holds back for the given listener, guarded by the batch lock
+    private void flushBundleEvents(BundleListener listener, EventBatch current) {
+        EventBatch batch = pendingBundleBatches.get(listener);
+        if (batch != null && batch != current) {
+            pendingBundleBatches.remove(listener);
+            queueBundleEvents(listener, batch.bundleEvents.remove(listener));
+        }
+    }
 
-        return Collections.unmodifiableList(hooks);
+    private void queueBundleEvents(final BundleListener listener, final List<BundleEvent> events) {
+        bundleEventExecutor.executeWithoutWaiting(listener, new Runnable() {
+            public void run() {
+                for (BundleEvent event : events) {
+                    deliverBundleEvent(listener, event);
+                }
+            }
+        });
+    }
+
+    // Queue the framework events that another batch holds back, guarded by the batch lock
+    private void flushFrameworkEvents(EventBatch current) {
+        EventBatch batch = pendingFrameworkBatch;
+        if (batch != null && batch != current) {
+            pendingFrameworkBatch = null;
+            queueFrameworkEvents(new ArrayList<BatchedEvent<FrameworkListener, FrameworkEvent>>(batch.frameworkEvents));
+            batch.frameworkEvents.clear();
+        }
+    }
+
+    private void queueFrameworkEvents(final List<BatchedEvent<FrameworkListener, FrameworkEvent>> frameworkEvents) {
+        if (frameworkEvents.isEmpty() == false) {
+            frameworkEventExecutor.execute(new Runnable() {
+                public void run() {
+                    for (BatchedEvent<FrameworkListener, FrameworkEvent> batched : frameworkEvents) {
+                        deliverFrameworkEvent(batched.listeners, batched.event);
+                    }
+                }
+            });
+        }
     }
 
     void fireBundleEvent(final AbstractBundleState bundleState, final int type) {
@@ -354,18 +539,10 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         lockManager.assertNotHeldByCurrentThread();
 
         // Get a snapshot of the current listeners
-        final List<BundleListener> listeners = new ArrayList<BundleListener>();
-        synchronized (bundleListeners) {
-            for (Entry<AbstractBundleState, List<BundleListener>> entry : bundleListeners.entrySet()) {
-                for (BundleListener listener : entry.getValue()) {
-                    listeners.add(listener);
-                }
-            }
-        }
+        final List<BundleListener> listeners = bundleListenerSnapshot;
 
         // Expose the bundleState wrapper not the state itself
         final BundleEvent event = new BundleEventImpl(type, bundleState);
-        final String typeName = ConstantsHelper.bundleEvent(event.getType());
 
         // Nobody is interested
         if (listeners.isEmpty())
@@ -373,33 +550,71 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
 
         // Synchronous listeners first
         for (BundleListener listener : listeners) {
-            try {
-                if (listener instanceof SynchronousBundleListener)
-                    listener.bundleChanged(event);
-            } catch (Throwable th) {
-                LOGGER.warnErrorWhileFiringBundleEvent(th, typeName, bundleState);
+            if (listener instanceof SynchronousBundleListener)
+                deliverBundleEvent(listener, event);
+        }
+
+        // BundleListeners are called with a BundleEvent object when a bundleState has been
+        // installed, resolved, started, stopped, updated, unresolved, or uninstalled
+        if (asyncBundleEvents.contains(type) == false)
+            return;
+
+        EventBatch batch = eventBatch.get();
+        if (batch != null) {
+            synchronized (batchLock) {
+                for (BundleListener listener : listeners) {
+                    if (listener instanceof SynchronousBundleListener)
+                        continue;
+                    flushBundleEvents(listener, batch);
+                    List<BundleEvent> events = batch.bundleEvents.get(listener);
+                    if (events == null) {
+                        events = new ArrayList<BundleEvent>();
+                        batch.bundleEvents.put(listener, events);
+                        pendingBundleBatches.put(listener, batch);
+                    }
+                    events.add(event);
+                }
             }
+            return;
         }
 
-        Runnable runnable = new Runnable() {
-            public void run() {
-                // BundleListeners are called with a BundleEvent object when a bundleState has been
-                // installed, resolved, started, stopped, updated, unresolved, or uninstalled
-                if (asyncBundleEvents.contains(type)) {
+        // The events that other threads hold back for these listeners go first
+        if (eventBatching) {
+            synchronized (batchLock) {
+                if (pendingBundleBatches.isEmpty() == false) {
                     for (BundleListener listener : listeners) {
-                        try {
-                            if (listener instanceof SynchronousBundleListener == false)
-                                listener.bundleChanged(event);
-                        } catch (Throwable th) {
-                            LOGGER.warnErrorWhileFiringBundleEvent(th, typeName, bundleState);
-                        }
+                        flushBundleEvents(listener, null);
                     }
                 }
             }
-        };
+        }
 
-        // Fire the event in a runnable
-        bundleEventExecutor.execute(runnable);
+        // Every asynchronous listener receives its events in order, independent of the other listeners
+        for (final BundleListener listener : listeners) {
+            if (listener instanceof SynchronousBundleListener)
+                continue;
+
+            Runnable runnable = new Runnable() {
+                public void run() {
+                    deliverBundleEvent(listener, event);
+                }
+            };
+            bundleEventExecutor.execute(listener, runnable);
+        }
+    }
+
+    private void deliverBundleEvent(BundleListener listener, BundleEvent event) {
+        ServiceStatisticsPlugin statistics = injectedStatistics.getValue();
+        AbstractBundleState owner = bundleListenerOwners.get(listener);
+        long startNanos = statistics.beginListenerCallback(owner, listener, event);
+        try {
+            listener.bundleChanged(event);
+        } catch (Throwable th) {
+            String typeName = ConstantsHelper.bundleEvent(event.getType());
+            LOGGER.warnErrorWhileFiringBundleEvent(th, typeName, event.getBundle());
+        } finally {
+            statistics.endListenerCallback(owner, listener, event, startNanos);
+        }
     }
 
     void fireFrameworkEvent(final Bundle bundle, final int type, final Throwable th) {
@@ -414,14 +629,7 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         lockManager.assertNotHeldByCurrentThread();
 
         // Get a snapshot of the current listeners
-        final ArrayList<FrameworkListener> listeners = new ArrayList<FrameworkListener>();
-        synchronized (frameworkListeners) {
-            for (Entry<AbstractBundleState, List<FrameworkListener>> entry : frameworkListeners.entrySet()) {
-                for (FrameworkListener listener : entry.getValue()) {
-                    listeners.add(listener);
-                }
-            }
-        }
+        final List<FrameworkListener> listeners = frameworkListenerSnapshot;
 
         final FrameworkEvent event = new FrameworkEventImpl(type, bundle, th);
         final String typeName = ConstantsHelper.frameworkEvent(event.getType());
@@ -441,25 +649,26 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         if (listeners.isEmpty())
             return;
 
+        EventBatch batch = eventBatch.get();
+        if (batch != null) {
+            synchronized (batchLock) {
+                flushFrameworkEvents(batch);
+                batch.frameworkEvents.add(new BatchedEvent<FrameworkListener, FrameworkEvent>(listeners, event));
+                pendingFrameworkBatch = batch;
+            }
+            return;
+        }
+
+        // The framework events that another thread holds back go first
+        if (eventBatching) {
+            synchronized (batchLock) {
+                flushFrameworkEvents(null);
+            }
+        }
+
         Runnable runnable = new Runnable() {
             public void run() {
-                // Call the listeners
-                for (FrameworkListener listener : listeners) {
-                    try {
-                        listener.frameworkEvent(event);
-                    } catch (RuntimeException ex) {
-                        LOGGER.warnErrorWhileFiringEvent(ex, typeName);
-
-                        // The Framework must publish a FrameworkEvent.ERROR if a callback to an
-                        // event listener generates an unchecked exception - except when the callback
-                        // happens while delivering a FrameworkEvent.ERROR
-                        if (type != FrameworkEvent.ERROR) {
-                            fireFrameworkEvent(bundle, FrameworkEvent.ERROR, ex);
-                        }
-                    } catch (Throwable th) {
-                        LOGGER.warnErrorWhileFiringEvent(th, typeName);
-                    }
-                }
+                deliverFrameworkEvent(listeners, event);
             }
         };
 
@@ -467,44 +676,95 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         frameworkEventExecutor.execute(runnable);
     }
 
+    private void deliverFrameworkEvent(List<FrameworkListener> listeners, FrameworkEvent event) {
+        String typeName = ConstantsHelper.frameworkEvent(event.getType());
+        ServiceStatisticsPlugin statistics = injectedStatistics.getValue();
+        for (FrameworkListener listener : listeners) {
+            AbstractBundleState owner = frameworkListenerOwners.get(listener);
+            long startNanos = statistics.beginListenerCallback(owner, listener, event);
+            try {
+                listener.frameworkEvent(event);
+            } catch (RuntimeException ex) {
+                LOGGER.warnErrorWhileFiringEvent(ex, typeName);
+
+                // The Framework must publish a FrameworkEvent.ERROR if a callback to an
+                // event listener generates an unchecked exception - except when the callback
+                // happens while delivering a FrameworkEvent.ERROR
+                if (event.getType() != FrameworkEvent.ERROR) {
+                    fireFrameworkEvent(event.getBundle(), FrameworkEvent.ERROR, ex);
+                }
+            } catch (Throwable th) {
+                LOGGER.warnErrorWhileFiringEvent(th, typeName);
+            } finally {
+                statistics.endListenerCallback(owner, listener, event, startNanos);
+            }
+        }
+    }
+
     void fireServiceEvent(final XBundle bundleState, int type, final ServiceState serviceState) {
+        if (canFireServiceEvents() == false)
+            return;
+
+        // Only the listeners indexed with a matching objectClass are visited
+        ServiceListenerIndex.Snapshot listenerSnapshot = serviceListenerIndex.getSnapshot();
+        deliverServiceEvent(listenerSnapshot.getListeners(serviceState), type, serviceState);
+    }
+
+    /**
+     * Fire a service event of the given type for each of the given services.
+     *
+     * The events are delivered synchronously and in the given order, to a single snapshot of the service listeners.
+     */
+    void fireServiceEvents(final XBundle bundleState, int type, final List<ServiceState> serviceStates) {
+        if (canFireServiceEvents() == false)
+            return;
+
+        // Get a snapshot of the current listeners, only those indexed
+        // with a matching objectClass are visited for a given service
+        ServiceListenerIndex.Snapshot listenerSnapshot = serviceListenerIndex.getSnapshot();
+        for (ServiceState serviceState : serviceStates) {
+            deliverServiceEvent(listenerSnapshot.getListeners(serviceState), type, serviceState);
+        }
+    }
+
+    private boolean canFireServiceEvents() {
 
         // Do nothing it the framework is not active
         BundleManagerPlugin bundleManager = injectedBundleManager.getValue();
         if (bundleManager.isFrameworkCreated() == false)
-            return;
+            return false;
 
         // Assert that the framework lock is not held by the current thread
         LockManagerPlugin lockManager = injectedLockManager.getValue();
         lockManager.assertNotHeldByCurrentThread();
+        return true;
+    }
 
-        // Get a snapshot of the current listeners
-        List<ServiceListenerRegistration> listenerRegs = new ArrayList<ServiceListenerRegistration>();
-        synchronized (serviceListeners) {
-            for (Entry<AbstractBundleState, List<ServiceListenerRegistration>> entry : serviceListeners.entrySet()) {
-                for (ServiceListenerRegistration listener : entry.getValue()) {
-                    BundleContext context = listener.getBundleContext();
-                    if (context != null)
-                        listenerRegs.add(listener);
-                }
-            }
-        }
+    private void deliverServiceEvent(List<ServiceListenerRegistration> listenerRegs, int type, final ServiceState serviceState) {
 
         // Expose the wrapper not the state itself
         ServiceEvent event = new ServiceEventImpl(type, serviceState);
-        String typeName = ConstantsHelper.serviceEvent(event.getType());
-        LOGGER.tracef("Service %s: %s", typeName, serviceState);
+        if (LOGGER.isTraceEnabled())
+            LOGGER.tracef("Service %s: %s", ConstantsHelper.serviceEvent(type), serviceState);
 
         // Call the registered event hooks
-        BundleContext systemContext = injectedSystemContext.getValue();
-        listenerRegs = processEventHooks(systemContext, listenerRegs, event);
+        listenerRegs = processEventHooks(listenerRegs, event);
 
         // Nobody is interested
         if (listenerRegs.isEmpty())
             return;
 
         // Call the listeners. All service events are synchronously delivered
-        for (ServiceListenerRegistration listenerReg : listenerRegs) {
+        // The listener lists are random access, avoid the iterator for every event
+        ServiceStatisticsPlugin statistics = injectedStatistics.getValue();
+        Set<String> modifiedKeys = null;
+        ServiceEvent endMatchEvent = null;
+        for (int i = 0; i < listenerRegs.size(); i++) {
+            ServiceListenerRegistration listenerReg = listenerRegs.get(i);
+
+            // The listener's bundle has been uninstalled
+            if (listenerReg.getBundleContext() == null)
+                continue;
 
             // Service events must only be delivered to event listeners which can validly cast the event
             if (listenerReg.isAllServiceListener() == false) {
@@ -522,28 +782,79 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
             }
 
             try {
-                String filterstr = listenerReg.filter.toString();
                 if (listenerReg.filter.match(serviceState)) {
-                    listenerReg.listener.serviceChanged(event);
+                    deliverServiceEvent(listenerReg, event, statistics);
                 }
 
                 // The MODIFIED_ENDMATCH event is synchronously delivered after the service properties have been modified.
                 // This event is only delivered to listeners which were added with a non-null filter where
                 // the filter matched the service properties prior to the modification but the filter does
                 // not match the modified service properties.
-                else if (filterstr != null && ServiceEvent.MODIFIED == event.getType()) {
-                    if (listenerReg.filter.match(serviceState.getPreviousProperties())) {
-                        event = new ServiceEventImpl(ServiceEvent.MODIFIED_ENDMATCH, serviceState);
-                        listenerReg.listener.serviceChanged(event);
+                else if (listenerReg.hasFilter() && ServiceEvent.MODIFIED == type) {
+                    // The filter can only have matched before, if it refers to a modified property
+                    if (modifiedKeys == null)
+                        modifiedKeys = serviceState.getModifiedKeys();
+                    if (listenerReg.refersToAny(modifiedKeys) == false)
+                        continue;
+
+                    // The previous properties are already case insensitive
+                    if (listenerReg.filter.matchCase(serviceState.getPreviousProperties())) {
+                        if (endMatchEvent == null)
+                            endMatchEvent = new ServiceEventImpl(ServiceEvent.MODIFIED_ENDMATCH, serviceState);
+                        deliverServiceEvent(listenerReg, endMatchEvent, statistics);
                     }
                 }
             } catch (Throwable th) {
-                LOGGER.warnErrorWhileFiringServiceEvent(th, typeName, serviceState);
+                LOGGER.warnErrorWhileFiringServiceEvent(th, ConstantsHelper.serviceEvent(type), serviceState);
             }
         }
     }
 
-    private List<ServiceListenerRegistration> processEventHooks(BundleContext systemContext, List<ServiceListenerRegistration> listeners, final ServiceEvent event) {
+    private void deliverServiceEvent(final ServiceListenerRegistration listenerReg, final ServiceEvent event, ServiceStatisticsPlugin statistics) {
+
+        // The filter has already been matched, only the call is deferred
+        OrderedListenerExecutor executor = serviceEventExecutor;
+        if (executor != null && listenerReg.isAsynchronousServiceListener()) {
+            executor.execute(listenerReg.listener, new Runnable() {
+                public void run() {
+                    if (listenerReg.getBundleContext() == null)
+                        return;
+                    ServiceStatisticsPlugin statistics = injectedStatistics.getValue();
+                    AbstractBundleState owner = listenerReg.getBundleState();
+                    long startNanos = statistics.beginListenerCallback(owner, listenerReg.listener, event);
+                    try {
+                        listenerReg.listener.serviceChanged(event);
+                    } catch (Throwable th) {
+                        LOGGER.warnErrorWhileFiringServiceEvent(th, ConstantsHelper.serviceEvent(event.getType()), event.getServiceReference());
+                    } finally {
+                        statistics.endListenerCallback(owner, listenerReg.listener, event, startNanos);
+                    }
+                }
+            });
+            return;
+        }
+
+        AbstractBundleState owner = listenerReg.getBundleState();
+        long startNanos = statistics.beginListenerCallback(owner, listenerReg.listener, event);
+        try {
+            listenerReg.listener.serviceChanged(event);
+        } finally {
+            statistics.endListenerCallback(owner, listenerReg.listener, event, startNanos);
+        }
+        if (startNanos != 0 && statistics.isEnabled())
+            statistics.recordListenerDispatch(startNanos);
+    }
+
+    private List<ServiceListenerRegistration> processEventHooks(List<ServiceListenerRegistration> listeners, final ServiceEvent event) {
+        // The calling order of the hooks is defined by the reversed compareTo ordering of their Service
+        // Reference objects. That is, the service with the highest ranking number is called first.
+        ServiceHooks.HookList<EventHook> hookList = getServiceHooks().getEventHooks();
+        if (hookList.isEmpty())
+            return listeners;
+
+        ServiceStatisticsPlugin statistics = injectedStatistics.getValue();
+        long startNanos = statistics.isEnabled() ? System.nanoTime() : 0;
+
         // Collect the BundleContexts
         Collection<BundleContext> contexts = new HashSet<BundleContext>();
         for (ServiceListenerRegistration listener : listeners) {
@@ -551,11 +862,11 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
             if (context != null)
                 contexts.add(context);
         }
+        int contextCount = contexts.size();
         contexts = new RemoveOnlyCollection<BundleContext>(contexts);
 
         // Call the registered event hooks
-        List<EventHook> eventHooks = getEventHooks(systemContext);
-        for (EventHook hook : eventHooks) {
+        for (EventHook hook : hookList.getHooks()) {
             try {
                 hook.event(event, contexts);
             } catch (Exception ex) {
@@ -563,36 +874,23 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
             }
         }
 
+        // The hooks did not filter any listener
+        List<ServiceListenerRegistration> result = listeners;
+
         // Remove the listeners that have been filtered by the EventHooks
-        if (contexts.size() != listeners.size()) {
-            Iterator<ServiceListenerRegistration> it = listeners.iterator();
-            while (it.hasNext()) {
-                ServiceListenerRegistration slreg = it.next();
-                if (contexts.contains(slreg.getBundleContext()) == false)
-                    it.remove();
+        // The given list may be shared between events, the result is a new list
+        if (contexts.size() < contextCount) {
+            result = new ArrayList<ServiceListenerRegistration>();
+            for (ServiceListenerRegistration slreg : listeners) {
+                if (contexts.contains(slreg.getBundleContext()))
+                    result.add(slreg);
             }
         }
-        return listeners;
-    }
 
-    private List<EventHook> getEventHooks(BundleContext systemContext) {
-        List<EventHook> hooks = new ArrayList<EventHook>();
-        ServiceReference[] srefs = null;
-        try {
-            srefs = systemContext.getServiceReferences(EventHook.class.getName(), null);
-        } catch (InvalidSyntaxException e) {
-            // ignore
-        }
-        if (srefs != null) {
-            // The calling order of the hooks is defined by the reversed compareTo ordering of their Service
-            // Reference objects. That is, the service with the highest ranking number is called first.
-            List<ServiceReference> sortedRefs = new ArrayList<ServiceReference>(Arrays.asList(srefs));
-            Collections.reverse(sortedRefs);
+        if (statistics.isEnabled())
+            statistics.recordEventHooks(startNanos);
 
-            for (ServiceReference sref : sortedRefs)
-                hooks.add((EventHook) systemContext.getService(sref));
-        }
-        return hooks;
+        return result;
     }
 
     /**
@@ -600,9 +898,13 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
      */
     static class ServiceListenerRegistration {
 
+        private static final String OBJECTCLASS_KEY = Constants.OBJECTCLASS.toLowerCase(Locale.ENGLISH);
+
         private AbstractBundleState bundleState;
         private ServiceListener listener;
         private Filter filter;
+        private String objectClass;
+        private Set<String> filterKeys;
         private ListenerInfo info;
 
         // Any access control context
@@ -615,6 +917,11 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
             this.bundleState = bundleState;
             this.listener = listener;
             this.filter = filter;
+            if (filter != NoFilter.INSTANCE) {
+                String filterstr = filter.toString();
+                this.objectClass = FilterTerms.getEqualityTerms(filterstr).get(OBJECTCLASS_KEY);
+                this.filterKeys = FilterTerms.getAttributes(filterstr);
+            }
             this.info = new ListenerInfoImpl(this);
             if (System.getSecurityManager() != null)
                 accessControlContext = AccessController.getContext();
@@ -628,6 +935,35 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
             return bundleState.getBundleContext();
         }
 
+        /**
+         * Get the objectClass that every service matching the filter must have
+         *
+         * @return The class name or null if the filter does not require one
+         */
+        String getObjectClass() {
+            return objectClass;
+        }
+
+        /**
+         * True if the listener was added with a non-null filter
+         */
+        boolean hasFilter() {
+            return filter != NoFilter.INSTANCE;
+        }
+
+        /**
+         * True if the filter may refer to any of the given lower case keys
+         */
+        boolean refersToAny(Set<String> keys) {
+            if (filterKeys == null)
+                return true;
+            for (String key : keys) {
+                if (filterKeys.contains(key))
+                    return true;
+            }
+            return false;
+        }
+
         ListenerInfo getListenerInfo() {
             return info;
         }
@@ -636,6 +972,10 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
             return (listener instanceof AllServiceListener);
         }
 
+        boolean isAsynchronousServiceListener() {
+            return (listener instanceof AsynchronousServiceListener);
+        }
+
         @Override
         public int hashCode() {
             return listener.hashCode();
@@ -710,6 +1050,27 @@ final class FrameworkEventsPlugin extends AbstractPluginService<FrameworkEventsP
         }
     }
 
+    /**
+     * The asynchronous events fired by a thread within a batch. The events are guarded by the batch lock.
+     */
+    private static final class EventBatch {
+
+        private int depth;
+        private final Map<BundleListener, List<BundleEvent>> bundleEvents = new LinkedHashMap<BundleListener, List<BundleEvent>>();
+        private final List<BatchedEvent<FrameworkListener, FrameworkEvent>> frameworkEvents = new ArrayList<BatchedEvent<FrameworkListener, FrameworkEvent>>();
+    }
+
+    private static final class BatchedEvent<L, E> {
+
+        private final List<L> listeners;
+        private final E event;
+
+        BatchedEvent(List<L> listeners, E event) {
+            this.listeners = listeners;
+            this.event = event;
+        }
+    }
+
     static class FrameworkEventImpl extends FrameworkEvent {
 
         private static final long serialVersionUID = 6505331543651318189L;
@@ -204,4 +204,32 @@ public interface FrameworkLogger extends BasicLogger {
     @LogMessage(level = ERROR)
     @Message(id = 11037, value = "Cannot install initial bundle: %s")
     void errorStateCannotInstallInitialBundle(@Cause Throwable cause, String source);
+
+    @LogMessage(level = WARN)
+    @Message(id = 11038, value = "Cannot register service statistics MBean: %s")
+    void warnCannotRegisterStatisticsMBean(@Cause Throwable cause, String objectName);
+
+    @LogMessage(level = ERROR)
+    @Message(id = 11039, value = "Service class tracker failed: %s")
+    void errorServiceClassTrackerFailed(@Cause Throwable cause, Object tracker);
+
+    @LogMessage(level = WARN)
+    @Message(id = 11040, value = "Event queue of listener %s is full for more than %d ms, capacity: %d. Waiting for the listener to catch up")
+    void warnListenerQueueFull(Object listener, long millis, int capacity);
+
+    @LogMessage(level = WARN)
+    @Message(id = 11041, value = "Framework executor not available: %s")
+    void warnExecutorTypeNotAvailable(String type);
+
+    @LogMessage(level = WARN)
+    @Message(id = 11042, value = "Slow listener %s of bundle %s took %d ms to process: %s")
+    void warnSlowListener(Object listener, Object bundle, long millis, Object event);
+
+    @LogMessage(level = WARN)
+    @Message(id = 11043, value = "Cannot acquire %s lock within %d ms: %s")
+    void warnCannotAquireLock(String lock, long millis, Object state);
+
+    @LogMessage(level = WARN)
+    @Message(id = 11044, value = "Slow listener %s of bundle %s is processing for %d ms: %s [thread=%s]")
+    void warnSlowListenerInProgress(Object listener, Object bundle, long millis, Object event, Thread thread);
 }
@@ -301,4 +301,13 @@ public interface FrameworkMessages {
 
     @Message(id = 11281, value = "Framework lock held by current thread")
     IllegalStateException frameworkLockHeldByCurrentThread(@Cause Throwable cause);
+
+    @Message(id = 11282, value = "Service properties contain case variants of the same key: %s, %s")
+    IllegalArgumentException illegalArgumentCaseVariantPropertyKeys(String key, String otherKey);
+
+    @Message(id = 11283, value = "Service batch already registered")
+    IllegalStateException illegalStateServiceBatchRegistered();
+
+    @Message(id = 11284, value = "Cannot upgrade shared lock to exclusive lock: %s")
+    IllegalStateException illegalStateLockUpgrade(String item);
 }
@@ -0,0 +1,114 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jboss.osgi.framework.ServiceStatistics.LatencyHistogram;
+
+/**
+ * Records durations in a {@link LatencyHistogram}.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 25-Oct-2012
+ */
+final class Histogram {
+
+    private static final int BUCKETS = 24;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        long micros = Math.max(nanos, 0) / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && maxNanos.compareAndSet(max, nanos) == false)
+            max = maxNanos.get();
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    void reset() {
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+    }
+
+    LatencyHistogram snapshot() {
+        long[] values = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            values[i] = buckets.get(i);
+        return new Snapshot(count.get(), totalNanos.get(), maxNanos.get(), values);
+    }
+
+    private static final class Snapshot implements LatencyHistogram {
+
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long[] buckets;
+
+        Snapshot(long count, long totalNanos, long maxNanos, long[] buckets) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        @Override
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "LatencyHistogram[count=" + count + ",total=" + totalNanos + "ns,max=" + maxNanos + "ns]";
+        }
+    }
+}
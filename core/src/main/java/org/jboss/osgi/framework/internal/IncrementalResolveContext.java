@@ -0,0 +1,101 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.HostedCapability;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * A {@link ResolveContext} that treats the existing wirings as fixed.
+ *
+ * If a package or bundle requirement can be satisfied by a resource that is already resolved, only those providers
+ * are offered to the resolver. The resolver then does not explore the requirements of unresolved providers, so that
+ * the work depends on the subgraph that is reachable from the new resources rather than on the number of installed
+ * resources. Providers of the other namespaces are passed through unchanged.
+ *
+ * Without the unresolved alternatives the resolver cannot backtrack to them, e.g. to solve a uses conflict.
+ * The caller must retry with the original context if the incremental resolve fails.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+final class IncrementalResolveContext extends ResolveContext {
+
+    private final ResolveContext delegate;
+    private final Map<Resource, Wiring> wirings;
+
+    IncrementalResolveContext(ResolveContext delegate) {
+        this.delegate = delegate;
+        this.wirings = delegate.getWirings();
+    }
+
+    @Override
+    public Collection<Resource> getMandatoryResources() {
+        return delegate.getMandatoryResources();
+    }
+
+    @Override
+    public Collection<Resource> getOptionalResources() {
+        return delegate.getOptionalResources();
+    }
+
+    @Override
+    public List<Capability> findProviders(Requirement requirement) {
+        List<Capability> providers = delegate.findProviders(requirement);
+        String namespace = requirement.getNamespace();
+        if (providers.size() < 2 || !(PackageNamespace.PACKAGE_NAMESPACE.equals(namespace) || BundleNamespace.BUNDLE_NAMESPACE.equals(namespace)))
+            return providers;
+
+        List<Capability> resolved = new ArrayList<Capability>(providers.size());
+        for (Capability cap : providers) {
+            if (wirings.containsKey(cap.getResource()))
+                resolved.add(cap);
+        }
+        return resolved.isEmpty() ? providers : resolved;
+    }
+
+    @Override
+    public int insertHostedCapability(List<Capability> capabilities, HostedCapability hostedCapability) {
+        return delegate.insertHostedCapability(capabilities, hostedCapability);
+    }
+
+    @Override
+    public boolean isEffective(Requirement requirement) {
+        return delegate.isEffective(requirement);
+    }
+
+    @Override
+    public Map<Resource, Wiring> getWirings() {
+        return wirings;
+    }
+}
@@ -70,6 +70,8 @@ public interface InternalServices {
     ServiceName NATIVE_CODE_PLUGIN = INTERNAL_SERVICE_BASE.append("NativeCode");
     /** The {@link ServiceManagerPlugin} service name */
     ServiceName SERVICE_MANAGER_PLUGIN = INTERNAL_SERVICE_BASE.append("ServiceManager");
+    /** The {@link ServiceStatisticsPlugin} service name */
+    ServiceName SERVICE_STATISTICS_PLUGIN = INTERNAL_SERVICE_BASE.append("ServiceStatistics");
     /** The service name for the system {@link Bundle} */
     ServiceName SYSTEM_BUNDLE = INTERNAL_SERVICE_BASE.append("SystemBundle");
     /** The service name for the system {@link BundleContext} */
@@ -25,24 +25,66 @@ package org.jboss.osgi.framework.internal;
 import static org.jboss.osgi.framework.internal.FrameworkLogger.LOGGER;
 import static org.jboss.osgi.framework.internal.FrameworkMessages.MESSAGES;
 
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.jboss.msc.service.ServiceBuilder;
 import org.jboss.msc.service.ServiceTarget;
 import org.jboss.msc.service.ServiceController.Mode;
+import org.jboss.osgi.framework.LockStatistics;
+import org.jboss.osgi.framework.internal.AbstractBundleState.BundleLock;
+import org.jboss.osgi.framework.internal.AbstractBundleState.BundleLock.Method;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 
 /**
  * The plugin for framework locks.
- * 
+ *
+ * The framework lock is at the root, below it is the read/write lock for the environment.
+ * The environment lock implicitly holds the framework lock in shared mode, so that the
+ * exclusive framework lock still excludes all other framework operations.
+ *
+ * A thread that holds a lock in shared mode cannot upgrade it to an exclusive lock, which would allow deadlocks.
+ *
+ * The plugin also collects the {@link LockStatistics} of its own locks and of the {@link BundleLock}s.
+ * These are always on, a lock operation records two timestamps and the histogram counters.
+ *
  * @author thomas.diesler@jboss.com
  * @since 15-Aug-2012
  */
-final class LockManagerPlugin extends AbstractPluginService<LockManagerPlugin> {
+final class LockManagerPlugin extends AbstractPluginService<LockManagerPlugin> implements LockStatistics {
+
+    static final long DEFAULT_LOCK_TIMEOUT = 30;
 
-    private final ReentrantLock frameworkLock = new ReentrantLock();
+    private static final String ENVIRONMENT = "environment";
+
+    enum LockMode {
+        SHARED, EXCLUSIVE
+    }
+
+    private final ObservableLock frameworkLock = new ObservableLock();
+    private final LockMetrics frameworkMetrics = new LockMetrics();
+    private final ObservableLock environmentLock = new ObservableLock();
+    private final LockMetrics environmentMetrics = new LockMetrics();
+    private final Map<Method, LockMetrics> bundleLockMetrics = new EnumMap<Method, LockMetrics>(Method.class);
+    private final ConcurrentMap<BundleLock, String> heldBundleLocks = new ConcurrentHashMap<BundleLock, String>();
     private RuntimeException lastLockAquisition;
+    private long frameworkLockNanos;
+    private ServiceRegistration registration;
+    private ObjectName objectName;
 
     static void addService(ServiceTarget serviceTarget) {
         LockManagerPlugin service = new LockManagerPlugin();
@@ -52,6 +94,9 @@ final class LockManagerPlugin extends AbstractPluginService<LockManagerPlugin> {
     }
 
     private LockManagerPlugin() {
+        for (Method method : Method.values()) {
+            bundleLockMetrics.put(method, new LockMetrics());
+        }
     }
 
     @Override
@@ -59,37 +104,260 @@ final class LockManagerPlugin extends AbstractPluginService<LockManagerPlugin> {
         return this;
     }
 
-    ReentrantLock getFrameworkLock() {
+    ReentrantReadWriteLock getFrameworkLock() {
         return frameworkLock;
     }
 
+    /**
+     * Aquire the framework lock in exclusive mode, which excludes every other lock holder
+     */
     void aquireFrameworkLock() throws TimeoutException {
-        aquireFrameworkLock(30, TimeUnit.SECONDS);
+        aquireFrameworkLock(DEFAULT_LOCK_TIMEOUT, TimeUnit.SECONDS);
     }
 
     void aquireFrameworkLock(long timeout, TimeUnit unit) throws TimeoutException {
-        try {
-            LOGGER.tracef("Aquire framework lock");
-            if (!frameworkLock.tryLock(timeout, unit)) {
-                throw MESSAGES.cannotAquireFrameworkLock();
-            }
-            if (LOGGER.isDebugEnabled()) {
-                lastLockAquisition = new RuntimeException();
-            }
-        } catch (InterruptedException ex) {
+        if (frameworkLock.isWriteLockedByCurrentThread() == false && frameworkLock.getReadHoldCount() > 0)
+            throw MESSAGES.illegalStateLockUpgrade("framework");
+        LOGGER.tracef("Aquire framework lock");
+        long startNanos = System.nanoTime();
+        boolean locked = tryLock(frameworkLock.writeLock(), timeout, unit);
+        frameworkMetrics.recordWait(startNanos, locked);
+        if (!locked) {
+            LOGGER.warnCannotAquireLock("framework", unit.toMillis(timeout), getLockState(frameworkLock));
             throw MESSAGES.cannotAquireFrameworkLock();
         }
+        if (frameworkLock.getWriteHoldCount() == 1) {
+            frameworkLockNanos = System.nanoTime();
+        }
+        if (LOGGER.isDebugEnabled()) {
+            lastLockAquisition = new RuntimeException();
+        }
     }
 
     void releaseFrameworkLock() {
         LOGGER.tracef("Release framework lock");
         lastLockAquisition = null;
-        frameworkLock.unlock();
+        if (frameworkLock.getWriteHoldCount() == 1) {
+            frameworkMetrics.recordHold(frameworkLockNanos);
+        }
+        frameworkLock.writeLock().unlock();
+    }
+
+    /**
+     * Lock the environment in the given mode, which also holds the framework lock in shared mode
+     *
+     * @return The time at which the lock was obtained, which must be passed to {@link #unlockEnvironment(LockMode, long)}
+     */
+    long lockEnvironment(LockMode mode) throws TimeoutException {
+        return lockEnvironment(mode, DEFAULT_LOCK_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    long lockEnvironment(LockMode mode, long timeout, TimeUnit unit) throws TimeoutException {
+        if (mode == LockMode.EXCLUSIVE && environmentLock.isWriteLockedByCurrentThread() == false && environmentLock.getReadHoldCount() > 0)
+            throw MESSAGES.illegalStateLockUpgrade(ENVIRONMENT);
+
+        long startNanos = System.nanoTime();
+        long deadline = startNanos + unit.toNanos(timeout);
+        boolean locked = tryLock(frameworkLock.readLock(), timeout, unit);
+        frameworkMetrics.recordWait(startNanos, locked);
+        if (!locked) {
+            LOGGER.warnCannotAquireLock("framework", unit.toMillis(timeout), getLockState(frameworkLock));
+            throw MESSAGES.cannotAquireFrameworkLock();
+        }
+        LOGGER.tracef("Aquire %s lock on: %s", mode, ENVIRONMENT);
+        long environmentNanos = System.nanoTime();
+        locked = tryLock(getEnvironmentLock(mode), Math.max(0, deadline - environmentNanos), TimeUnit.NANOSECONDS);
+        environmentMetrics.recordWait(environmentNanos, locked);
+        if (!locked) {
+            frameworkLock.readLock().unlock();
+            LOGGER.warnCannotAquireLock(ENVIRONMENT, unit.toMillis(timeout), getLockState(environmentLock));
+            throw MESSAGES.cannotAquireFrameworkLock();
+        }
+        return System.nanoTime();
+    }
+
+    void unlockEnvironment(LockMode mode, long lockNanos) {
+        LOGGER.tracef("Release %s lock on: %s", mode, ENVIRONMENT);
+        environmentMetrics.recordHold(lockNanos);
+        getEnvironmentLock(mode).unlock();
+        frameworkLock.readLock().unlock();
+    }
+
+    private Lock getEnvironmentLock(LockMode mode) {
+        return mode == LockMode.EXCLUSIVE ? environmentLock.writeLock() : environmentLock.readLock();
+    }
+
+    LockMetrics getBundleLockMetrics(Method method) {
+        return bundleLockMetrics.get(method);
+    }
+
+    void bundleLockAquired(Object bundle, BundleLock lock) {
+        heldBundleLocks.put(lock, String.valueOf(bundle));
+    }
+
+    void bundleLockReleased(BundleLock lock) {
+        heldBundleLocks.remove(lock);
+    }
+
+    /**
+     * Register the statistics with the system bundle and optionally with the platform MBeanServer
+     */
+    void registerStatisticsService(BundleContext systemContext, boolean jmxEnabled) {
+        registration = systemContext.registerService(LockStatistics.class.getName(), this, null);
+        if (jmxEnabled) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName oname = new ObjectName(OBJECT_NAME);
+                server.registerMBean(new StandardMBean(this, LockStatistics.class, true), oname);
+                objectName = oname;
+            } catch (Exception ex) {
+                LOGGER.warnCannotRegisterStatisticsMBean(ex, OBJECT_NAME);
+            }
+        }
+    }
+
+    void unregisterStatisticsService() {
+        if (registration != null) {
+            registration.unregister();
+            registration = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception ex) {
+                LOGGER.debugf(ex, "Cannot unregister: %s", objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public Map<String, LockTime> getLockTimes() {
+        Map<String, LockTime> result = new HashMap<String, LockTime>();
+        addLockTime(result, "framework", frameworkMetrics);
+        addLockTime(result, ENVIRONMENT, environmentMetrics);
+        for (Entry<Method, LockMetrics> entry : bundleLockMetrics.entrySet()) {
+            addLockTime(result, "bundle." + entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private static void addLockTime(Map<String, LockTime> result, String name, LockMetrics metrics) {
+        if (metrics.isUsed())
+            result.put(name, metrics.snapshot());
+    }
+
+    @Override
+    public Map<String, LockState> getLockStates() {
+        Map<String, LockState> result = new HashMap<String, LockState>();
+        addLockState(result, "framework", getLockState(frameworkLock));
+        addLockState(result, ENVIRONMENT, getLockState(environmentLock));
+        for (Entry<BundleLock, String> entry : heldBundleLocks.entrySet()) {
+            BundleLock lock = entry.getKey();
+            Thread owner = lock.getOwnerThread();
+            Method method = lock.getOperation();
+            String operation = method != null ? method.toString() : null;
+            addLockState(result, entry.getValue(), new LockStateSnapshot(owner, operation, 0, lock.getQueueLength()));
+        }
+        return result;
+    }
+
+    private static void addLockState(Map<String, LockState> result, String name, LockStateSnapshot state) {
+        if (state.isActive())
+            result.put(name, state);
+    }
+
+    private static LockStateSnapshot getLockState(ObservableLock lock) {
+        Thread owner = lock.getOwnerThread();
+        int readers = lock.getReadLockCount();
+        String operation = null;
+        if (owner != null || readers > 0)
+            operation = (owner != null ? LockMode.EXCLUSIVE : LockMode.SHARED).toString();
+        return new LockStateSnapshot(owner, operation, readers, lock.getQueueLength());
+    }
+
+    @Override
+    public void reset() {
+        frameworkMetrics.reset();
+        environmentMetrics.reset();
+        for (LockMetrics metrics : bundleLockMetrics.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * True if the current thread holds the framework lock or the environment lock
+     */
+    boolean isHeldByCurrentThread() {
+        return frameworkLock.isWriteLockedByCurrentThread() || frameworkLock.getReadHoldCount() > 0;
     }
 
     void assertNotHeldByCurrentThread() {
-        if (frameworkLock.isHeldByCurrentThread()) {
+        if (isHeldByCurrentThread()) {
             throw MESSAGES.frameworkLockHeldByCurrentThread(lastLockAquisition);
         }
     }
+
+    private boolean tryLock(Lock lock, long timeout, TimeUnit unit) {
+        try {
+            return lock.tryLock(timeout, unit);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * A read/write lock that exposes its exclusive owner
+     */
+    static final class ObservableLock extends ReentrantReadWriteLock {
+
+        Thread getOwnerThread() {
+            return getOwner();
+        }
+    }
+
+    private static final class LockStateSnapshot implements LockState {
+
+        private final String owner;
+        private final String operation;
+        private final int sharedCount;
+        private final int queueLength;
+
+        LockStateSnapshot(Thread owner, String operation, int sharedCount, int queueLength) {
+            this.owner = owner != null ? owner.getName() : null;
+            this.operation = operation;
+            this.sharedCount = sharedCount;
+            this.queueLength = queueLength;
+        }
+
+        boolean isActive() {
+            return owner != null || sharedCount > 0 || queueLength > 0;
+        }
+
+        @Override
+        public String getOwner() {
+            return owner;
+        }
+
+        @Override
+        public String getOperation() {
+            return operation;
+        }
+
+        @Override
+        public int getSharedCount() {
+            return sharedCount;
+        }
+
+        @Override
+        public int getQueueLength() {
+            return queueLength;
+        }
+
+        @Override
+        public String toString() {
+            return "LockState[owner=" + owner + ",operation=" + operation + ",shared=" + sharedCount + ",queue=" + queueLength + "]";
+        }
+    }
 }
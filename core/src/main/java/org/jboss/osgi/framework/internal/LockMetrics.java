@@ -0,0 +1,97 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.osgi.framework.LockStatistics.LockTime;
+import org.jboss.osgi.framework.ServiceStatistics.LatencyHistogram;
+
+/**
+ * Records the wait and hold times of a lock.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+final class LockMetrics {
+
+    private final Histogram waitTime = new Histogram();
+    private final Histogram holdTime = new Histogram();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    void recordWait(long startNanos, boolean aquired) {
+        waitTime.record(System.nanoTime() - startNanos);
+        if (aquired == false)
+            timeouts.incrementAndGet();
+    }
+
+    void recordHold(long startNanos) {
+        holdTime.record(System.nanoTime() - startNanos);
+    }
+
+    boolean isUsed() {
+        return waitTime.getCount() > 0;
+    }
+
+    void reset() {
+        waitTime.reset();
+        holdTime.reset();
+        timeouts.set(0);
+    }
+
+    LockTime snapshot() {
+        return new LockTimeSnapshot(waitTime.snapshot(), holdTime.snapshot(), timeouts.get());
+    }
+
+    private static final class LockTimeSnapshot implements LockTime {
+
+        private final LatencyHistogram waitTime;
+        private final LatencyHistogram holdTime;
+        private final long timeouts;
+
+        LockTimeSnapshot(LatencyHistogram waitTime, LatencyHistogram holdTime, long timeouts) {
+            this.waitTime = waitTime;
+            this.holdTime = holdTime;
+            this.timeouts = timeouts;
+        }
+
+        @Override
+        public LatencyHistogram getWaitTime() {
+            return waitTime;
+        }
+
+        @Override
+        public LatencyHistogram getHoldTime() {
+            return holdTime;
+        }
+
+        @Override
+        public long getTimeoutCount() {
+            return timeouts;
+        }
+
+        @Override
+        public String toString() {
+            return "LockTime[wait=" + waitTime + ",hold=" + holdTime + ",timeouts=" + timeouts + "]";
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.jboss.osgi.framework.internal.FrameworkLogger.LOGGER;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers asynchronous events to listeners on a bounded executor.
+ *
+ * Every listener has its own queue, so that the events for a given listener are delivered one at a time and
+ * in the order they were submitted, while different listeners are called in parallel. A slow listener only
+ * delays its own events.
+ *
+ * A listener queue holds a bounded number of events. Events are never dropped. When the queue is full,
+ * the submitter waits until the listener has caught up, which throttles a producer to the pace of its slowest
+ * listener. A submitter that waits longer than the warning timeout logs a warning and keeps waiting.
+ * Threads of this executor never wait, their events are queued beyond the capacity, so that a listener
+ * that fires events cannot deadlock the delivery. The same applies to events that are queued without waiting.
+ *
+ * Listeners must be added before events are submitted for them. Events for a listener that is unknown
+ * or has been removed are ignored.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 26-Oct-2012
+ */
+final class OrderedListenerExecutor {
+
+    // The number of events that a listener queue delivers before it yields its thread
+    private static final int DRAIN_LIMIT = 32;
+
+    private static final ThreadLocal<OrderedListenerExecutor> deliveryThread = new ThreadLocal<OrderedListenerExecutor>();
+
+    // Modifications are guarded by the map itself, lookups are not
+    private final ConcurrentMap<Object, ListenerQueue> queues = new ConcurrentHashMap<Object, ListenerQueue>();
+    private final ExecutorService executor;
+    private final ServiceStatisticsPlugin statistics;
+    private final int queueCapacity;
+    private final long warningTimeout;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /**
+     * @param executor The executor that runs the listener queues, it is shut down with this executor
+     * @param queueCapacity The maximum number of queued events per listener
+     * @param warningTimeout The time in milliseconds after which a submitter that waits for a full queue logs a warning
+     */
+    OrderedListenerExecutor(ExecutorService executor, int queueCapacity, long warningTimeout, ServiceStatisticsPlugin statistics) {
+        assert executor != null : "Null executor";
+        assert queueCapacity > 0 : "Invalid queueCapacity";
+        assert warningTimeout > 0 : "Invalid warningTimeout";
+        this.executor = executor;
+        this.statistics = statistics;
+        this.queueCapacity = queueCapacity;
+        this.warningTimeout = warningTimeout;
+    }
+
+    /**
+     * Create the queue of a listener. A listener that is added more than once must be removed as often.
+     */
+    void addListener(Object listener) {
+        assert listener != null : "Null listener";
+        synchronized (queues) {
+            ListenerQueue queue = queues.get(listener);
+            if (queue == null) {
+                queue = new ListenerQueue(listener);
+                queues.put(listener, queue);
+            }
+            // A queue that still drains the events of a previous registration is reused, which keeps the order
+            queue.registrations++;
+            queue.closed = false;
+        }
+    }
+
+    /**
+     * Close the queue of a listener that has been removed. Events that are already queued are still delivered.
+     */
+    void removeListener(Object listener) {
+        synchronized (queues) {
+            ListenerQueue queue = queues.get(listener);
+            if (queue != null && --queue.registrations == 0) {
+                queue.closed = true;
+                if (queue.deliveries.isEmpty())
+                    queues.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * Queue the given event delivery for the given listener. Waits while the queue of the listener is full.
+     */
+    void execute(Object listener, Runnable delivery) {
+        assert listener != null : "Null listener";
+        assert delivery != null : "Null delivery";
+        if (executor.isShutdown())
+            return;
+
+        ListenerQueue queue = queues.get(listener);
+        if (queue != null && queue.closed == false)
+            queue.add(delivery, true);
+    }
+
+    /**
+     * Queue the given event delivery for the given listener without waiting for a full queue. This is for events
+     * that were held back and are queued under a lock, so that the events fired after them cannot overtake them.
+     */
+    void executeWithoutWaiting(Object listener, Runnable delivery) {
+        assert listener != null : "Null listener";
+        assert delivery != null : "Null delivery";
+        if (executor.isShutdown())
+            return;
+
+        ListenerQueue queue = queues.get(listener);
+        if (queue != null && queue.closed == false)
+            queue.add(delivery, false);
+    }
+
+    /**
+     * Get the number of events that are currently queued
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+        synchronized (queues) {
+            queues.clear();
+        }
+    }
+
+    private final class ListenerQueue implements Runnable {
+
+        private final Object listener;
+        private final Queue<Runnable> deliveries = new ConcurrentLinkedQueue<Runnable>();
+        private final Semaphore permits = new Semaphore(queueCapacity);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // The number of queued events that were added without a permit
+        private final AtomicInteger overdraft = new AtomicInteger();
+
+        // Guarded by the queues map
+        private int registrations;
+        private volatile boolean closed;
+
+        ListenerQueue(Object listener) {
+            this.listener = listener;
+        }
+
+        void add(Runnable runnable, boolean wait) {
+            if (acquirePermit(wait) == false)
+                return;
+
+            deliveries.add(runnable);
+            int depth = queueDepth.incrementAndGet();
+            if (statistics.isEnabled())
+                statistics.recordAsyncEventQueued(depth);
+            schedule();
+        }
+
+        private boolean acquirePermit(boolean wait) {
+            if (permits.tryAcquire())
+                return true;
+
+            // Never block a delivery thread, it may be the one that drains this queue
+            if (wait == false || deliveryThread.get() == OrderedListenerExecutor.this) {
+                overdraft.incrementAndGet();
+                return true;
+            }
+
+            boolean interrupted = false;
+            boolean warned = false;
+            try {
+                while (executor.isShutdown() == false) {
+                    try {
+                        if (permits.tryAcquire(warningTimeout, TimeUnit.MILLISECONDS))
+                            return true;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                        continue;
+                    }
+                    if (warned == false) {
+                        LOGGER.warnListenerQueueFull(listener, warningTimeout, queueCapacity);
+                        warned = true;
+                    }
+                }
+                return false;
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        private void releasePermit() {
+            int count = overdraft.get();
+            while (count > 0) {
+                if (overdraft.compareAndSet(count, count - 1))
+                    return;
+                count = overdraft.get();
+            }
+            permits.release();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    LOGGER.debugf("Event delivery rejected for: %s", listener);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            deliveryThread.set(OrderedListenerExecutor.this);
+            try {
+                Runnable delivery;
+                int count = 0;
+                while (count++ < DRAIN_LIMIT && (delivery = deliveries.poll()) != null) {
+                    releasePermit();
+                    queueDepth.decrementAndGet();
+                    long startNanos = statistics.isEnabled() ? System.nanoTime() : 0;
+                    try {
+                        delivery.run();
+                    } catch (Throwable th) {
+                        LOGGER.debugf(th, "Event delivery failed for: %s", listener);
+                    }
+                    if (statistics.isEnabled())
+                        statistics.recordAsyncListenerDispatch(startNanos);
+                }
+            } finally {
+                deliveryThread.remove();
+                scheduled.set(false);
+            }
+
+            // Events may have been added after the last poll
+            if (deliveries.isEmpty() == false) {
+                schedule();
+            } else if (closed) {
+                // Forget the queue of a removed listener once it has been drained
+                synchronized (queues) {
+                    if (closed && deliveries.isEmpty() && queues.get(listener) == this)
+                        queues.remove(listener);
+                }
+            }
+        }
+    }
+}
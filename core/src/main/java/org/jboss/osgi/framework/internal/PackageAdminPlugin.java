@@ -36,8 +36,6 @@ import java.util.ListIterator;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 
 import org.jboss.msc.service.ServiceBuilder;
 import org.jboss.msc.service.ServiceController.Mode;
@@ -46,6 +44,8 @@ import org.jboss.msc.service.StartContext;
 import org.jboss.msc.service.StartException;
 import org.jboss.msc.service.StopContext;
 import org.jboss.msc.value.InjectedValue;
+import org.jboss.osgi.framework.ExecutorServicePlugin;
+import org.jboss.osgi.framework.IntegrationService;
 import org.jboss.osgi.framework.Services;
 import org.jboss.osgi.resolver.XBundle;
 import org.jboss.osgi.resolver.XBundleRevision;
@@ -59,16 +59,17 @@ import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.Version;
 import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.HostNamespace;
 import org.osgi.framework.namespace.PackageNamespace;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleWire;
 import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.resource.Capability;
+import org.osgi.resource.Resource;
 import org.osgi.resource.Wire;
 import org.osgi.service.packageadmin.ExportedPackage;
 import org.osgi.service.packageadmin.PackageAdmin;
 import org.osgi.service.packageadmin.RequiredBundle;
-import org.osgi.service.resolver.ResolutionException;
 
 /**
  * An implementation of the {@link PackageAdmin} service.
@@ -96,6 +97,7 @@ public final class PackageAdminPlugin extends AbstractExecutorService<PackageAdm
         builder.addDependency(InternalServices.MODULE_MANGER_PLUGIN, ModuleManagerPlugin.class, service.injectedModuleManager);
         builder.addDependency(Services.FRAMEWORK_CREATE, BundleContext.class, service.injectedSystemContext);
         builder.addDependency(Services.RESOLVER, ResolverPlugin.class, service.injectedResolver);
+        builder.addDependency(IntegrationService.EXECUTOR_SERVICE_PLUGIN, ExecutorServicePlugin.class, service.injectedExecutorPlugin);
         builder.setInitialMode(Mode.ON_DEMAND);
         builder.install();
     }
@@ -123,15 +125,7 @@ public final class PackageAdminPlugin extends AbstractExecutorService<PackageAdm
 
     @Override
     ExecutorService createExecutorService() {
-        return Executors.newSingleThreadExecutor(new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable run) {
-                Thread thread = new Thread(run);
-                thread.setName("OSGi PackageAdmin refresh Thread");
-                thread.setDaemon(true);
-                return thread;
-            }
-        });
+        return injectedExecutorPlugin.getValue().createExecutorService("OSGi PackageAdmin refresh Thread", 1);
     }
 
     @Override
@@ -195,22 +189,45 @@ public final class PackageAdminPlugin extends AbstractExecutorService<PackageAdm
 
         Set<ExportedPackage> result = new HashSet<ExportedPackage>();
         XEnvironment env = injectedEnvironment.getValue();
-        for (XResource res : env.getResources(XEnvironment.ALL_IDENTITY_TYPES)) {
-            XBundleRevision brev = (XBundleRevision) res;
-            BundleWiring wiring = brev.getWiring();
-            if (wiring != null && !brev.isFragment()) {
-                for (Capability cap : wiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
-                    XCapability xcap = (XCapability) cap;
-                    XPackageCapability packcap = xcap.adapt(XPackageCapability.class);
-                    if (packcap.getPackageName().equals(name)) {
-                        result.add(new ExportedPackageImpl(packcap));
+        if (env instanceof EnvironmentPlugin) {
+            // Only the exporters of the package and the hosts of exporting fragments are candidates
+            CapabilityIndex index = ((EnvironmentPlugin) env).getCapabilityIndex();
+            Set<BundleRevision> candidates = new LinkedHashSet<BundleRevision>();
+            for (Resource res : index.getProviders(PackageNamespace.PACKAGE_NAMESPACE, name)) {
+                XBundleRevision brev = (XBundleRevision) res;
+                BundleWiring wiring = brev.getWiring();
+                if (wiring != null && brev.isFragment()) {
+                    for (Wire wire : wiring.getRequiredResourceWires(HostNamespace.HOST_NAMESPACE)) {
+                        candidates.add((BundleRevision) wire.getProvider());
                     }
+                } else {
+                    candidates.add(brev);
                 }
             }
+            for (BundleRevision brev : candidates) {
+                addExportedPackages(result, brev, name);
+            }
+        } else {
+            for (XResource res : env.getResources(XEnvironment.ALL_IDENTITY_TYPES)) {
+                addExportedPackages(result, (XBundleRevision) res, name);
+            }
         }
         return result.toArray(new ExportedPackage[result.size()]);
     }
 
+    private void addExportedPackages(Set<ExportedPackage> result, BundleRevision brev, String name) {
+        BundleWiring wiring = brev.getWiring();
+        if (wiring != null && (brev.getTypes() & BundleRevision.TYPE_FRAGMENT) == 0) {
+            for (Capability cap : wiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+                XCapability xcap = (XCapability) cap;
+                XPackageCapability packcap = xcap.adapt(XPackageCapability.class);
+                if (packcap.getPackageName().equals(name)) {
+                    result.add(new ExportedPackageImpl(packcap));
+                }
+            }
+        }
+    }
+
     @Override
     public ExportedPackage getExportedPackage(String name) {
         ExportedPackage[] exported = getExportedPackagesInternal(name);
@@ -362,7 +379,12 @@ public final class PackageAdminPlugin extends AbstractExecutorService<PackageAdm
                 eventsPlugin.fireFrameworkEvent(bundleManager.getSystemBundle(), FrameworkEvent.PACKAGES_REFRESHED, null);
             }
         };
-        runner.run();
+        eventsPlugin.beginEventBatch();
+        try {
+            runner.run();
+        } finally {
+            eventsPlugin.endEventBatch();
+        }
         // getExecutorService().execute(runner);
     }
 
@@ -377,26 +399,18 @@ public final class PackageAdminPlugin extends AbstractExecutorService<PackageAdm
             bundles = new Bundle[bundleset.size()];
             bundleset.toArray(bundles);
         }
-        Set<BundleRevision> resolve = new LinkedHashSet<BundleRevision>();
+        Set<XBundleRevision> resolve = new LinkedHashSet<XBundleRevision>();
         for (Bundle aux : bundles) {
             XBundle bundleState = (XBundle) aux;
             resolve.add(bundleState.getBundleRevision());
         }
 
-        boolean result = true;
-        try {
-            resolverPlugin.resolveAndApply(resolve, null);
-            for (BundleRevision aux : resolve) {
-                if (aux.getWiring() == null) {
-                    result = false;
-                    break;
-                }
-            }
-        } catch (ResolutionException ex) {
-            LOGGER.debugf(ex, "Cannot resolve: " + resolve);
-            result = false;
+        // Resolve as many bundles as possible in a single resolver pass
+        Set<XBundleRevision> unresolved = resolverPlugin.resolveAndApplyBatched(resolve);
+        if (unresolved.isEmpty() == false) {
+            LOGGER.debugf("Cannot resolve: %s", unresolved);
         }
-        return result;
+        return unresolved.isEmpty();
     }
 
     @Override
@@ -0,0 +1,258 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+import static org.jboss.osgi.framework.internal.FrameworkLogger.LOGGER;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.osgi.framework.internal.LockManagerPlugin.LockMode;
+import org.jboss.osgi.resolver.XBundleRevision;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.service.resolver.ResolutionException;
+
+/**
+ * Gathers the resolve requests of concurrent callers and resolves them in a single resolver pass.
+ *
+ * The first caller becomes the leader of a batch. It optionally waits for the batch window, then takes all
+ * pending requests and resolves them together under one environment lock. Requests that arrive in the meantime
+ * wait for the next batch. The revisions of a batch are resolved as optional resources, so that a revision
+ * that cannot be resolved does not fail the others.
+ *
+ * Every caller fires the RESOLVED events for its own revisions, so that they precede whatever the caller does next.
+ * A caller that already holds a framework lock or that resolves from within a batch (e.g. from a synchronous
+ * bundle listener) is not queued, because waiting for another batch could deadlock.
+ *
+ * A caller that needs the reason why its revision cannot be resolved gets the {@link ResolutionException} of the
+ * batch. A batch that consists of that request only resolves its revision as mandatory resource, in a batch with
+ * other requests the revision is resolved on its own after the batch, while the environment lock is still held.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+final class ResolutionCoordinator {
+
+    private final ResolverPlugin resolverPlugin;
+    private final LockManagerPlugin lockManager;
+    private final long windowNanos;
+    private final AtomicInteger resolverPasses = new AtomicInteger();
+    private List<Request> pending = new ArrayList<Request>();
+    private Thread leader;
+
+    ResolutionCoordinator(ResolverPlugin resolverPlugin, LockManagerPlugin lockManager, long windowMillis) {
+        this.resolverPlugin = resolverPlugin;
+        this.lockManager = lockManager;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(windowMillis, 0));
+    }
+
+    /**
+     * Resolve the given revisions in a batch with the requests of concurrent callers
+     *
+     * @return The revisions that are still unresolved
+     */
+    Set<XBundleRevision> resolve(Collection<? extends XBundleRevision> revisions) {
+        return resolve(new Request(revisions, false)).getUnresolved();
+    }
+
+    /**
+     * Resolve the given revision in a batch with the requests of concurrent callers
+     *
+     * @throws ResolutionException if the revision cannot be resolved
+     */
+    void resolveMandatory(XBundleRevision brev) throws ResolutionException {
+        Request request = resolve(new Request(Collections.singleton(brev), true));
+        if (request.failure != null)
+            throw request.failure;
+    }
+
+    private Request resolve(Request request) {
+        List<Request> batch = null;
+        boolean direct = false;
+        boolean interrupted = false;
+        synchronized (this) {
+            if (leader == Thread.currentThread() || lockManager.isHeldByCurrentThread()) {
+                batch = Collections.singletonList(request);
+                direct = true;
+            } else {
+                pending.add(request);
+                while (request.done == false && leader != null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+                if (request.done == false) {
+                    leader = Thread.currentThread();
+                    interrupted |= awaitWindow();
+                    batch = pending;
+                    pending = new ArrayList<Request>();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (direct) {
+            resolveBatch(request, batch);
+        } else if (batch != null) {
+            try {
+                resolveBatch(request, batch);
+            } finally {
+                synchronized (this) {
+                    for (Request aux : batch) {
+                        aux.done = true;
+                    }
+                    leader = null;
+                    notifyAll();
+                }
+            }
+        }
+        resolverPlugin.sendBundleResolvedEvents(request.resolved);
+        return request;
+    }
+
+    /**
+     * Get the number of resolver passes. It is lower than the number of requests if requests have been batched.
+     */
+    int getResolverPasses() {
+        return resolverPasses.get();
+    }
+
+    // Give concurrent callers the chance to join the batch
+    private boolean awaitWindow() {
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + windowNanos;
+        long remaining = windowNanos;
+        while (remaining > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        return interrupted;
+    }
+
+    private void resolveBatch(Request owner, List<Request> batch) {
+        Set<XBundleRevision> resources = new LinkedHashSet<XBundleRevision>();
+        for (Request request : batch) {
+            for (XBundleRevision brev : request.revisions) {
+                if (brev.getWiring() == null)
+                    resources.add(brev);
+            }
+        }
+        if (resources.isEmpty())
+            return;
+
+        long lockNanos;
+        try {
+            lockNanos = lockManager.lockEnvironment(LockMode.EXCLUSIVE);
+        } catch (TimeoutException ex) {
+            failBatch(batch, new ResolutionException(ex));
+            return;
+        }
+        try {
+            LOGGER.debugf("Resolve %d requests with: %s", batch.size(), resources);
+            resolverPasses.incrementAndGet();
+            if (batch.size() == 1 && owner.mandatory) {
+                claimResolved(owner, batch, resolverPlugin.resolveAndApplyMandatory(resources));
+                return;
+            }
+            claimResolved(owner, batch, resolverPlugin.resolveAndApplyOptional(resources));
+
+            // The batch drops what cannot be resolved silently, the reason comes from the revision on its own
+            for (Request request : batch) {
+                Set<XBundleRevision> unresolved = request.getUnresolved();
+                if (request.mandatory && unresolved.isEmpty() == false) {
+                    try {
+                        resolverPasses.incrementAndGet();
+                        claimResolved(request, Collections.singletonList(request), resolverPlugin.resolveAndApplyMandatory(unresolved));
+                    } catch (ResolutionException ex) {
+                        request.failure = ex;
+                    }
+                }
+            }
+        } catch (ResolutionException ex) {
+            LOGGER.debugf(ex, "Cannot resolve: %s", resources);
+            failBatch(batch, ex);
+        } catch (RuntimeException ex) {
+            LOGGER.debugf(ex, "Cannot resolve: %s", resources);
+            failBatch(batch, new ResolutionException(ex));
+        } finally {
+            lockManager.unlockEnvironment(LockMode.EXCLUSIVE, lockNanos);
+        }
+    }
+
+    // Every resolved resource is assigned to exactly one request, the rest to the owner
+    private void claimResolved(Request owner, List<Request> batch, Map<Resource, List<Wire>> wiremap) {
+        Set<Resource> unclaimed = new LinkedHashSet<Resource>(wiremap.keySet());
+        for (Request request : batch) {
+            for (XBundleRevision brev : request.revisions) {
+                if (unclaimed.remove(brev))
+                    request.resolved.add(brev);
+            }
+        }
+        owner.resolved.addAll(unclaimed);
+    }
+
+    private void failBatch(List<Request> batch, ResolutionException ex) {
+        for (Request request : batch) {
+            if (request.mandatory && request.getUnresolved().isEmpty() == false)
+                request.failure = ex;
+        }
+    }
+
+    private static final class Request {
+
+        private final Collection<? extends XBundleRevision> revisions;
+        private final boolean mandatory;
+        private final List<Resource> resolved = new ArrayList<Resource>();
+        private ResolutionException failure;
+        private boolean done;
+
+        Request(Collection<? extends XBundleRevision> revisions, boolean mandatory) {
+            this.revisions = revisions;
+            this.mandatory = mandatory;
+        }
+
+        Set<XBundleRevision> getUnresolved() {
+            Set<XBundleRevision> result = new LinkedHashSet<XBundleRevision>();
+            for (XBundleRevision brev : revisions) {
+                if (brev.getWiring() == null)
+                    result.add(brev);
+            }
+            return result;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -46,9 +47,11 @@ import org.jboss.msc.service.StartException;
 import org.jboss.msc.service.StopContext;
 import org.jboss.msc.value.InjectedValue;
 import org.jboss.osgi.deployment.deployer.Deployment;
+import org.jboss.osgi.framework.Constants;
 import org.jboss.osgi.framework.IntegrationService;
 import org.jboss.osgi.framework.ModuleLoaderPlugin;
 import org.jboss.osgi.framework.Services;
+import org.jboss.osgi.framework.internal.LockManagerPlugin.LockMode;
 import org.jboss.osgi.metadata.NativeLibraryMetaData;
 import org.jboss.osgi.resolver.XBundle;
 import org.jboss.osgi.resolver.XBundleRevision;
@@ -90,6 +93,8 @@ final class ResolverPlugin extends AbstractPluginService<ResolverPlugin> impleme
     private final InjectedValue<XEnvironment> injectedEnvironment = new InjectedValue<XEnvironment>();
     private final InjectedValue<LockManagerPlugin> injectedLockManager = new InjectedValue<LockManagerPlugin>();
     private XResolver resolver;
+    private ResolutionCoordinator coordinator;
+    private boolean incremental;
 
     static void addService(ServiceTarget serviceTarget) {
         ResolverPlugin service = new ResolverPlugin();
@@ -111,12 +116,18 @@ final class ResolverPlugin extends AbstractPluginService<ResolverPlugin> impleme
     public void start(StartContext context) throws StartException {
         super.start(context);
         resolver = new StatelessResolver();
+        Object window = injectedBundleManager.getValue().getProperty(Constants.PROPERTY_RESOLVER_BATCH_WINDOW);
+        long windowMillis = window != null ? Long.parseLong(window.toString().trim()) : 0;
+        coordinator = new ResolutionCoordinator(this, injectedLockManager.getValue(), windowMillis);
+        Object incrementalProp = injectedBundleManager.getValue().getProperty(Constants.PROPERTY_RESOLVER_INCREMENTAL);
+        incremental = incrementalProp != null && Boolean.parseBoolean(incrementalProp.toString());
     }
 
     @Override
     public void stop(StopContext context) {
         super.stop(context);
         resolver = null;
+        coordinator = null;
     }
 
     @Override
@@ -134,11 +145,11 @@ final class ResolverPlugin extends AbstractPluginService<ResolverPlugin> impleme
 
     @Override
     public Map<Resource, List<Wire>> resolve(ResolveContext context) throws ResolutionException {
-        aquireFrameworkLock();
+        long lockNanos = lockEnvironment(LockMode.SHARED);
         try {
             return resolver.resolve(context);
         } finally {
-            releaseFrameworkLock();
+            unlockEnvironment(LockMode.SHARED, lockNanos);
         }
     }
 
@@ -148,16 +159,16 @@ final class ResolverPlugin extends AbstractPluginService<ResolverPlugin> impleme
         Map<Resource, List<Wire>> wiremap;
         Map<Resource, Wiring> wirings;
 
-        aquireFrameworkLock();
+        long lockNanos = lockEnvironment(LockMode.EXCLUSIVE);
         try {
-            wiremap = resolver.resolve(context);
+            wiremap = resolveInternal(context);
             wirings = applyResolverResults(wiremap);
         } finally {
-            releaseFrameworkLock();
+            unlockEnvironment(LockMode.EXCLUSIVE, lockNanos);
         }
 
         // Send the {@link BundleEvent.RESOLVED} event outside the lock
-        sendBundleResolvedEvents(wiremap);
+        sendBundleResolvedEvents(wiremap.keySet());
 
         return wirings;
     }
@@ -168,6 +179,100 @@ final class ResolverPlugin extends AbstractPluginService<ResolverPlugin> impleme
         return resolveAndApply(context);
     }
 
+    /**
+     * Resolve the given revision in a batch with the resolve requests of concurrent callers
+     *
+     * @throws ResolutionException if the revision cannot be resolved
+     */
+    void resolveAndApplyBatched(XBundleRevision brev) throws ResolutionException {
+        coordinator.resolveMandatory(brev);
+    }
+
+    /**
+     * Resolve the given revisions in a batch with the resolve requests of concurrent callers
+     *
+     * @return The revisions that could not be resolved
+     */
+    Set<XBundleRevision> resolveAndApplyBatched(Collection<? extends XBundleRevision> revisions) {
+        return coordinator.resolve(revisions);
+    }
+
+    ResolutionCoordinator getResolutionCoordinator() {
+        return coordinator;
+    }
+
+    /**
+     * Resolve all of the given resources without sending the RESOLVED events
+     *
+     * @return The wiremap of the resolved resources
+     * @throws ResolutionException if one of the resources cannot be resolved
+     */
+    Map<Resource, List<Wire>> resolveAndApplyMandatory(Collection<? extends Resource> resources) throws ResolutionException {
+        XEnvironment env = injectedEnvironment.getValue();
+        XResolveContext context = createResolveContext(env, resources, null);
+        long lockNanos = lockEnvironment(LockMode.EXCLUSIVE);
+        try {
+            Map<Resource, List<Wire>> wiremap = resolveInternal(context);
+            applyResolverResults(wiremap);
+            return wiremap;
+        } finally {
+            unlockEnvironment(LockMode.EXCLUSIVE, lockNanos);
+        }
+    }
+
+    /**
+     * Resolve as many of the given resources as possible without sending the RESOLVED events
+     *
+     * @return The wiremap of the resources that were resolved
+     */
+    Map<Resource, List<Wire>> resolveAndApplyOptional(Collection<? extends Resource> resources) throws ResolutionException {
+        long lockNanos = lockEnvironment(LockMode.EXCLUSIVE);
+        try {
+            Map<Resource, List<Wire>> wiremap = resolveAndApplyOptional(resources, incremental);
+            if (incremental) {
+                // Optional resources are dropped silently, give those another chance with all providers
+                List<Resource> unresolved = new ArrayList<Resource>();
+                for (Resource res : resources) {
+                    if (((XBundleRevision) res).getWiring() == null)
+                        unresolved.add(res);
+                }
+                if (unresolved.isEmpty() == false) {
+                    Map<Resource, List<Wire>> result = new LinkedHashMap<Resource, List<Wire>>(wiremap);
+                    result.putAll(resolveAndApplyOptional(unresolved, false));
+                    wiremap = result;
+                }
+            }
+            return wiremap;
+        } finally {
+            unlockEnvironment(LockMode.EXCLUSIVE, lockNanos);
+        }
+    }
+
+    private Map<Resource, List<Wire>> resolveAndApplyOptional(Collection<? extends Resource> resources, boolean incremental) throws ResolutionException {
+        XEnvironment env = injectedEnvironment.getValue();
+        Collection<Resource> optres = new LinkedHashSet<Resource>(filterSingletons(resources));
+        optres.addAll(findAttachableFragments(getHostCapabilities(resources)));
+        ResolveContext context = resolver.createResolveContext(env, Collections.<Resource> emptySet(), optres);
+        if (incremental) {
+            context = new IncrementalResolveContext(context);
+        }
+        Map<Resource, List<Wire>> wiremap = resolver.resolve(context);
+        applyResolverResults(wiremap);
+        return wiremap;
+    }
+
+    // Try the incremental resolve first and fall back to a resolve with all providers
+    private Map<Resource, List<Wire>> resolveInternal(ResolveContext context) throws ResolutionException {
+        if (incremental) {
+            try {
+                return resolver.resolve(new IncrementalResolveContext(context));
+            } catch (ResolutionException ex) {
+                LOGGER.debugf("Incremental resolve failed, retry with all providers: %s", ex.getMessage());
+            }
+        }
+        return resolver.resolve(context);
+    }
+
     private Collection<Resource> appendOptionalFragments(Collection<? extends Resource> mandatory, Collection<? extends Resource> optional) {
         Collection<Capability> hostcaps = getHostCapabilities(mandatory);
         Collection<Resource> result = new HashSet<Resource>();
@@ -209,12 +314,25 @@ final class ResolverPlugin extends AbstractPluginService<ResolverPlugin> impleme
     private Collection<? extends Resource> findAttachableFragments(Collection<? extends Capability> hostcaps) {
         Set<Resource> result = new HashSet<Resource>();
         XEnvironment env = injectedEnvironment.getValue();
-        for (Resource res : env.getResources(IdentityNamespace.TYPE_FRAGMENT)) {
-            Requirement req = res.getRequirements(HostNamespace.HOST_NAMESPACE).get(0);
-            XRequirement xreq = (XRequirement) req;
+        if (env instanceof EnvironmentPlugin) {
+            // Only the fragments that name one of the hosts are candidates
+            CapabilityIndex index = ((EnvironmentPlugin) env).getCapabilityIndex();
             for (Capability cap : hostcaps) {
-                if (xreq.matches(cap)) {
-                    result.add(res);
+                Object hostName = cap.getAttributes().get(HostNamespace.HOST_NAMESPACE);
+                if (hostName instanceof String) {
+                    for (Resource res : index.getRequirers(HostNamespace.HOST_NAMESPACE, (String) hostName)) {
+                        if (matchesHost(res, cap)) {
+                            result.add(res);
+                        }
+                    }
+                }
+            }
+        } else {
+            for (Resource res : env.getResources(IdentityNamespace.TYPE_FRAGMENT)) {
+                for (Capability cap : hostcaps) {
+                    if (matchesHost(res, cap)) {
+                        result.add(res);
+                    }
                 }
             }
         }
@@ -224,6 +342,11 @@ final class ResolverPlugin extends AbstractPluginService<ResolverPlugin> impleme
         return result;
     }
 
+    private boolean matchesHost(Resource fragment, Capability hostcap) {
+        List<Requirement> reqs = fragment.getRequirements(HostNamespace.HOST_NAMESPACE);
+        return reqs.isEmpty() == false && ((XRequirement) reqs.get(0)).matches(hostcap);
+    }
+
     private Map<Resource, Wiring> applyResolverResults(Map<Resource, List<Wire>> wiremap) throws ResolutionException {
 
         // [TODO] Revisit how we apply the resolution results
@@ -342,10 +465,10 @@ final class ResolverPlugin extends AbstractPluginService<ResolverPlugin> impleme
         }
     }
 
-    private void sendBundleResolvedEvents(Map<Resource, List<Wire>> wiremap) {
+    void sendBundleResolvedEvents(Collection<? extends Resource> resources) {
         BundleManagerPlugin bundleManager = injectedBundleManager.getValue();
-        for (Entry<Resource, List<Wire>> entry : wiremap.entrySet()) {
-            XBundleRevision brev = (XBundleRevision) entry.getKey();
+        for (Resource res : resources) {
+            XBundleRevision brev = (XBundleRevision) res;
             Bundle bundle = brev.getBundle();
             if (bundle instanceof AbstractBundleState) {
                 AbstractBundleState bundleState = (AbstractBundleState)bundle;
@@ -359,17 +482,17 @@ final class ResolverPlugin extends AbstractPluginService<ResolverPlugin> impleme
         }
     }
 
-    private void aquireFrameworkLock() throws ResolutionException {
+    private long lockEnvironment(LockMode mode) throws ResolutionException {
         try {
             LockManagerPlugin lockManager = injectedLockManager.getValue();
-            lockManager.aquireFrameworkLock();
+            return lockManager.lockEnvironment(mode);
         } catch (TimeoutException ex) {
             throw new ResolutionException(ex);
         }
     }
 
-    private void releaseFrameworkLock() {
+    private void unlockEnvironment(LockMode mode, long lockNanos) {
         LockManagerPlugin lockManager = injectedLockManager.getValue();
-        lockManager.releaseFrameworkLock();
+        lockManager.unlockEnvironment(mode, lockNanos);
     }
 }
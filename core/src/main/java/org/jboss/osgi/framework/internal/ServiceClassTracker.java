@@ -0,0 +1,231 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the services that are registered under a given class name.
+ *
+ * Unlike {@link org.osgi.util.tracker.ServiceTracker}, this tracker is not a service listener. It is notified
+ * directly by the {@link ServiceManagerPlugin} for the services in its objectClass bucket only, so that a
+ * registration does not have to be evaluated against this tracker unless it has the tracked class name.
+ *
+ * The tracker state is guarded by the tracker itself. The {@link #addingService} and {@link #removedService}
+ * callbacks, which get and unget the service and may therefore call a {@link org.osgi.framework.ServiceFactory},
+ * are made without holding that monitor. The tracked services are available in ranking order, the highest
+ * ranked service first.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 24-Oct-2012
+ */
+class ServiceClassTracker<T> {
+
+    private final ServiceManagerPlugin serviceManager;
+    private final AbstractBundleState bundleState;
+    private final String className;
+
+    // The tracked service objects, guarded by this tracker
+    private final Map<ServiceState, T> tracked = new HashMap<ServiceState, T>();
+    // The services that are currently being added, mapped to whether they got modified meanwhile
+    private final Map<ServiceState, Boolean> adding = new HashMap<ServiceState, Boolean>();
+    private volatile List<ServiceState> serviceStates = Collections.emptyList();
+    private boolean open;
+
+    ServiceClassTracker(ServiceManagerPlugin serviceManager, AbstractBundleState bundleState, String className) {
+        assert serviceManager != null : "Null serviceManager";
+        assert bundleState != null : "Null bundleState";
+        assert className != null : "Null className";
+        this.serviceManager = serviceManager;
+        this.bundleState = bundleState;
+        this.className = className;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    /**
+     * Start tracking the services that are already registered and those that get registered from now on
+     */
+    void open() {
+        synchronized (this) {
+            if (open)
+                return;
+
+            open = true;
+            serviceManager.addClassTracker(this);
+        }
+
+        // The registry keeps the highest ranked service last
+        List<ServiceState> registered = serviceManager.getRegisteredServices(className);
+        for (int i = registered.size() - 1; i >= 0; i--) {
+            serviceAdded(registered.get(i));
+        }
+    }
+
+    /**
+     * Stop tracking and remove all tracked services
+     */
+    void close() {
+        synchronized (this) {
+            if (open == false)
+                return;
+
+            open = false;
+            serviceManager.removeClassTracker(this);
+        }
+        for (ServiceState serviceState : serviceStates) {
+            serviceRemoved(serviceState);
+        }
+    }
+
+    /**
+     * Get the tracked services, the highest ranked service first
+     */
+    List<ServiceState> getServiceStates() {
+        return serviceStates;
+    }
+
+    /**
+     * Called when a service is added to this tracker.
+     *
+     * @return The service object to be tracked or null if the service should not be tracked
+     */
+    @SuppressWarnings("unchecked")
+    T addingService(ServiceState serviceState) {
+        return (T) serviceManager.getService(bundleState, serviceState);
+    }
+
+    /**
+     * Called when the properties of a tracked service have been modified.
+     */
+    void modifiedService(ServiceState serviceState, T service) {
+    }
+
+    /**
+     * Called when a service is removed from this tracker.
+     */
+    void removedService(ServiceState serviceState, T service) {
+        serviceManager.ungetService(bundleState, serviceState);
+    }
+
+    void serviceAdded(ServiceState serviceState) {
+        synchronized (this) {
+            if (open == false || serviceState.isUnregistered() || tracked.containsKey(serviceState) || adding.containsKey(serviceState))
+                return;
+
+            adding.put(serviceState, Boolean.FALSE);
+        }
+
+        // Obtaining the service may call a ServiceFactory, which must not happen under the tracker monitor
+        T service = null;
+        try {
+            service = addingService(serviceState);
+        } finally {
+            if (service == null) {
+                synchronized (this) {
+                    adding.remove(serviceState);
+                }
+            }
+        }
+        if (service == null)
+            return;
+
+        // The service may have been unregistered or the tracker closed in the meantime. The registry
+        // removes an unregistering service before the trackers get notified, so a service that is still
+        // in the registry after it was added here is guaranteed to get a serviceRemoved callback.
+        boolean accepted;
+        boolean modified;
+        synchronized (this) {
+            modified = adding.remove(serviceState);
+            accepted = open && isRegistered(serviceState);
+            if (accepted) {
+                tracked.put(serviceState, service);
+                updateServiceStates();
+            }
+        }
+        if (accepted == false) {
+            removedService(serviceState, service);
+        } else if (modified) {
+            modifiedService(serviceState, service);
+        }
+    }
+
+    void serviceModified(ServiceState serviceState) {
+        T service;
+        synchronized (this) {
+            if (open == false)
+                return;
+
+            // A service that is currently being added sees the modification once it is tracked
+            if (adding.containsKey(serviceState)) {
+                adding.put(serviceState, Boolean.TRUE);
+                return;
+            }
+
+            service = tracked.get(serviceState);
+            if (service != null) {
+                // The ranking may have changed
+                updateServiceStates();
+            }
+        }
+        if (service == null) {
+            serviceAdded(serviceState);
+        } else {
+            modifiedService(serviceState, service);
+        }
+    }
+
+    void serviceRemoved(ServiceState serviceState) {
+        T service;
+        synchronized (this) {
+            service = tracked.remove(serviceState);
+            if (service != null) {
+                updateServiceStates();
+            }
+        }
+        if (service != null) {
+            removedService(serviceState, service);
+        }
+    }
+
+    private boolean isRegistered(ServiceState serviceState) {
+        return serviceState.isUnregistered() == false && serviceManager.getRegisteredServices(className).contains(serviceState);
+    }
+
+    private void updateServiceStates() {
+        List<ServiceState> states = new ArrayList<ServiceState>(tracked.keySet());
+        Collections.sort(states, Collections.reverseOrder(ServiceReferenceComparator.getInstance()));
+        serviceStates = Collections.unmodifiableList(states);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + className + "]";
+    }
+}
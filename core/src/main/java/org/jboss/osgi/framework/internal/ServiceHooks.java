@@ -0,0 +1,302 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.hooks.service.EventHook;
+import org.osgi.framework.hooks.service.FindHook;
+import org.osgi.framework.hooks.service.ListenerHook;
+
+/**
+ * A live view of the registered service hooks.
+ *
+ * The registry publishes a new versioned {@link Snapshot} whenever a {@link FindHook}, {@link EventHook}
+ * or {@link ListenerHook} is registered, unregistered or changes its ranking.
+ *
+ * A hook is only visible to the bundles it is assignable to and every bundle obtains the hook services with
+ * its own context, as if it had looked them up. The hook services are obtained once per bundle and reused
+ * until the hook is unregistered or the bundle no longer uses the service.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 22-Oct-2012
+ */
+final class ServiceHooks {
+
+    private static final String FIND_HOOK = FindHook.class.getName();
+    private static final String EVENT_HOOK = EventHook.class.getName();
+    private static final String LISTENER_HOOK = ListenerHook.class.getName();
+
+    private final ServiceManagerPlugin serviceManager;
+    private final Object writeLock = new Object();
+    private volatile Snapshot snapshot;
+
+    // The hook service objects by the bundle that obtained them, guarded by the writeLock
+    private final Map<ServiceState, Map<AbstractBundleState, Object>> hookValues = new HashMap<ServiceState, Map<AbstractBundleState, Object>>();
+
+    ServiceHooks(ServiceManagerPlugin serviceManager) {
+        assert serviceManager != null : "Null serviceManager";
+        this.serviceManager = serviceManager;
+        this.snapshot = new Snapshot(0, new HookList<FindHook>(FIND_HOOK, null), new HookList<EventHook>(EVENT_HOOK, null), new HookList<ListenerHook>(LISTENER_HOOK, null));
+    }
+
+    /**
+     * True if the given service is registered under any of the service hook interfaces
+     */
+    static boolean isServiceHook(ServiceState serviceState) {
+        return serviceState.hasClassName(FIND_HOOK) || serviceState.hasClassName(EVENT_HOOK) || serviceState.hasClassName(LISTENER_HOOK);
+    }
+
+    /**
+     * Get the current immutable snapshot of the service hooks
+     */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Publish a new snapshot from the current state of the registry
+     */
+    void update(ServiceRegistryIndex registryIndex) {
+        synchronized (writeLock) {
+            ServiceRegistryIndex.Snapshot registry = registryIndex.getSnapshot();
+            Snapshot current = snapshot;
+            HookList<FindHook> findHooks = current.findHooks.update(registry.getServices(FIND_HOOK));
+            HookList<EventHook> eventHooks = current.eventHooks.update(registry.getServices(EVENT_HOOK));
+            HookList<ListenerHook> listenerHooks = current.listenerHooks.update(registry.getServices(LISTENER_HOOK));
+            snapshot = new Snapshot(current.version + 1, findHooks, eventHooks, listenerHooks);
+
+            // Forget the values of hooks that are gone
+            List<ServiceState> registered = new ArrayList<ServiceState>();
+            registered.addAll(findHooks.states);
+            registered.addAll(eventHooks.states);
+            registered.addAll(listenerHooks.states);
+            hookValues.keySet().retainAll(registered);
+        }
+    }
+
+    private Object getHookValue(AbstractBundleState client, ServiceState serviceState) {
+        synchronized (writeLock) {
+            Map<AbstractBundleState, Object> values = hookValues.get(serviceState);
+            Object value = (values != null ? values.get(client) : null);
+            if (value != null) {
+                if (serviceState.isUsedBy(client))
+                    return value;
+                // The bundle has released the service, e.g. when it was stopped
+                values.remove(client);
+            }
+        }
+
+        if (serviceState.isUnregistered())
+            return null;
+
+        // Do not call a potential service factory while holding the lock
+        Object value = serviceManager.getService(client, serviceState);
+        if (value == null)
+            return null;
+
+        Object other;
+        synchronized (writeLock) {
+            Map<AbstractBundleState, Object> values = hookValues.get(serviceState);
+            if (values == null) {
+                // Do not remember the value of a hook that is gone already
+                if (serviceState.isUnregistered())
+                    return value;
+                values = new HashMap<AbstractBundleState, Object>();
+                hookValues.put(serviceState, values);
+            }
+            other = values.get(client);
+            if (other == null) {
+                // Forget the values of the bundles that released the service
+                Iterator<AbstractBundleState> iterator = values.keySet().iterator();
+                while (iterator.hasNext()) {
+                    if (serviceState.isUsedBy(iterator.next()) == false)
+                        iterator.remove();
+                }
+                values.put(client, value);
+                return value;
+            }
+        }
+
+        // The same bundle obtained the hook concurrently
+        serviceManager.ungetService(client, serviceState);
+        return other;
+    }
+
+    /**
+     * An immutable view of the registered service hooks.
+     */
+    static final class Snapshot {
+
+        private final long version;
+        private final HookList<FindHook> findHooks;
+        private final HookList<EventHook> eventHooks;
+        private final HookList<ListenerHook> listenerHooks;
+
+        private Snapshot(long version, HookList<FindHook> findHooks, HookList<EventHook> eventHooks, HookList<ListenerHook> listenerHooks) {
+            this.version = version;
+            this.findHooks = findHooks;
+            this.eventHooks = eventHooks;
+            this.listenerHooks = listenerHooks;
+        }
+
+        /**
+         * The version increases with every change to the registered hooks
+         */
+        long getVersion() {
+            return version;
+        }
+
+        HookList<FindHook> getFindHooks() {
+            return findHooks;
+        }
+
+        HookList<EventHook> getEventHooks() {
+            return eventHooks;
+        }
+
+        HookList<ListenerHook> getListenerHooks() {
+            return listenerHooks;
+        }
+    }
+
+    /**
+     * The hooks of a given type in calling order, which is the reverse ranking order.
+     */
+    final class HookList<T> {
+
+        private final String className;
+        private final List<ServiceState> registryStates;
+        private final List<ServiceState> states;
+        // The complete lists of hook values by the bundle that obtained them
+        private final ConcurrentMap<AbstractBundleState, ClientHooks<T>> hooksByClient = new ConcurrentHashMap<AbstractBundleState, ClientHooks<T>>();
+
+        private HookList(String className, List<ServiceState> registryStates) {
+            this.className = className;
+            this.registryStates = registryStates;
+            if (registryStates == null || registryStates.isEmpty()) {
+                states = Collections.emptyList();
+            } else {
+                List<ServiceState> reversed = new ArrayList<ServiceState>(registryStates);
+                Collections.reverse(reversed);
+                states = Collections.unmodifiableList(reversed);
+            }
+        }
+
+        // The registry keeps the same list instance as long as the services of a class do not change
+        private HookList<T> update(List<ServiceState> current) {
+            return current == registryStates || (current.isEmpty() && states.isEmpty()) ? this : new HookList<T>(className, current);
+        }
+
+        boolean isEmpty() {
+            return states.isEmpty();
+        }
+
+        /**
+         * Get the hook services, the highest ranked hook first
+         */
+        List<ServiceState> getServiceStates() {
+            return states;
+        }
+
+        /**
+         * Get the hook service objects that the framework obtains through the system bundle, the highest ranked hook first
+         */
+        List<T> getHooks() {
+            AbstractBundleState systemBundle = serviceManager.getSystemBundle();
+            if (systemBundle == null)
+                return Collections.emptyList();
+            return getHooks(systemBundle);
+        }
+
+        /**
+         * Get the hook service objects that the given bundle can see, as obtained by that bundle, the highest ranked hook first
+         */
+        @SuppressWarnings("unchecked")
+        List<T> getHooks(AbstractBundleState client) {
+            if (states.isEmpty())
+                return Collections.emptyList();
+
+            ClientHooks<T> clientHooks = hooksByClient.get(client);
+            if (clientHooks != null && clientHooks.isUsedBy(client))
+                return clientHooks.hooks;
+
+            List<ServiceState> used = new ArrayList<ServiceState>();
+            List<T> values = new ArrayList<T>();
+            boolean complete = true;
+            for (ServiceState serviceState : states) {
+                if (serviceState.isAssignableTo(client, className) == false)
+                    continue;
+                Object value = getHookValue(client, serviceState);
+                if (value != null) {
+                    used.add(serviceState);
+                    values.add((T) value);
+                } else {
+                    complete = false;
+                }
+            }
+            List<T> result = Collections.unmodifiableList(values);
+
+            // Only remember a complete list of hook values and forget those of bundles that released their hooks
+            Iterator<Map.Entry<AbstractBundleState, ClientHooks<T>>> iterator = hooksByClient.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<AbstractBundleState, ClientHooks<T>> entry = iterator.next();
+                if (entry.getValue().isUsedBy(entry.getKey()) == false)
+                    iterator.remove();
+            }
+            if (complete)
+                hooksByClient.put(client, new ClientHooks<T>(used, result));
+            return result;
+        }
+    }
+
+    /**
+     * The hook values that a bundle has obtained
+     */
+    private static final class ClientHooks<T> {
+
+        private final List<ServiceState> states;
+        private final List<T> hooks;
+
+        ClientHooks(List<ServiceState> states, List<T> hooks) {
+            this.states = states;
+            this.hooks = hooks;
+        }
+
+        // Valid as long as the bundle still uses every hook, a stopped bundle has released them
+        boolean isUsedBy(AbstractBundleState client) {
+            for (ServiceState serviceState : states) {
+                if (serviceState.isUsedBy(client) == false)
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.framework.internal.FrameworkEventsPlugin.ServiceListenerRegistration;
+
+/**
+ * A copy-on-write index of the service listeners, keyed by the objectClass their filter requires.
+ *
+ * A listener is indexed under the objectClass equality term that every match of its filter must satisfy.
+ * Listeners without such a term are kept in a separate list, that is part of every lookup. Modifications
+ * must be serialized by the caller and publish a new immutable {@link Snapshot}, which precomputes the
+ * listeners of every indexed class merged with the unindexed listeners, so that a lookup does not copy.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 25-Oct-2012
+ */
+final class ServiceListenerIndex {
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.<String, List<ServiceListenerRegistration>> emptyMap(), Collections.<ServiceListenerRegistration> emptyList());
+
+    /**
+     * Get the current immutable snapshot of the service listeners
+     */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    void addListener(ServiceListenerRegistration slreg) {
+        Snapshot current = snapshot;
+        String className = slreg.getObjectClass();
+        if (className == null) {
+            List<ServiceListenerRegistration> unindexed = new ArrayList<ServiceListenerRegistration>(current.unindexed);
+            unindexed.add(slreg);
+            snapshot = new Snapshot(current.listenersByClass, Collections.unmodifiableList(unindexed));
+        } else {
+            Map<String, List<ServiceListenerRegistration>> byClass = new HashMap<String, List<ServiceListenerRegistration>>(current.listenersByClass);
+            List<ServiceListenerRegistration> listeners = byClass.get(className);
+            listeners = listeners != null ? new ArrayList<ServiceListenerRegistration>(listeners) : new ArrayList<ServiceListenerRegistration>();
+            listeners.add(slreg);
+            byClass.put(className, Collections.unmodifiableList(listeners));
+            snapshot = new Snapshot(byClass, current.unindexed);
+        }
+    }
+
+    void removeListener(ServiceListenerRegistration slreg) {
+        removeListeners(Collections.singleton(slreg));
+    }
+
+    /**
+     * Remove the given listener registrations, which are identified by instance
+     */
+    void removeListeners(Collection<ServiceListenerRegistration> slregs) {
+        if (slregs.isEmpty())
+            return;
+
+        Snapshot current = snapshot;
+        Map<String, List<ServiceListenerRegistration>> byClass = current.listenersByClass;
+        List<ServiceListenerRegistration> unindexed = current.unindexed;
+        for (ServiceListenerRegistration slreg : slregs) {
+            String className = slreg.getObjectClass();
+            if (className == null) {
+                unindexed = removeInstance(unindexed, slreg);
+            } else {
+                List<ServiceListenerRegistration> listeners = byClass.get(className);
+                if (listeners != null) {
+                    if (byClass == current.listenersByClass)
+                        byClass = new HashMap<String, List<ServiceListenerRegistration>>(byClass);
+                    listeners = removeInstance(listeners, slreg);
+                    if (listeners.isEmpty())
+                        byClass.remove(className);
+                    else
+                        byClass.put(className, listeners);
+                }
+            }
+        }
+        snapshot = new Snapshot(byClass, unindexed);
+    }
+
+    void clear() {
+        snapshot = new Snapshot(Collections.<String, List<ServiceListenerRegistration>> emptyMap(), Collections.<ServiceListenerRegistration> emptyList());
+    }
+
+    private static List<ServiceListenerRegistration> removeInstance(List<ServiceListenerRegistration> listeners, ServiceListenerRegistration slreg) {
+        List<ServiceListenerRegistration> result = new ArrayList<ServiceListenerRegistration>(listeners.size());
+        for (ServiceListenerRegistration aux : listeners) {
+            if (aux != slreg)
+                result.add(aux);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * An immutable view of the service listeners.
+     */
+    static final class Snapshot {
+
+        private final Map<String, List<ServiceListenerRegistration>> listenersByClass;
+        private final List<ServiceListenerRegistration> unindexed;
+        // The listeners of each class, preceded by the unindexed listeners
+        private final Map<String, List<ServiceListenerRegistration>> mergedByClass;
+
+        private Snapshot(Map<String, List<ServiceListenerRegistration>> listenersByClass, List<ServiceListenerRegistration> unindexed) {
+            this.listenersByClass = listenersByClass;
+            this.unindexed = unindexed;
+            if (listenersByClass.isEmpty()) {
+                this.mergedByClass = Collections.emptyMap();
+            } else {
+                Map<String, List<ServiceListenerRegistration>> merged = new HashMap<String, List<ServiceListenerRegistration>>();
+                for (Map.Entry<String, List<ServiceListenerRegistration>> entry : listenersByClass.entrySet()) {
+                    List<ServiceListenerRegistration> listeners = entry.getValue();
+                    List<ServiceListenerRegistration> result = new ArrayList<ServiceListenerRegistration>(unindexed.size() + listeners.size());
+                    result.addAll(unindexed);
+                    result.addAll(listeners);
+                    merged.put(entry.getKey(), Collections.unmodifiableList(result));
+                }
+                this.mergedByClass = merged;
+            }
+        }
+
+        /**
+         * Get the listeners that may be interested in an event for the given service.
+         *
+         * Only a service with more than one class name that has listeners needs a new list.
+         */
+        List<ServiceListenerRegistration> getListeners(ServiceState serviceState) {
+            List<ServiceListenerRegistration> result = unindexed;
+            boolean copied = false;
+            for (String className : serviceState.getUniqueClassNames()) {
+                if (result == unindexed) {
+                    List<ServiceListenerRegistration> merged = mergedByClass.get(className);
+                    if (merged != null)
+                        result = merged;
+                } else {
+                    List<ServiceListenerRegistration> listeners = listenersByClass.get(className);
+                    if (listeners != null) {
+                        if (copied == false) {
+                            result = new ArrayList<ServiceListenerRegistration>(result);
+                            copied = true;
+                        }
+                        result.addAll(listeners);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * True if there are no service listeners
+         */
+        boolean isEmpty() {
+            return unindexed.isEmpty() && listenersByClass.isEmpty();
+        }
+    }
+}
@@ -28,18 +28,21 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.msc.service.ServiceBuilder;
 import org.jboss.msc.service.ServiceController.Mode;
+import org.jboss.msc.service.StartContext;
+import org.jboss.msc.service.StartException;
 import org.jboss.msc.service.ServiceTarget;
 import org.jboss.msc.value.InjectedValue;
+import org.jboss.osgi.framework.Constants;
 import org.jboss.osgi.framework.Services;
 import org.jboss.osgi.framework.util.NoFilter;
 import org.jboss.osgi.framework.util.RemoveOnlyCollection;
@@ -67,9 +70,20 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
     private final InjectedValue<BundleManagerPlugin> injectedBundleManager = new InjectedValue<BundleManagerPlugin>();
     private final InjectedValue<FrameworkEventsPlugin> injectedFrameworkEvents = new InjectedValue<FrameworkEventsPlugin>();
     private final InjectedValue<ModuleManagerPlugin> injectedModuleManager = new InjectedValue<ModuleManagerPlugin>();
+    private final InjectedValue<ServiceStatisticsPlugin> injectedStatistics = new InjectedValue<ServiceStatisticsPlugin>();
 
-    private final Map<String, List<ServiceState>> serviceContainer = new HashMap<String, List<ServiceState>>();
     private final AtomicLong identityGenerator = new AtomicLong();
+    private ServiceRegistryIndex serviceIndex;
+    private ServiceHooks serviceHooks;
+    private ServiceStatisticsPlugin statistics;
+
+    // The class trackers by tracked class name
+    private final ConcurrentMap<String, List<ServiceClassTracker<?>>> classTrackers = new ConcurrentHashMap<String, List<ServiceClassTracker<?>>>();
+
+    // The maximum number of parsed lookup filters that are kept
+    private static final int FILTER_CACHE_SIZE = 256;
+    // The parsed lookup filters by filter string
+    private final ConcurrentMap<String, LookupFilter> lookupFilters = new ConcurrentHashMap<String, LookupFilter>();
 
     static void addService(ServiceTarget serviceTarget) {
         ServiceManagerPlugin service = new ServiceManagerPlugin();
@@ -77,6 +91,7 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
         builder.addDependency(Services.BUNDLE_MANAGER, BundleManagerPlugin.class, service.injectedBundleManager);
         builder.addDependency(InternalServices.FRAMEWORK_EVENTS_PLUGIN, FrameworkEventsPlugin.class, service.injectedFrameworkEvents);
         builder.addDependency(InternalServices.MODULE_MANGER_PLUGIN, ModuleManagerPlugin.class, service.injectedModuleManager);
+        builder.addDependency(InternalServices.SERVICE_STATISTICS_PLUGIN, ServiceStatisticsPlugin.class, service.injectedStatistics);
         builder.setInitialMode(Mode.ON_DEMAND);
         builder.install();
     }
@@ -84,6 +99,23 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
     private ServiceManagerPlugin() {
     }
 
+    @Override
+    public void start(StartContext context) throws StartException {
+        super.start(context);
+        BundleManagerPlugin bundleManager = injectedBundleManager.getValue();
+        Object value = bundleManager.getProperty(Constants.PROPERTY_SERVICE_INDEX_KEYS);
+        String keys = (value != null ? value.toString() : Constants.DEFAULT_SERVICE_INDEX_KEYS);
+        List<String> indexKeys = new ArrayList<String>();
+        for (String key : keys.split(",")) {
+            if (key.trim().length() > 0)
+                indexKeys.add(key.trim());
+        }
+        LOGGER.debugf("Indexed service property keys: %s", indexKeys);
+        serviceIndex = new ServiceRegistryIndex(indexKeys);
+        serviceHooks = new ServiceHooks(this);
+        statistics = injectedStatistics.getValue();
+    }
+
     @Override
     public ServiceManagerPlugin getValue() {
         return this;
@@ -93,6 +125,42 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
         return injectedFrameworkEvents.getValue();
     }
 
+    SystemBundleState getSystemBundle() {
+        return injectedBundleManager.getValue().getSystemBundle();
+    }
+
+    /**
+     * Get the current snapshot of the registered service hooks
+     */
+    ServiceHooks.Snapshot getServiceHooks() {
+        return serviceHooks.getSnapshot();
+    }
+
+    /**
+     * Get the registered services for the given class name, the highest ranked service last
+     */
+    List<ServiceState> getRegisteredServices(String className) {
+        return serviceIndex.getSnapshot().getServices(className);
+    }
+
+    void addClassTracker(ServiceClassTracker<?> tracker) {
+        String className = tracker.getClassName();
+        List<ServiceClassTracker<?>> trackers = classTrackers.get(className);
+        if (trackers == null) {
+            List<ServiceClassTracker<?>> newTrackers = new CopyOnWriteArrayList<ServiceClassTracker<?>>();
+            trackers = classTrackers.putIfAbsent(className, newTrackers);
+            if (trackers == null)
+                trackers = newTrackers;
+        }
+        trackers.add(tracker);
+    }
+
+    void removeClassTracker(ServiceClassTracker<?> tracker) {
+        List<ServiceClassTracker<?>> trackers = classTrackers.get(tracker.getClassName());
+        if (trackers != null)
+            trackers.remove(tracker);
+    }
+
     /**
      * Get the next service ID from the manager
      */
@@ -123,32 +191,13 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
             listenerInfos = eventsPlugin.getServiceListenerInfos(null);
         }
 
-        ServiceState.ValueProvider valueProvider = new ServiceState.ValueProvider() {
-            public boolean isFactoryValue() {
-                return serviceValue instanceof ServiceFactory;
-            }
-
-            public Object getValue() {
-                return serviceValue;
-            }
-        };
-
-        long serviceId = getNextServiceId();
-        ServiceState serviceState = new ServiceState(this, bundleState, serviceId, classNames, valueProvider, properties);
+        ServiceState serviceState = createServiceState(bundleState, classNames, serviceValue, properties);
         LOGGER.debugf("Register service: %s", serviceState);
 
-        synchronized (serviceContainer) {
-            for (String className : classNames) {
-                List<ServiceState> serviceStates = serviceContainer.get(className);
-                if (serviceStates != null) {
-                    serviceStates.add(serviceState);
-                } else {
-                    serviceStates = new CopyOnWriteArrayList<ServiceState>();
-                    serviceStates.add(serviceState);
-                    serviceContainer.put(className, serviceStates);
-                }
-            }
-        }
+        serviceIndex.addService(serviceState);
+        if (ServiceHooks.isServiceHook(serviceState))
+            serviceHooks.update(serviceIndex);
+
         bundleState.addRegisteredService(serviceState);
 
         // Call the newly added ListenerHook.added() method
@@ -157,12 +206,91 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
             listenerHook.added(listenerInfos);
         }
 
+        notifyClassTrackers(ServiceEvent.REGISTERED, serviceState);
+
         // This event is synchronously delivered after the service has been registered with the Framework.
         eventsPlugin.fireServiceEvent(bundleState, ServiceEvent.REGISTERED, serviceState);
 
         return serviceState;
     }
 
+    /**
+     * Registers the given services in a single modification of the registry.
+     *
+     * All services are validated before any of them is registered. They become visible together and the
+     * {@link ServiceEvent#REGISTERED} events are delivered afterwards, in the given order, to one snapshot
+     * of the service listeners.
+     *
+     * @return The registered services in the given order
+     */
+    List<ServiceState> registerServices(final AbstractBundleState bundleState, final List<ServiceSpec> serviceSpecs) {
+        assert serviceSpecs != null : "Null serviceSpecs";
+        if (serviceSpecs.isEmpty())
+            return Collections.emptyList();
+
+        List<ServiceState> serviceStates = new ArrayList<ServiceState>();
+        for (ServiceSpec spec : serviceSpecs) {
+            serviceStates.add(createServiceState(bundleState, spec.classNames, spec.serviceValue, spec.properties));
+        }
+
+        // Immediately after registration of a {@link ListenerHook}, the ListenerHook.added() method will be called
+        // to provide the current collection of service listeners which had been added prior to the hook being registered.
+        FrameworkEventsPlugin eventsPlugin = getFrameworkEventsPlugin();
+        boolean serviceHooksAdded = false;
+        Collection<ListenerInfo> listenerInfos = null;
+        for (ServiceState serviceState : serviceStates) {
+            serviceHooksAdded |= ServiceHooks.isServiceHook(serviceState);
+            if (listenerInfos == null && serviceState.getRawValue() instanceof ListenerHook)
+                listenerInfos = eventsPlugin.getServiceListenerInfos(null);
+        }
+
+        LOGGER.debugf("Register services: %s", serviceStates);
+        serviceIndex.addServices(serviceStates);
+        if (serviceHooksAdded)
+            serviceHooks.update(serviceIndex);
+
+        for (ServiceState serviceState : serviceStates) {
+            bundleState.addRegisteredService(serviceState);
+
+            // Call the newly added ListenerHook.added() method
+            if (serviceState.getRawValue() instanceof ListenerHook) {
+                ListenerHook listenerHook = (ListenerHook) serviceState.getRawValue();
+                listenerHook.added(listenerInfos);
+            }
+        }
+
+        if (classTrackers.isEmpty() == false) {
+            List<ServiceState> ranked = new ArrayList<ServiceState>(serviceStates);
+            Collections.sort(ranked, Collections.reverseOrder(ServiceReferenceComparator.getInstance()));
+            for (ServiceState serviceState : ranked) {
+                notifyClassTrackers(ServiceEvent.REGISTERED, serviceState);
+            }
+        }
+
+        // These events are synchronously delivered after the services have been registered with the Framework.
+        eventsPlugin.fireServiceEvents(bundleState, ServiceEvent.REGISTERED, serviceStates);
+
+        return Collections.unmodifiableList(serviceStates);
+    }
+
+    @SuppressWarnings({ "rawtypes" })
+    private ServiceState createServiceState(AbstractBundleState bundleState, String[] classNames, final Object serviceValue, Dictionary properties) {
+        assert classNames != null && classNames.length > 0 : "Null service classes";
+
+        ServiceState.ValueProvider valueProvider = new ServiceState.ValueProvider() {
+            public boolean isFactoryValue() {
+                return serviceValue instanceof ServiceFactory;
+            }
+
+            public Object getValue() {
+                return serviceValue;
+            }
+        };
+
+        long serviceId = getNextServiceId();
+        return new ServiceState(this, bundleState, serviceId, classNames, valueProvider, properties);
+    }
+
     /**
      * Returns a <code>ServiceReference</code> object for a service that implements and was registered under the specified
      * class.
@@ -172,9 +300,37 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
      */
     ServiceState getServiceReference(AbstractBundleState bundleState, String clazz) {
         assert clazz != null : "Null clazz";
+        if (statistics.isEnabled() == false)
+            return getServiceReferenceInternal(bundleState, clazz, null);
+
+        long startNanos = System.nanoTime();
+        LookupCounts counts = new LookupCounts();
+        ServiceState result = getServiceReferenceInternal(bundleState, clazz, counts);
+        statistics.recordLookup(clazz, counts.examined, counts.evaluated, result != null ? 1 : 0, startNanos);
+        return result;
+    }
+
+    private ServiceState getServiceReferenceInternal(AbstractBundleState bundleState, String clazz, LookupCounts counts) {
 
         boolean checkAssignable = (bundleState.getBundleId() != 0);
-        List<ServiceState> result = getServiceReferencesInternal(bundleState, clazz, NoFilter.INSTANCE, checkAssignable);
+        ServiceRegistryIndex.Snapshot snapshot = serviceIndex.getSnapshot();
+
+        // Without find hooks the result is the highest ranked matching service,
+        // which is found by walking the ordered candidates backwards
+        if (serviceHooks.getSnapshot().getFindHooks().isEmpty()) {
+            List<ServiceState> candidates = snapshot.getServices(clazz);
+            for (int i = candidates.size() - 1; i >= 0; i--) {
+                ServiceState serviceState = candidates.get(i);
+                if (counts != null)
+                    counts.examined++;
+                if (isMatchingService(bundleState, serviceState, clazz, NoFilter.INSTANCE, checkAssignable))
+                    return serviceState;
+            }
+            return null;
+        }
+
+        Map<String, String> terms = Collections.emptyMap();
+        List<ServiceState> result = getServiceReferencesInternal(bundleState, clazz, NoFilter.INSTANCE, terms, checkAssignable, counts);
         result = processFindHooks(bundleState, clazz, null, true, result);
         if (result.isEmpty())
             return null;
@@ -197,45 +353,74 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
      */
     List<ServiceState> getServiceReferences(AbstractBundleState bundleState, String clazz, String filterStr, boolean checkAssignable) throws InvalidSyntaxException {
         Filter filter = NoFilter.INSTANCE;
-        if (filterStr != null)
-            filter = FrameworkUtil.createFilter(filterStr);
+        Map<String, String> terms = Collections.emptyMap();
+        if (filterStr != null) {
+            LookupFilter lookupFilter = getLookupFilter(filterStr);
+            filter = lookupFilter.filter;
+            terms = lookupFilter.terms;
+        }
+
+        if (statistics.isEnabled() == false) {
+            List<ServiceState> result = getServiceReferencesInternal(bundleState, clazz, filter, terms, checkAssignable, null);
+            return processFindHooks(bundleState, clazz, filterStr, checkAssignable, result);
+        }
 
-        List<ServiceState> result = getServiceReferencesInternal(bundleState, clazz, filter, checkAssignable);
+        long startNanos = System.nanoTime();
+        LookupCounts counts = new LookupCounts();
+        List<ServiceState> result = getServiceReferencesInternal(bundleState, clazz, filter, terms, checkAssignable, counts);
         result = processFindHooks(bundleState, clazz, filterStr, checkAssignable, result);
+        statistics.recordLookup(clazz, counts.examined, counts.evaluated, result.size(), startNanos);
         return result;
     }
 
-    private List<ServiceState> getServiceReferencesInternal(final AbstractBundleState bundleState, String className, Filter filter, boolean checkAssignable) {
+    // Lookups tend to use the same few filters, parse each of them once
+    private LookupFilter getLookupFilter(String filterStr) throws InvalidSyntaxException {
+        LookupFilter lookupFilter = lookupFilters.get(filterStr);
+        if (lookupFilter == null) {
+            Filter filter = FrameworkUtil.createFilter(filterStr);
+            lookupFilter = new LookupFilter(filter, FilterTerms.getEqualityTerms(filterStr));
+            if (lookupFilters.size() >= FILTER_CACHE_SIZE)
+                lookupFilters.clear();
+            lookupFilters.put(filterStr, lookupFilter);
+        }
+        return lookupFilter;
+    }
+
+    private List<ServiceState> getServiceReferencesInternal(AbstractBundleState bundleState, String className, Filter filter, Map<String, String> terms, boolean checkAssignable, LookupCounts counts) {
         assert bundleState != null : "Null bundleState";
         assert filter != null : "Null filter";
 
-        Set<ServiceState> initialSet = new HashSet<ServiceState>();
-        if (className != null) {
-            List<ServiceState> list = serviceContainer.get(className);
-            if (list != null) {
-                initialSet.addAll(list);
-            }
-        } else {
-            for (List<ServiceState> list : serviceContainer.values()) {
-                initialSet.addAll(list);
+        // Work on a consistent snapshot of the registry
+        ServiceRegistryIndex.Snapshot snapshot = serviceIndex.getSnapshot();
+        List<ServiceState> candidates = (className != null ? snapshot.getServices(className) : snapshot.getAllServices());
+
+        // Narrow the candidates by the equality terms of the filter
+        boolean checkClassName = false;
+        for (Entry<String, String> term : terms.entrySet()) {
+            List<ServiceState> narrowed = snapshot.getServices(term.getKey(), term.getValue());
+            if (narrowed != null && narrowed.size() < candidates.size()) {
+                checkClassName = (className != null);
+                candidates = narrowed;
             }
         }
 
-        if (initialSet.isEmpty())
+        if (candidates.isEmpty())
             return Collections.emptyList();
 
-        Set<ServiceState> resultset = new HashSet<ServiceState>();
-        for (ServiceState serviceState : initialSet) {
+        // The candidates are already ordered, a single pass retains that order
+        List<ServiceState> resultList = new ArrayList<ServiceState>();
+        for (ServiceState serviceState : candidates) {
+            if (counts != null)
+                counts.examined++;
+            if (checkClassName && serviceState.hasClassName(className) == false)
+                continue;
+            if (counts != null && filter != NoFilter.INSTANCE)
+                counts.evaluated++;
             if (isMatchingService(bundleState, serviceState, className, filter, checkAssignable)) {
-                resultset.add(serviceState);
+                resultList.add(serviceState);
             }
         }
 
-        // Sort the result
-        List<ServiceState> resultList = new ArrayList<ServiceState>(resultset);
-        if (resultList.size() > 1)
-            Collections.sort(resultList, ServiceReferenceComparator.getInstance());
-
         return Collections.unmodifiableList(resultList);
     }
 
@@ -248,6 +433,17 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
         return serviceState.isAssignableTo(bundleState, clazzName);
     }
 
+    /**
+     * Modify the properties of the given service and update the registry
+     */
+    void updateServiceProperties(ServiceState serviceState, ServiceProperties properties) {
+        boolean rankingChanged = serviceIndex.updateService(serviceState, properties);
+        if (rankingChanged && ServiceHooks.isServiceHook(serviceState))
+            serviceHooks.update(serviceIndex);
+
+        notifyClassTrackers(ServiceEvent.MODIFIED, serviceState);
+    }
+
     /**
      * Returns the service object referenced by the specified <code>ServiceReference</code> object.
      *
@@ -258,16 +454,14 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
         if (serviceState.isUnregistered())
             return null;
 
-        // Add the given service ref to the list of used services
-        bundleState.addServiceInUse(serviceState);
-        serviceState.addUsingBundle(bundleState);
+        // Increment the use count of the given bundle
+        ServiceState.ServiceUse serviceUse = serviceState.addUsingBundle(bundleState);
 
-        Object value = serviceState.getScopedValue(bundleState);
+        Object value = serviceUse.getValue();
 
         // If the factory returned an invalid value
         // restore the service usage counts
         if (value == null) {
-            bundleState.removeServiceInUse(serviceState);
             serviceState.removeUsingBundle(bundleState);
         }
 
@@ -283,21 +477,13 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
             if (serviceState.isUnregistered())
                 return;
 
-            synchronized (serviceContainer) {
-                for (String className : serviceState.getClassNames()) {
-                    LOGGER.debugf("Unregister service: %s", className);
-                    try {
-                        List<ServiceState> serviceStates = serviceContainer.get(className);
-                        if (serviceStates != null) {
-                            serviceStates.remove(serviceState);
-                        }
-                    } catch (RuntimeException ex) {
-                        LOGGER.errorCannotRemoveService(ex, className);
-                    }
-                }
-            }
+            LOGGER.debugf("Unregister service: %s", serviceState);
+            serviceIndex.removeService(serviceState);
+            if (ServiceHooks.isServiceHook(serviceState))
+                serviceHooks.update(serviceIndex);
 
             XBundle serviceOwner = serviceState.getServiceOwner();
+            notifyClassTrackers(ServiceEvent.UNREGISTERING, serviceState);
 
             // This event is synchronously delivered before the service has completed unregistering.
             FrameworkEventsPlugin eventsPlugin = injectedFrameworkEvents.getValue();
@@ -326,15 +512,40 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
      *         unregistered; <code>true</code> otherwise.
      */
     boolean ungetService(AbstractBundleState bundleState, ServiceState serviceState) {
-        serviceState.ungetScopedValue(bundleState);
-
-        int useCount = bundleState.removeServiceInUse(serviceState);
-        if (useCount == 0)
-            serviceState.removeUsingBundle(bundleState);
-
+        int useCount = serviceState.removeUsingBundle(bundleState);
         return useCount >= 0;
     }
 
+    // Notify the trackers of every class name the service is registered under
+    private void notifyClassTrackers(int eventType, ServiceState serviceState) {
+        if (classTrackers.isEmpty())
+            return;
+
+        for (String className : serviceState.getUniqueClassNames()) {
+            List<ServiceClassTracker<?>> trackers = classTrackers.get(className);
+            if (trackers == null)
+                continue;
+
+            for (ServiceClassTracker<?> tracker : trackers) {
+                try {
+                    switch (eventType) {
+                        case ServiceEvent.REGISTERED:
+                            tracker.serviceAdded(serviceState);
+                            break;
+                        case ServiceEvent.MODIFIED:
+                            tracker.serviceModified(serviceState);
+                            break;
+                        case ServiceEvent.UNREGISTERING:
+                            tracker.serviceRemoved(serviceState);
+                            break;
+                    }
+                } catch (RuntimeException ex) {
+                    LOGGER.errorServiceClassTrackerFailed(ex, tracker);
+                }
+            }
+        }
+    }
+
     /*
      * The FindHook is called when a target bundle searches the service registry with the getServiceReference or
      * getServiceReferences methods. A registered FindHook service gets a chance to inspect the returned set of service
@@ -342,9 +553,8 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
      * reverse compareTo ordering of their Service References.
      */
     private List<ServiceState> processFindHooks(AbstractBundleState bundle, String clazz, String filterStr, boolean checkAssignable, List<ServiceState> serviceStates) {
-        BundleContext context = bundle.getBundleContext();
-        List<ServiceState> hookRefs = getServiceReferencesInternal(bundle, FindHook.class.getName(), NoFilter.INSTANCE, true);
-        if (hookRefs.isEmpty())
+        ServiceHooks.HookList<FindHook> hookList = serviceHooks.getSnapshot().getFindHooks();
+        if (hookList.isEmpty())
             return serviceStates;
 
         // Event and Find Hooks can not be used to hide the services from the framework.
@@ -353,13 +563,10 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
 
         // The order in which the find hooks are called is the reverse compareTo ordering of
         // their ServiceReferences. That is, the service with the highest ranking number must be called first.
-        List<ServiceReference> sortedHookRefs = new ArrayList<ServiceReference>(hookRefs);
-        Collections.reverse(sortedHookRefs);
-
-        List<FindHook> hooks = new ArrayList<FindHook>();
-        for (ServiceReference hookRef : sortedHookRefs)
-            hooks.add((FindHook) context.getService(hookRef));
+        List<FindHook> hooks = hookList.getHooks(bundle);
+        long startNanos = statistics.isEnabled() ? System.nanoTime() : 0;
 
+        BundleContext context = bundle.getBundleContext();
         Collection<ServiceReference> hookParam = new ArrayList<ServiceReference>();
         for (ServiceState aux : serviceStates)
             hookParam.add(aux.getReference());
@@ -379,6 +586,45 @@ final class ServiceManagerPlugin extends AbstractPluginService<ServiceManagerPlu
             result.add(serviceState);
         }
 
+        if (statistics.isEnabled())
+            statistics.recordFindHooks(startNanos);
+
         return result;
     }
-}
\ No newline at end of file
+
+    // The counters of a single lookup, only used when statistics are enabled
+    private static final class LookupCounts {
+        int examined;
+        int evaluated;
+    }
+
+    /**
+     * A parsed lookup filter with the equality terms that narrow its candidates
+     */
+    private static final class LookupFilter {
+        private final Filter filter;
+        private final Map<String, String> terms;
+
+        LookupFilter(Filter filter, Map<String, String> terms) {
+            this.filter = filter;
+            this.terms = Collections.unmodifiableMap(terms);
+        }
+    }
+
+    /**
+     * A service that is part of a batch registration
+     */
+    @SuppressWarnings("rawtypes")
+    static final class ServiceSpec {
+
+        private final String[] classNames;
+        private final Object serviceValue;
+        private final Dictionary properties;
+
+        ServiceSpec(String[] classNames, Object serviceValue, Dictionary properties) {
+            this.classNames = classNames;
+            this.serviceValue = serviceValue;
+            this.properties = properties;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.jboss.osgi.framework.internal.FrameworkMessages.MESSAGES;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.osgi.framework.Constants;
+
+/**
+ * An immutable, case insensitive view of the properties of a service.
+ *
+ * Keys and values are held in plain arrays with an open addressing table on top, so that
+ * a lookup neither allocates nor acquires a lock. The service id and objectClass always
+ * override the values given by the registrant.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 21-Oct-2012
+ */
+@SuppressWarnings("rawtypes")
+final class ServiceProperties extends Dictionary<String, Object> {
+
+    private final String[] keys;
+    private final Object[] values;
+    private final int[] slots;
+
+    ServiceProperties(Dictionary properties, long serviceId, String[] classNames) {
+        int size = (properties != null ? properties.size() : 0) + 2;
+        String[] keyArr = new String[size];
+        Object[] valueArr = new Object[size];
+        keyArr[0] = Constants.SERVICE_ID;
+        valueArr[0] = Long.valueOf(serviceId);
+        keyArr[1] = Constants.OBJECTCLASS;
+        valueArr[1] = classNames;
+
+        int count = 2;
+        if (properties != null) {
+            Enumeration en = properties.keys();
+            while (en.hasMoreElements()) {
+                Object keyObj = en.nextElement();
+                String key = keyObj.toString();
+                if (key.equalsIgnoreCase(Constants.SERVICE_ID) || key.equalsIgnoreCase(Constants.OBJECTCLASS))
+                    continue;
+                for (int i = 2; i < count; i++) {
+                    if (keyArr[i].equalsIgnoreCase(key))
+                        throw MESSAGES.illegalArgumentCaseVariantPropertyKeys(keyArr[i], key);
+                }
+                keyArr[count] = key;
+                valueArr[count] = properties.get(keyObj);
+                count++;
+            }
+        }
+        keys = count < size ? Arrays.copyOf(keyArr, count) : keyArr;
+        values = count < size ? Arrays.copyOf(valueArr, count) : valueArr;
+
+        // Slots hold the array index plus one, zero marks a free slot
+        int length = Integer.highestOneBit(count) << 2;
+        slots = new int[length];
+        for (int i = 0; i < count; i++) {
+            int slot = hash(keys[i]) & (length - 1);
+            while (slots[slot] != 0)
+                slot = (slot + 1) & (length - 1);
+            slots[slot] = i + 1;
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (key instanceof String == false)
+            return null;
+
+        String strkey = (String) key;
+        int length = slots.length;
+        int slot = hash(strkey) & (length - 1);
+        int index;
+        while ((index = slots[slot]) != 0) {
+            if (keys[index - 1].equalsIgnoreCase(strkey))
+                return values[index - 1];
+            slot = (slot + 1) & (length - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Get a new array of the property keys in their original case
+     */
+    String[] getKeys() {
+        return keys.clone();
+    }
+
+    /**
+     * Get the keys whose values differ between these and the given properties
+     *
+     * @return A set of lower case keys
+     */
+    Set<String> getModifiedKeys(ServiceProperties other) {
+        Set<String> result = new HashSet<String>();
+        for (int i = 0; i < keys.length; i++) {
+            if (valueEquals(values[i], other.get(keys[i])) == false)
+                result.add(keys[i].toLowerCase(Locale.ENGLISH));
+        }
+        for (int i = 0; i < other.keys.length; i++) {
+            if (get(other.keys[i]) == null)
+                result.add(other.keys[i].toLowerCase(Locale.ENGLISH));
+        }
+        return result;
+    }
+
+    // Compares array values by their content
+    private static boolean valueEquals(Object value, Object other) {
+        return Arrays.deepEquals(new Object[] { value }, new Object[] { other });
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    @Override
+    public Enumeration<String> keys() {
+        return Collections.enumeration(Arrays.asList(keys));
+    }
+
+    @Override
+    public Enumeration<Object> elements() {
+        return Collections.enumeration(Arrays.asList(values));
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object remove(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    // A hash that is consistent with String.equalsIgnoreCase
+    private static int hash(String key) {
+        int hash = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char ch = Character.toLowerCase(Character.toUpperCase(key.charAt(i)));
+            hash = 31 * hash + ch;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < keys.length; i++) {
+            Object value = values[i];
+            if (value instanceof Object[])
+                value = Arrays.asList((Object[]) value);
+            builder.append(i > 0 ? ", " : "").append(keys[i]).append("=").append(value);
+        }
+        return builder.append("}").toString();
+    }
+}
@@ -0,0 +1,428 @@
+package org.jboss.osgi.framework.internal;
+
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.osgi.framework.Constants;
+
+/**
+ * A copy-on-write index of the registered services, keyed by objectClass.
+ *
+ * Modifications are serialized and publish a new immutable {@link Snapshot}. Lookups never block,
+ * they operate on the snapshot that was current when the lookup started.
+ *
+ * Every list in the snapshot is kept in {@link ServiceReferenceComparator} order, which means that
+ * the service with the highest ranking and the lowest service id is the last element.
+ *
+ * Additionally, services are indexed by the values of a configurable set of property keys. A service with a
+ * String, String[] or Collection of String value is indexed under each of these strings. Services with
+ * any other value type for an indexed key are kept in a separate list, that is part of every lookup for that key.
+ * They are also merged into the list of every value when the index is modified, so that a lookup does not merge.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 18-Oct-2012
+ */
+final class ServiceRegistryIndex {
+
+    private static final String OBJECTCLASS_KEY = Constants.OBJECTCLASS.toLowerCase(Locale.ENGLISH);
+
+    // Marks a property value that cannot be indexed by its string values
+    private static final Object UNINDEXED_VALUE = new Object();
+
+    private final Set<String> indexedKeys;
+    private final Object writeLock = new Object();
+    private volatile Snapshot snapshot;
+
+    // The values a service has been indexed with, guarded by the writeLock
+    private final Map<ServiceState, Map<String, Object>> indexedValues = new HashMap<ServiceState, Map<String, Object>>();
+
+    ServiceRegistryIndex(Collection<String> keys) {
+        Set<String> lowerKeys = new HashSet<String>();
+        for (String key : keys) {
+            lowerKeys.add(key.toLowerCase(Locale.ENGLISH));
+        }
+        // The objectClass is always indexed as the primary key
+        lowerKeys.remove(OBJECTCLASS_KEY);
+        indexedKeys = Collections.unmodifiableSet(lowerKeys);
+
+        Map<String, KeyIndex> propertyIndex = new HashMap<String, KeyIndex>();
+        for (String key : indexedKeys) {
+            propertyIndex.put(key, KeyIndex.EMPTY);
+        }
+        List<ServiceState> empty = Collections.emptyList();
+        snapshot = new Snapshot(Collections.<String, List<ServiceState>> emptyMap(), empty, propertyIndex);
+    }
+
+    /**
+     * Get the current immutable snapshot of the registry
+     */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the lower case property keys that are indexed
+     */
+    Set<String> getIndexedKeys() {
+        return indexedKeys;
+    }
+
+    void addService(ServiceState serviceState) {
+        addServices(Collections.singletonList(serviceState));
+    }
+
+    /**
+     * Add the given services in a single modification, which publishes one new snapshot
+     */
+    void addServices(List<ServiceState> serviceStates) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            Map<String, List<ServiceState>> byClass = new HashMap<String, List<ServiceState>>(current.servicesByClass);
+            Map<String, KeyIndex> propertyIndex = new HashMap<String, KeyIndex>(current.propertyIndex);
+            Map<String, List<ServiceState>> addedByClass = new HashMap<String, List<ServiceState>>();
+            for (ServiceState serviceState : serviceStates) {
+                for (String className : serviceState.getUniqueClassNames()) {
+                    List<ServiceState> added = addedByClass.get(className);
+                    if (added == null) {
+                        added = new ArrayList<ServiceState>();
+                        addedByClass.put(className, added);
+                    }
+                    added.add(serviceState);
+                }
+                addIndexedValues(propertyIndex, serviceState);
+            }
+
+            // Merge the sorted additions, instead of inserting them one by one
+            for (Entry<String, List<ServiceState>> entry : addedByClass.entrySet()) {
+                String className = entry.getKey();
+                List<ServiceState> states = byClass.get(className);
+                byClass.put(className, merge(states != null ? states : Collections.<ServiceState> emptyList(), sort(entry.getValue())));
+            }
+            List<ServiceState> allServices = merge(current.allServices, sort(serviceStates));
+            snapshot = new Snapshot(byClass, allServices, propertyIndex);
+        }
+    }
+
+    boolean removeService(ServiceState serviceState) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            List<ServiceState> allServices = remove(current.allServices, serviceState);
+            if (allServices == current.allServices)
+                return false;
+
+            Map<String, List<ServiceState>> byClass = new HashMap<String, List<ServiceState>>(current.servicesByClass);
+            for (String className : serviceState.getUniqueClassNames()) {
+                List<ServiceState> states = remove(byClass.get(className), serviceState);
+                if (states != null && states.isEmpty() == false) {
+                    byClass.put(className, states);
+                } else {
+                    byClass.remove(className);
+                }
+            }
+            Map<String, KeyIndex> propertyIndex = new HashMap<String, KeyIndex>(current.propertyIndex);
+            removeIndexedValues(propertyIndex, serviceState);
+            snapshot = new Snapshot(byClass, allServices, propertyIndex);
+            return true;
+        }
+    }
+
+    /**
+     * Modify the properties of the given service and update the index.
+     *
+     * The new properties and ranking are published while the write lock is held. Every modification of the index
+     * therefore orders the services by rankings that do not change while it runs.
+     *
+     * @return True if the service has moved to a new position in the ranking order
+     */
+    boolean updateService(ServiceState serviceState, ServiceProperties properties) {
+        synchronized (writeLock) {
+            boolean rankingChanged = serviceState.updateProperties(properties);
+            Snapshot current = snapshot;
+            if (current.allServices.contains(serviceState) == false)
+                return rankingChanged;
+
+            Map<String, Object> prevValues = indexedValues.get(serviceState);
+            boolean valuesChanged = (prevValues != null && !prevValues.equals(getIndexedValues(serviceState)));
+            if (rankingChanged == false && valuesChanged == false)
+                return rankingChanged;
+
+            Map<String, KeyIndex> propertyIndex = new HashMap<String, KeyIndex>(current.propertyIndex);
+            removeIndexedValues(propertyIndex, serviceState);
+            addIndexedValues(propertyIndex, serviceState);
+
+            Map<String, List<ServiceState>> byClass = current.servicesByClass;
+            List<ServiceState> allServices = current.allServices;
+            if (rankingChanged) {
+                byClass = new HashMap<String, List<ServiceState>>(byClass);
+                for (String className : serviceState.getUniqueClassNames()) {
+                    byClass.put(className, insert(remove(byClass.get(className), serviceState), serviceState));
+                }
+                allServices = insert(remove(allServices, serviceState), serviceState);
+            }
+            snapshot = new Snapshot(byClass, allServices, propertyIndex);
+            return rankingChanged;
+        }
+    }
+
+    private void addIndexedValues(Map<String, KeyIndex> propertyIndex, ServiceState serviceState) {
+        if (indexedKeys.isEmpty())
+            return;
+
+        Map<String, Object> values = getIndexedValues(serviceState);
+        for (Entry<String, Object> entry : values.entrySet()) {
+            String key = entry.getKey();
+            propertyIndex.put(key, propertyIndex.get(key).add(serviceState, entry.getValue()));
+        }
+        indexedValues.put(serviceState, values);
+    }
+
+    private void removeIndexedValues(Map<String, KeyIndex> propertyIndex, ServiceState serviceState) {
+        Map<String, Object> values = indexedValues.remove(serviceState);
+        if (values == null)
+            return;
+
+        for (Entry<String, Object> entry : values.entrySet()) {
+            String key = entry.getKey();
+            propertyIndex.put(key, propertyIndex.get(key).remove(serviceState, entry.getValue()));
+        }
+    }
+
+    /**
+     * Get the string values for each indexed key that the service has a value for.
+     * The value is a set of strings or {@link #UNINDEXED_VALUE}.
+     */
+    private Map<String, Object> getIndexedValues(ServiceState serviceState) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        for (String key : indexedKeys) {
+            Object value = serviceState.getProperty(key);
+            if (value != null) {
+                result.put(key, getStringValues(value));
+            }
+        }
+        return result;
+    }
+
+    private static Object getStringValues(Object value) {
+        if (value instanceof String)
+            return Collections.singleton((String) value);
+
+        Collection<?> values = null;
+        if (value instanceof String[]) {
+            values = Arrays.asList((String[]) value);
+        } else if (value instanceof Collection) {
+            values = (Collection<?>) value;
+        }
+        if (values == null)
+            return UNINDEXED_VALUE;
+
+        Set<String> result = new HashSet<String>();
+        for (Object aux : values) {
+            if (aux instanceof String == false)
+                return UNINDEXED_VALUE;
+            result.add((String) aux);
+        }
+        return result;
+    }
+
+    private static List<ServiceState> insert(List<ServiceState> states, ServiceState serviceState) {
+        ServiceState[] source = toArray(states);
+        int index = Arrays.binarySearch(source, serviceState, ServiceReferenceComparator.getInstance());
+        if (index >= 0)
+            return states;
+
+        index = -(index + 1);
+        ServiceState[] result = new ServiceState[source.length + 1];
+        System.arraycopy(source, 0, result, 0, index);
+        result[index] = serviceState;
+        System.arraycopy(source, index, result, index + 1, source.length - index);
+        return toList(result);
+    }
+
+    private static List<ServiceState> remove(List<ServiceState> states, ServiceState serviceState) {
+        if (states == null)
+            return null;
+
+        // The ranking may have changed already, search by identity
+        ServiceState[] source = toArray(states);
+        for (int i = 0; i < source.length; i++) {
+            if (source[i] == serviceState) {
+                ServiceState[] result = new ServiceState[source.length - 1];
+                System.arraycopy(source, 0, result, 0, i);
+                System.arraycopy(source, i + 1, result, i, source.length - i - 1);
+                return toList(result);
+            }
+        }
+        return states;
+    }
+
+    private static List<ServiceState> merge(List<ServiceState> first, List<ServiceState> second) {
+        ServiceState[] result = new ServiceState[first.size() + second.size()];
+        int i = 0, j = 0, k = 0;
+        while (i < first.size() && j < second.size()) {
+            ServiceState s1 = first.get(i);
+            ServiceState s2 = second.get(j);
+            if (ServiceReferenceComparator.getInstance().compare(s1, s2) <= 0) {
+                result[k++] = s1;
+                i++;
+            } else {
+                result[k++] = s2;
+                j++;
+            }
+        }
+        while (i < first.size())
+            result[k++] = first.get(i++);
+        while (j < second.size())
+            result[k++] = second.get(j++);
+        return toList(result);
+    }
+
+    private static List<ServiceState> sort(List<ServiceState> states) {
+        ServiceState[] result = toArray(states);
+        Arrays.sort(result, ServiceReferenceComparator.getInstance());
+        return toList(result);
+    }
+
+    private static ServiceState[] toArray(List<ServiceState> states) {
+        return states != null ? states.toArray(new ServiceState[states.size()]) : new ServiceState[0];
+    }
+
+    private static List<ServiceState> toList(ServiceState[] states) {
+        return Collections.unmodifiableList(Arrays.asList(states));
+    }
+
+    /**
+     * The immutable index of the services for a single property key.
+     */
+    private static final class KeyIndex {
+
+        static final KeyIndex EMPTY = new KeyIndex(Collections.<String, List<ServiceState>> emptyMap(), Collections.<ServiceState> emptyList());
+
+        private final Map<String, List<ServiceState>> byValue;
+        private final List<ServiceState> unindexed;
+
+        private KeyIndex(Map<String, List<ServiceState>> byValue, List<ServiceState> unindexed) {
+            this.byValue = byValue;
+            this.unindexed = unindexed;
+        }
+
+        @SuppressWarnings("unchecked")
+        KeyIndex add(ServiceState serviceState, Object values) {
+            Map<String, List<ServiceState>> result = new HashMap<String, List<ServiceState>>(byValue);
+            if (values == UNINDEXED_VALUE) {
+                for (Entry<String, List<ServiceState>> entry : byValue.entrySet()) {
+                    result.put(entry.getKey(), insert(entry.getValue(), serviceState));
+                }
+                return new KeyIndex(result, insert(unindexed, serviceState));
+            }
+
+            for (String value : (Set<String>) values) {
+                List<ServiceState> states = result.get(value);
+                result.put(value, insert(states != null ? states : unindexed, serviceState));
+            }
+            return new KeyIndex(result, unindexed);
+        }
+
+        @SuppressWarnings("unchecked")
+        KeyIndex remove(ServiceState serviceState, Object values) {
+            Map<String, List<ServiceState>> result = new HashMap<String, List<ServiceState>>(byValue);
+            if (values == UNINDEXED_VALUE) {
+                for (Entry<String, List<ServiceState>> entry : byValue.entrySet()) {
+                    result.put(entry.getKey(), ServiceRegistryIndex.remove(entry.getValue(), serviceState));
+                }
+                return new KeyIndex(result, ServiceRegistryIndex.remove(unindexed, serviceState));
+            }
+
+            for (String value : (Set<String>) values) {
+                List<ServiceState> states = ServiceRegistryIndex.remove(result.get(value), serviceState);
+                // Every value list contains the unindexed services, drop a list that has nothing else
+                if (states != null && states.size() > unindexed.size()) {
+                    result.put(value, states);
+                } else {
+                    result.remove(value);
+                }
+            }
+            return new KeyIndex(result, unindexed);
+        }
+
+        List<ServiceState> getServices(String value) {
+            List<ServiceState> matches = byValue.get(value);
+            return matches != null ? matches : unindexed;
+        }
+    }
+
+    /**
+     * An immutable view of the registered services.
+     */
+    static final class Snapshot {
+
+        private final Map<String, List<ServiceState>> servicesByClass;
+        private final List<ServiceState> allServices;
+        private final Map<String, KeyIndex> propertyIndex;
+
+        private Snapshot(Map<String, List<ServiceState>> servicesByClass, List<ServiceState> allServices, Map<String, KeyIndex> propertyIndex) {
+            this.servicesByClass = servicesByClass;
+            this.allServices = allServices;
+            this.propertyIndex = propertyIndex;
+        }
+
+        /**
+         * Get the ordered list of services registered under the given class name
+         */
+        List<ServiceState> getServices(String className) {
+            List<ServiceState> states = servicesByClass.get(className);
+            return states != null ? states : Collections.<ServiceState> emptyList();
+        }
+
+        /**
+         * Get the ordered list of services that may match the filter term (key=value).
+         *
+         * @param key The lower case property key
+         * @return The potentially matching services or null if the key is not indexed
+         */
+        List<ServiceState> getServices(String key, String value) {
+            if (OBJECTCLASS_KEY.equals(key))
+                return getServices(value);
+
+            KeyIndex keyIndex = propertyIndex.get(key);
+            return keyIndex != null ? keyIndex.getServices(value) : null;
+        }
+
+        /**
+         * Get the ordered list of all registered services
+         */
+        List<ServiceState> getAllServices() {
+            return allServices;
+        }
+    }
+}
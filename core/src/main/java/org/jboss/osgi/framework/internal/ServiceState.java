@@ -25,22 +25,19 @@ package org.jboss.osgi.framework.internal;
 import static org.jboss.osgi.framework.internal.FrameworkLogger.LOGGER;
 import static org.jboss.osgi.framework.internal.FrameworkMessages.MESSAGES;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Dictionary;
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.msc.service.ServiceName;
-import org.jboss.osgi.metadata.CaseInsensitiveDictionary;
 import org.jboss.osgi.resolver.XBundle;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
@@ -64,18 +61,20 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
     private final ServiceManagerPlugin serviceManager;
     private final XBundle ownerBundle;
     private final String[] classNames;
+    private final String[] uniqueClassNames;
     private final long serviceId;
     private final ValueProvider valueProvider;
     private final ServiceReference reference;
     private ServiceRegistration registration;
-    private Set<AbstractBundleState> usingBundles;
-    private Map<Long, ServiceFactoryHolder> factoryValues;
+
+    // The usage of this service by bundle
+    private final ConcurrentMap<AbstractBundleState, ServiceUse> serviceUses = new ConcurrentHashMap<AbstractBundleState, ServiceUse>();
 
     // The properties
-    private CaseInsensitiveDictionary prevProperties;
-    private CaseInsensitiveDictionary currProperties;
+    private volatile ServiceProperties prevProperties;
+    private volatile ServiceProperties currProperties;
+    private volatile int serviceRanking;
 
-    @SuppressWarnings("unchecked")
     ServiceState(ServiceManagerPlugin serviceManager, XBundle owner, long serviceId, String[] classNames, ValueProvider valueProvider, Dictionary properties) {
         assert serviceManager != null : "Null serviceManager";
         assert owner != null : "Null owner";
@@ -87,16 +86,13 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
         this.serviceId = serviceId;
         this.valueProvider = valueProvider;
         this.classNames = classNames;
+        this.uniqueClassNames = uniqueClassNames(classNames);
 
         if (!valueProvider.isFactoryValue() && !checkValidClassNames(owner, classNames, valueProvider.getValue()))
             throw MESSAGES.illegalArgumentInvalidObjectClass(Arrays.toString(classNames));
 
-        if (properties == null)
-            properties = new Hashtable();
-
-        properties.put(Constants.SERVICE_ID, serviceId);
-        properties.put(Constants.OBJECTCLASS, classNames);
-        this.currProperties = new CaseInsensitiveDictionary(properties);
+        this.currProperties = new ServiceProperties(properties, serviceId, classNames);
+        this.serviceRanking = getRankingProperty(currProperties);
 
         // Create the {@link ServiceRegistration} and {@link ServiceReference}
         this.registration = new ServiceRegistrationWrapper(this);
@@ -126,70 +122,33 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
         return valueProvider.getValue();
     }
 
-    Object getScopedValue(AbstractBundleState bundleState) {
-
-        // For non-factory services, return the value
-        if (valueProvider.isFactoryValue() == false)
-            return valueProvider.getValue();
-
-        // Get the ServiceFactory value
-        Object result = null;
-        try {
-            if (factoryValues == null)
-                factoryValues = new HashMap<Long, ServiceFactoryHolder>();
-
-            ServiceFactoryHolder factoryHolder = getFactoryHolder(bundleState);
-            if (factoryHolder == null) {
-                ServiceFactory factory = (ServiceFactory) valueProvider.getValue();
-                factoryHolder = new ServiceFactoryHolder(bundleState, factory);
-                factoryValues.put(bundleState.getBundleId(), factoryHolder);
-            }
-
-            result = factoryHolder.getService();
-
-            // If the service object returned by the ServiceFactory object is not an instanceof all the classes named
-            // when the service was registered or the ServiceFactory object throws an exception,
-            // null is returned and a Framework event of type {@link FrameworkEvent#ERROR}
-            // containing a {@link ServiceException} describing the error is fired.
-            if (result == null) {
-                ServiceException sex = new ServiceException("Cannot get factory value", ServiceException.FACTORY_ERROR);
-                FrameworkEventsPlugin eventsPlugin = serviceManager.getFrameworkEventsPlugin();
-                eventsPlugin.fireFrameworkEvent(bundleState, FrameworkEvent.ERROR, sex);
-            }
-        } catch (Throwable th) {
-            ServiceException sex = new ServiceException("Cannot get factory value", ServiceException.FACTORY_EXCEPTION, th);
-            FrameworkEventsPlugin eventsPlugin = serviceManager.getFrameworkEventsPlugin();
-            eventsPlugin.fireFrameworkEvent(bundleState, FrameworkEvent.ERROR, sex);
-        }
-        return result;
+    ServiceRegistration getRegistration() {
+        return registration;
     }
 
-    void ungetScopedValue(AbstractBundleState bundleState) {
-        if (valueProvider.isFactoryValue()) {
-            ServiceFactoryHolder factoryHolder = getFactoryHolder(bundleState);
-            if (factoryHolder != null) {
-                try {
-                    factoryHolder.ungetService();
-                } catch (RuntimeException rte) {
-                    ServiceException sex = new ServiceException("Cannot unget factory value", ServiceException.FACTORY_EXCEPTION, rte);
-                    FrameworkEventsPlugin eventsPlugin = serviceManager.getFrameworkEventsPlugin();
-                    eventsPlugin.fireFrameworkEvent(bundleState, FrameworkEvent.WARNING, sex);
-                }
-            }
-        }
-    }
 
-    private ServiceFactoryHolder getFactoryHolder(AbstractBundleState bundleState) {
-        return factoryValues != null ? factoryValues.get(bundleState.getBundleId()) : null;
+    List<String> getClassNames() {
+        return Arrays.asList(classNames);
     }
 
-    ServiceRegistration getRegistration() {
-        return registration;
+    /**
+     * Get the class names without repetitions, in the order in which they were given. The array must not be modified.
+     */
+    String[] getUniqueClassNames() {
+        return uniqueClassNames;
     }
 
+    private static String[] uniqueClassNames(String[] classNames) {
+        Set<String> unique = new LinkedHashSet<String>(Arrays.asList(classNames));
+        return unique.size() < classNames.length ? unique.toArray(new String[unique.size()]) : classNames;
+    }
 
-    List<String> getClassNames() {
-        return Arrays.asList(classNames);
+    boolean hasClassName(String className) {
+        for (String aux : classNames) {
+            if (aux.equals(className))
+                return true;
+        }
+        return false;
     }
 
     @Override
@@ -206,7 +165,6 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
 
     void unregisterInternal() {
         serviceManager.unregisterService(this);
-        usingBundles = null;
         registration = null;
     }
 
@@ -219,40 +177,54 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
 
     @Override
     public String[] getPropertyKeys() {
-        List<String> result = new ArrayList<String>();
-        if (currProperties != null) {
-            Enumeration<String> keys = currProperties.keys();
-            while (keys.hasMoreElements())
-                result.add(keys.nextElement());
-        }
-        return result.toArray(new String[result.size()]);
+        return currProperties.getKeys();
     }
 
     @Override
-    @SuppressWarnings({ "unchecked" })
     public void setProperties(Dictionary properties) {
         assertNotUnregistered();
 
-        // Remember the previous properties for a potential
-        // delivery of the MODIFIED_ENDMATCH event
-        prevProperties = currProperties;
+        ServiceProperties newProperties = new ServiceProperties(properties, serviceId, classNames);
 
-        if (properties == null)
-            properties = new Hashtable();
-
-        properties.put(Constants.SERVICE_ID, currProperties.get(Constants.SERVICE_ID));
-        properties.put(Constants.OBJECTCLASS, currProperties.get(Constants.OBJECTCLASS));
-        currProperties = new CaseInsensitiveDictionary(properties);
+        // The registry index publishes the new properties, so that the ranking does not change while it orders services
+        serviceManager.updateServiceProperties(this, newProperties);
 
         // This event is synchronously delivered after the service properties have been modified.
         FrameworkEventsPlugin eventsPlugin = serviceManager.getFrameworkEventsPlugin();
         eventsPlugin.fireServiceEvent(ownerBundle, ServiceEvent.MODIFIED, this);
     }
 
+    /**
+     * Replace the current properties. This is called by the {@link ServiceRegistryIndex} with its write lock held.
+     *
+     * @return True if the service ranking has changed
+     */
+    boolean updateProperties(ServiceProperties newProperties) {
+        // Remember the previous properties for a potential
+        // delivery of the MODIFIED_ENDMATCH event
+        prevProperties = currProperties;
+        currProperties = newProperties;
+
+        int prevRanking = serviceRanking;
+        serviceRanking = getRankingProperty(newProperties);
+        return prevRanking != serviceRanking;
+    }
+
     Dictionary getPreviousProperties() {
         return prevProperties;
     }
 
+    /**
+     * Get the lower case keys of the properties that have changed with the last modification
+     */
+    Set<String> getModifiedKeys() {
+        ServiceProperties previous = prevProperties;
+        if (previous == null)
+            return Collections.emptySet();
+
+        return currProperties.getModifiedKeys(previous);
+    }
+
     XBundle getServiceOwner() {
         return ownerBundle;
     }
@@ -265,44 +237,72 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
         return ownerBundle;
     }
 
-    void addUsingBundle(AbstractBundleState bundleState) {
-        synchronized (this) {
-            if (usingBundles == null)
-                usingBundles = new HashSet<AbstractBundleState>();
+    /**
+     * Increment the use count of the given bundle
+     *
+     * @return The usage of this service by the given bundle
+     */
+    ServiceUse addUsingBundle(AbstractBundleState bundleState) {
+        while (true) {
+            ServiceUse serviceUse = serviceUses.get(bundleState);
+            if (serviceUse == null) {
+                ServiceUse newUse = new ServiceUse(bundleState);
+                serviceUse = serviceUses.putIfAbsent(bundleState, newUse);
+                if (serviceUse == null) {
+                    serviceUse = newUse;
+                    bundleState.addServiceInUse(this);
+                }
+            }
+            if (serviceUse.increment())
+                return serviceUse;
 
-            usingBundles.add(bundleState);
+            // The usage has been released concurrently
+            serviceUses.remove(bundleState, serviceUse);
         }
     }
 
-    void removeUsingBundle(AbstractBundleState bundleState) {
-        synchronized (this) {
-            if (usingBundles != null)
-                usingBundles.remove(bundleState);
+    /**
+     * Decrement the use count of the given bundle. When the count drops to zero,
+     * the usage is removed and a service object obtained from a factory is released.
+     *
+     * @return The remaining use count or -1 if the bundle does not use this service
+     */
+    int removeUsingBundle(AbstractBundleState bundleState) {
+        ServiceUse serviceUse = serviceUses.get(bundleState);
+        if (serviceUse == null)
+            return -1;
+
+        int useCount = serviceUse.decrement();
+        if (useCount == 0 && serviceUse.release()) {
+            serviceUses.remove(bundleState, serviceUse);
+            bundleState.removeServiceInUse(this);
+
+            // A new usage may have been added concurrently
+            if (serviceUses.containsKey(bundleState))
+                bundleState.addServiceInUse(this);
+
+            serviceUse.ungetValue();
         }
+        return useCount;
     }
 
-    Set<AbstractBundleState> getUsingBundlesInternal() {
-        synchronized (this) {
-            if (usingBundles == null)
-                return Collections.emptySet();
+    /**
+     * True if the given bundle currently uses this service
+     */
+    boolean isUsedBy(AbstractBundleState bundleState) {
+        return serviceUses.containsKey(bundleState);
+    }
 
-            // Return an unmodifieable snapshot of the set
-            return Collections.unmodifiableSet(new HashSet<AbstractBundleState>(usingBundles));
-        }
+    Set<AbstractBundleState> getUsingBundlesInternal() {
+        // Return an unmodifieable snapshot of the set
+        return Collections.unmodifiableSet(new HashSet<AbstractBundleState>(serviceUses.keySet()));
     }
 
     @Override
     public Bundle[] getUsingBundles() {
-        synchronized (this) {
-            if (usingBundles == null)
-                return null;
-
-            Set<Bundle> bundles = new HashSet<Bundle>();
-            for (AbstractBundleState aux : usingBundles)
-                bundles.add(aux);
-
-            return bundles.toArray(new Bundle[bundles.size()]);
-        }
+        Set<AbstractBundleState> bundles = serviceUses.keySet();
+        Bundle[] result = bundles.toArray(new Bundle[bundles.size()]);
+        return result.length > 0 ? result : null;
     }
 
     @Override
@@ -318,6 +318,30 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
         if (bundle.getState() == Bundle.UNINSTALLED)
             return false;
 
+        // Repeated checks are answered by the requesting bundle's cache
+        AssignabilityCache cache = null;
+        if (bundle instanceof AbstractBundleState) {
+            cache = ((AbstractBundleState) bundle).getAssignabilityCache();
+            Boolean cached = cache.get(ownerBundle, className);
+            if (cached != null)
+                return cached.booleanValue();
+        }
+
+        Boolean result = isAssignableInternal(bundle, className);
+        if (result == null) {
+            // A class that cannot be loaded yet may become loadable, e.g. when the bundle gets resolved
+            return true;
+        }
+        if (cache != null)
+            cache.put(ownerBundle, className, result.booleanValue());
+
+        return result.booleanValue();
+    }
+
+    /**
+     * @return The assignability or null if one of the bundles cannot load the class
+     */
+    private Boolean isAssignableInternal(Bundle bundle, String className) {
         Class<?> targetClass;
         try {
             targetClass = bundle.loadClass(className);
@@ -325,7 +349,7 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
             // If the requesting bundle does not have a wire to the
             // service package it cannot be constraint on that package.
             LOGGER.tracef("Requesting bundle [%s] cannot load class: %s", bundle, className);
-            return true;
+            return null;
         }
 
         // For the bundle that registered the service referenced by this ServiceReference (registrant bundle);
@@ -336,17 +360,17 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
             serviceClass = ownerBundle.loadClass(className);
         } catch (ClassNotFoundException e) {
             LOGGER.tracef("Registrant bundle [%s] cannot load class: %s", ownerBundle, className);
-            return true;
+            return null;
         }
 
         // If the package source of the registrant bundle is equal to the package source of the specified bundle
         // then return true; otherwise return false.
         if (targetClass != serviceClass) {
             LOGGER.tracef("Not assignable: %s", className);
-            return false;
+            return Boolean.FALSE;
         }
 
-        return true;
+        return Boolean.TRUE;
     }
 
     @Override
@@ -359,7 +383,11 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
     }
 
     int getServiceRanking() {
-        Object prop = getProperty(Constants.SERVICE_RANKING);
+        return serviceRanking;
+    }
+
+    private static int getRankingProperty(ServiceProperties properties) {
+        Object prop = properties.get(Constants.SERVICE_RANKING);
         if (prop instanceof Integer == false)
             return 0;
 
@@ -409,12 +437,8 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public String toString() {
-        Hashtable<String, Object> props = new Hashtable<String, Object>(currProperties);
-        String[] classes = (String[]) props.get(Constants.OBJECTCLASS);
-        props.put(Constants.OBJECTCLASS, Arrays.asList(classes));
-        return "ServiceState" + props;
+        return "ServiceState" + currProperties;
     }
 
     interface ValueProvider {
@@ -423,50 +447,120 @@ final class ServiceState implements ServiceRegistration, ServiceReference {
         Object getValue();
     }
 
-    class ServiceFactoryHolder {
+    /**
+     * The usage of this service by a single bundle.
+     *
+     * The use count is maintained without locking. A service object from a {@link ServiceFactory} is created exactly
+     * once per usage, subsequent calls read it without locking. Once the count dropped to zero the usage is released
+     * and cannot be used again.
+     */
+    final class ServiceUse {
+
+        private static final int RELEASED = -1;
 
-        ServiceFactory factory;
-        AbstractBundleState bundleState;
-        AtomicInteger useCount;
-        Object value;
+        private final AbstractBundleState bundleState;
+        private final AtomicInteger useCount = new AtomicInteger();
+        private volatile boolean valueCreated;
+        private volatile Object value;
 
-        ServiceFactoryHolder(AbstractBundleState bundleState, ServiceFactory factory) {
+        ServiceUse(AbstractBundleState bundleState) {
             this.bundleState = bundleState;
-            this.factory = factory;
-            this.useCount = new AtomicInteger();
         }
 
-        Object getService() {
-            // Multiple calls to getService() return the same value
-            if (useCount.get() == 0) {
-                // The Framework must not allow this method to be concurrently called for the same bundle
-                synchronized (bundleState) {
-                    Object retValue = factory.getService(bundleState, getRegistration());
-                    if (retValue == null)
-                        return null;
-
-                    // The Framework will check if the returned service object is an instance of all the
-                    // classes named when the service was registered. If not, then null is returned to the bundle.
-                    if (checkValidClassNames(ownerBundle, (String[]) getProperty(Constants.OBJECTCLASS), retValue) == false)
-                        return null;
-
-                    value = retValue;
+        private boolean increment() {
+            while (true) {
+                int count = useCount.get();
+                if (count == RELEASED)
+                    return false;
+                if (useCount.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        private int decrement() {
+            while (true) {
+                int count = useCount.get();
+                if (count <= 0)
+                    return -1;
+                if (useCount.compareAndSet(count, count - 1))
+                    return count - 1;
+            }
+        }
+
+        // Only one thread can release an unused usage
+        private boolean release() {
+            return useCount.compareAndSet(0, RELEASED);
+        }
+
+        /**
+         * Get the service object for the using bundle
+         *
+         * @return The service object or null if the service factory failed
+         */
+        Object getValue() {
+
+            // For non-factory services, return the value
+            if (valueProvider.isFactoryValue() == false)
+                return valueProvider.getValue();
+
+            if (valueCreated)
+                return value;
+
+            // The Framework must not allow the factory to be concurrently called for the same bundle
+            synchronized (this) {
+                if (valueCreated == false) {
+                    value = createValue();
+                    valueCreated = true;
                 }
+                return value;
             }
+        }
 
-            useCount.incrementAndGet();
-            return value;
+        private Object createValue() {
+            Object result = null;
+            try {
+                ServiceFactory factory = (ServiceFactory) valueProvider.getValue();
+                result = factory.getService(bundleState, getRegistration());
+
+                // The Framework will check if the returned service object is an instance of all the
+                // classes named when the service was registered. If not, then null is returned to the bundle.
+                if (result != null && checkValidClassNames(ownerBundle, classNames, result) == false)
+                    result = null;
+
+                // If the service object returned by the ServiceFactory object is not an instanceof all the classes named
+                // when the service was registered or the ServiceFactory object throws an exception,
+                // null is returned and a Framework event of type {@link FrameworkEvent#ERROR}
+                // containing a {@link ServiceException} describing the error is fired.
+                if (result == null) {
+                    ServiceException sex = new ServiceException("Cannot get factory value", ServiceException.FACTORY_ERROR);
+                    FrameworkEventsPlugin eventsPlugin = serviceManager.getFrameworkEventsPlugin();
+                    eventsPlugin.fireFrameworkEvent(bundleState, FrameworkEvent.ERROR, sex);
+                }
+            } catch (Throwable th) {
+                ServiceException sex = new ServiceException("Cannot get factory value", ServiceException.FACTORY_EXCEPTION, th);
+                FrameworkEventsPlugin eventsPlugin = serviceManager.getFrameworkEventsPlugin();
+                eventsPlugin.fireFrameworkEvent(bundleState, FrameworkEvent.ERROR, sex);
+            }
+            return result;
         }
 
-        void ungetService() {
-            if (useCount.get() == 0)
+        private void ungetValue() {
+            if (valueProvider.isFactoryValue() == false)
                 return;
 
-            // Call unget on the factory when done
-            if (useCount.decrementAndGet() == 0) {
-                synchronized (bundleState) {
-                    factory.ungetService(bundleState, getRegistration(), value);
-                    value = null;
+            Object factoryValue;
+            synchronized (this) {
+                factoryValue = value;
+                value = null;
+            }
+            if (factoryValue != null) {
+                try {
+                    ServiceFactory factory = (ServiceFactory) valueProvider.getValue();
+                    factory.ungetService(bundleState, getRegistration(), factoryValue);
+                } catch (RuntimeException rte) {
+                    ServiceException sex = new ServiceException("Cannot unget factory value", ServiceException.FACTORY_EXCEPTION, rte);
+                    FrameworkEventsPlugin eventsPlugin = serviceManager.getFrameworkEventsPlugin();
+                    eventsPlugin.fireFrameworkEvent(bundleState, FrameworkEvent.WARNING, sex);
                 }
             }
         }
@@ -0,0 +1,584 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.jboss.osgi.framework.internal.FrameworkLogger.LOGGER;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.jboss.msc.service.ServiceBuilder;
+import org.jboss.msc.service.ServiceController.Mode;
+import org.jboss.msc.service.ServiceTarget;
+import org.jboss.msc.service.StartContext;
+import org.jboss.msc.service.StartException;
+import org.jboss.msc.service.StopContext;
+import org.jboss.msc.value.InjectedValue;
+import org.jboss.osgi.framework.Constants;
+import org.jboss.osgi.framework.ExecutorServicePlugin;
+import org.jboss.osgi.framework.IntegrationService;
+import org.jboss.osgi.framework.ServiceStatistics;
+import org.jboss.osgi.framework.Services;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * A plugin that collects the {@link ServiceStatistics}.
+ *
+ * Collectors check {@link #isEnabled()} before they take any measurement, so that
+ * disabled statistics cost a single field read.
+ *
+ * If a slow listener threshold is configured, listener callbacks that are still in progress are checked
+ * by a watchdog, so that a listener that hangs is reported while it blocks and not only once it returns.
+ * Every thread publishes its callbacks in progress in a slot of its own, which the watchdog scans.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 25-Oct-2012
+ */
+final class ServiceStatisticsPlugin extends AbstractPluginService<ServiceStatisticsPlugin> implements ServiceStatistics {
+
+    private static final String ALL_CLASSES = "*";
+
+    private final InjectedValue<BundleManagerPlugin> injectedBundleManager = new InjectedValue<BundleManagerPlugin>();
+    private final InjectedValue<ExecutorServicePlugin> injectedExecutorPlugin = new InjectedValue<ExecutorServicePlugin>();
+    private final ConcurrentMap<String, AtomicLong> lookupCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong filterEvaluations = new AtomicLong();
+    private final AtomicLong candidatesExamined = new AtomicLong();
+    private final AtomicLong candidatesReturned = new AtomicLong();
+    private final Histogram lookupTime = new Histogram();
+    private final Histogram findHookTime = new Histogram();
+    private final Histogram eventHookTime = new Histogram();
+    private final Histogram listenerDispatchTime = new Histogram();
+    private final Histogram asyncListenerDispatchTime = new Histogram();
+    private final AtomicLong maxAsyncEventQueueDepth = new AtomicLong();
+    private final ConcurrentMap<String, ListenerTimes> listenerTimesByBundle = new ConcurrentHashMap<String, ListenerTimes>();
+    private final ConcurrentMap<String, ListenerTimes> listenerTimesByListener = new ConcurrentHashMap<String, ListenerTimes>();
+    private final ThreadLocal<CallbackSlot> callbackSlot = new ThreadLocal<CallbackSlot>();
+    private final Queue<CallbackSlot> callbackSlots = new ConcurrentLinkedQueue<CallbackSlot>();
+    private final AtomicLong slowCallbacksInProgress = new AtomicLong();
+    private long slowListenerThreshold;
+    private ExecutorService watchdog;
+    private volatile boolean watchdogActive;
+    private volatile OrderedListenerExecutor asyncEventExecutor;
+    private volatile boolean enabled;
+    private boolean jmxEnabled;
+    private ServiceRegistration registration;
+    private ObjectName objectName;
+
+    static void addService(ServiceTarget serviceTarget) {
+        ServiceStatisticsPlugin service = new ServiceStatisticsPlugin();
+        ServiceBuilder<ServiceStatisticsPlugin> builder = serviceTarget.addService(InternalServices.SERVICE_STATISTICS_PLUGIN, service);
+        builder.addDependency(Services.BUNDLE_MANAGER, BundleManagerPlugin.class, service.injectedBundleManager);
+        builder.addDependency(IntegrationService.EXECUTOR_SERVICE_PLUGIN, ExecutorServicePlugin.class, service.injectedExecutorPlugin);
+        builder.setInitialMode(Mode.ON_DEMAND);
+        builder.install();
+    }
+
+    private ServiceStatisticsPlugin() {
+    }
+
+    @Override
+    public void start(StartContext context) throws StartException {
+        super.start(context);
+        BundleManagerPlugin bundleManager = injectedBundleManager.getValue();
+        enabled = getBooleanProperty(bundleManager, Constants.PROPERTY_SERVICE_STATISTICS);
+        jmxEnabled = enabled && getBooleanProperty(bundleManager, Constants.PROPERTY_SERVICE_STATISTICS_JMX);
+        Object threshold = bundleManager.getProperty(Constants.PROPERTY_SLOW_LISTENER_THRESHOLD);
+        long millis = threshold != null ? Long.parseLong(threshold.toString().trim()) : Constants.DEFAULT_SLOW_LISTENER_THRESHOLD;
+        slowListenerThreshold = TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
+        if (slowListenerThreshold > 0) {
+            final long period = Math.max(slowListenerThreshold / 2, TimeUnit.MILLISECONDS.toNanos(10));
+            watchdogActive = true;
+            watchdog = injectedExecutorPlugin.getValue().createExecutorService("OSGi Listener Watchdog", 1);
+            watchdog.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (watchdogActive) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(period);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        checkListenerCallbacks();
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void stop(StopContext context) {
+        super.stop(context);
+        watchdogActive = false;
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+        callbackSlots.clear();
+    }
+
+    private static boolean getBooleanProperty(BundleManagerPlugin bundleManager, String key) {
+        Object value = bundleManager.getProperty(key);
+        return value != null && Boolean.parseBoolean(value.toString());
+    }
+
+    @Override
+    public ServiceStatisticsPlugin getValue() {
+        return this;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * True if listener callbacks must be timed, see {@link #beginListenerCallback(AbstractBundleState, Object, Object)}
+     */
+    boolean isListenerTimingEnabled() {
+        return enabled || slowListenerThreshold > 0;
+    }
+
+    /**
+     * Register the statistics with the system bundle and optionally with the platform MBeanServer
+     */
+    void registerStatisticsService(BundleContext systemContext) {
+        if (enabled == false)
+            return;
+
+        registration = systemContext.registerService(ServiceStatistics.class.getName(), this, null);
+        if (jmxEnabled) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName oname = new ObjectName(OBJECT_NAME);
+                server.registerMBean(new StandardMBean(this, ServiceStatistics.class, true), oname);
+                objectName = oname;
+            } catch (Exception ex) {
+                LOGGER.warnCannotRegisterStatisticsMBean(ex, OBJECT_NAME);
+            }
+        }
+    }
+
+    void unregisterStatisticsService() {
+        if (registration != null) {
+            registration.unregister();
+            registration = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception ex) {
+                LOGGER.debugf(ex, "Cannot unregister: %s", objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Record a service lookup
+     *
+     * @param className The class name or null
+     * @param examined The number of services that have been examined
+     * @param evaluated The number of services that have been evaluated against a filter
+     * @param returned The number of services that have been returned
+     * @param startNanos The start time of the lookup
+     */
+    void recordLookup(String className, int examined, int evaluated, int returned, long startNanos) {
+        String key = className != null ? className : ALL_CLASSES;
+        AtomicLong count = lookupCounts.get(key);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = lookupCounts.putIfAbsent(key, newCount);
+            if (count == null)
+                count = newCount;
+        }
+        count.incrementAndGet();
+        if (examined > 0)
+            candidatesExamined.addAndGet(examined);
+        if (evaluated > 0)
+            filterEvaluations.addAndGet(evaluated);
+        if (returned > 0)
+            candidatesReturned.addAndGet(returned);
+        lookupTime.record(System.nanoTime() - startNanos);
+    }
+
+    void recordFindHooks(long startNanos) {
+        findHookTime.record(System.nanoTime() - startNanos);
+    }
+
+    void recordEventHooks(long startNanos) {
+        eventHookTime.record(System.nanoTime() - startNanos);
+    }
+
+    void recordListenerDispatch(long startNanos) {
+        listenerDispatchTime.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Begin the callback of an event listener. The callback must be ended with
+     * {@link #endListenerCallback(AbstractBundleState, Object, Object, long)} in a finally block, also if the listener throws.
+     *
+     * @param owner The bundle that registered the listener or null
+     * @param listener The bundle, service or framework listener
+     * @param event The event that the listener processes
+     * @return The start time of the callback or 0 if listener callbacks are not timed
+     */
+    long beginListenerCallback(AbstractBundleState owner, Object listener, Object event) {
+        if (isListenerTimingEnabled() == false)
+            return 0;
+
+        long startNanos = System.nanoTime();
+        if (slowListenerThreshold > 0)
+            getCallbackSlot().push(owner, listener, event, startNanos);
+        return startNanos;
+    }
+
+    /**
+     * End the callback of an event listener. A callback that exceeds the slow listener threshold is logged,
+     * unless the watchdog already reported it while it was in progress.
+     *
+     * @param startNanos The start time returned by {@link #beginListenerCallback(AbstractBundleState, Object, Object)}
+     */
+    void endListenerCallback(AbstractBundleState owner, Object listener, Object event, long startNanos) {
+        if (startNanos == 0)
+            return;
+
+        long nanos = System.nanoTime() - startNanos;
+        boolean slow = false;
+        if (slowListenerThreshold > 0) {
+            boolean reported = callbackSlot.get().pop(startNanos);
+            slow = nanos > slowListenerThreshold;
+            if (slow && reported == false)
+                LOGGER.warnSlowListener(listener, owner, TimeUnit.NANOSECONDS.toMillis(nanos), event);
+        }
+        if (enabled) {
+            getListenerTimes(listenerTimesByBundle, String.valueOf(owner)).record(nanos, slow);
+            getListenerTimes(listenerTimesByListener, listener.getClass().getName()).record(nanos, slow);
+        }
+    }
+
+    private CallbackSlot getCallbackSlot() {
+        CallbackSlot slot = callbackSlot.get();
+        if (slot == null) {
+            slot = new CallbackSlot(Thread.currentThread());
+            callbackSlot.set(slot);
+            callbackSlots.add(slot);
+        }
+        return slot;
+    }
+
+    // Report the callbacks in progress that exceed the slow listener threshold
+    void checkListenerCallbacks() {
+        long now = System.nanoTime();
+        Iterator<CallbackSlot> iterator = callbackSlots.iterator();
+        while (iterator.hasNext()) {
+            CallbackSlot slot = iterator.next();
+            Thread thread = slot.thread.get();
+            if (thread == null || thread.isAlive() == false) {
+                iterator.remove();
+                continue;
+            }
+            for (int i = 0; i < CallbackSlot.MAX_DEPTH; i++) {
+                long startNanos = slot.startNanos.get(i);
+                if (startNanos == 0 || now - startNanos <= slowListenerThreshold || slot.reportedNanos.get(i) == startNanos)
+                    continue;
+
+                Object owner = slot.owners[i];
+                Object listener = slot.listeners[i];
+                Object event = slot.events[i];
+
+                // The callback may have ended meanwhile and the slot been reused
+                if (slot.startNanos.get(i) != startNanos || slot.reportedNanos.compareAndSet(i, 0, startNanos) == false)
+                    continue;
+
+                slowCallbacksInProgress.incrementAndGet();
+                long millis = TimeUnit.NANOSECONDS.toMillis(now - startNanos);
+                LOGGER.warnSlowListenerInProgress(listener, owner, millis, event, thread);
+            }
+        }
+    }
+
+    /**
+     * The number of callbacks that the watchdog has reported as slow while they were in progress
+     */
+    long getSlowCallbacksInProgress() {
+        return slowCallbacksInProgress.get();
+    }
+
+    private static ListenerTimes getListenerTimes(ConcurrentMap<String, ListenerTimes> times, String key) {
+        ListenerTimes result = times.get(key);
+        if (result == null) {
+            ListenerTimes newTimes = new ListenerTimes();
+            result = times.putIfAbsent(key, newTimes);
+            if (result == null)
+                result = newTimes;
+        }
+        return result;
+    }
+
+    void recordAsyncEventQueued(int depth) {
+        long max = maxAsyncEventQueueDepth.get();
+        while (depth > max && maxAsyncEventQueueDepth.compareAndSet(max, depth) == false)
+            max = maxAsyncEventQueueDepth.get();
+    }
+
+    void recordAsyncListenerDispatch(long startNanos) {
+        asyncListenerDispatchTime.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Set the executor that reports the current asynchronous event queue depth
+     */
+    void setAsyncEventExecutor(OrderedListenerExecutor executor) {
+        asyncEventExecutor = executor;
+    }
+
+    @Override
+    public Map<String, Long> getLookupCounts() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Entry<String, AtomicLong> entry : lookupCounts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public long getFilterEvaluations() {
+        return filterEvaluations.get();
+    }
+
+    @Override
+    public long getCandidatesExamined() {
+        return candidatesExamined.get();
+    }
+
+    @Override
+    public long getCandidatesReturned() {
+        return candidatesReturned.get();
+    }
+
+    @Override
+    public LatencyHistogram getLookupTime() {
+        return lookupTime.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram getFindHookTime() {
+        return findHookTime.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram getEventHookTime() {
+        return eventHookTime.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram getListenerDispatchTime() {
+        return listenerDispatchTime.snapshot();
+    }
+
+    @Override
+    public long getAsyncEventQueueDepth() {
+        OrderedListenerExecutor executor = asyncEventExecutor;
+        return executor != null ? executor.getQueueDepth() : 0;
+    }
+
+    @Override
+    public long getMaxAsyncEventQueueDepth() {
+        return maxAsyncEventQueueDepth.get();
+    }
+
+    @Override
+    public LatencyHistogram getAsyncListenerDispatchTime() {
+        return asyncListenerDispatchTime.snapshot();
+    }
+
+    @Override
+    public Map<String, ListenerTime> getListenerTimesByBundle() {
+        return snapshot(listenerTimesByBundle);
+    }
+
+    @Override
+    public Map<String, ListenerTime> getListenerTimesByListener() {
+        return snapshot(listenerTimesByListener);
+    }
+
+    private static Map<String, ListenerTime> snapshot(Map<String, ListenerTimes> times) {
+        Map<String, ListenerTime> result = new HashMap<String, ListenerTime>();
+        for (Entry<String, ListenerTimes> entry : times.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Integer> getExecutorQueueSizes() {
+        return injectedExecutorPlugin.getValue().getQueueSizes();
+    }
+
+    @Override
+    public Map<String, Double> getExecutorUtilization() {
+        return injectedExecutorPlugin.getValue().getUtilization();
+    }
+
+    @Override
+    public void reset() {
+        lookupCounts.clear();
+        filterEvaluations.set(0);
+        candidatesExamined.set(0);
+        candidatesReturned.set(0);
+        lookupTime.reset();
+        findHookTime.reset();
+        eventHookTime.reset();
+        listenerDispatchTime.reset();
+        asyncListenerDispatchTime.reset();
+        maxAsyncEventQueueDepth.set(0);
+        listenerTimesByBundle.clear();
+        listenerTimesByListener.clear();
+    }
+
+    /**
+     * The listener callbacks in progress on a thread, which are nested if a listener fires events synchronously.
+     *
+     * The slot is only modified by its thread. A callback is published by writing its start time last and
+     * withdrawn by clearing its start time first, so that the watchdog reads a consistent callback if the start
+     * time is unchanged after it read the callback. Callbacks nested deeper than {@link #MAX_DEPTH} are
+     * still timed, but not watched while in progress.
+     */
+    private static final class CallbackSlot {
+
+        static final int MAX_DEPTH = 8;
+
+        private final WeakReference<Thread> thread;
+        private final Object[] owners = new Object[MAX_DEPTH];
+        private final Object[] listeners = new Object[MAX_DEPTH];
+        private final Object[] events = new Object[MAX_DEPTH];
+        private final AtomicLongArray startNanos = new AtomicLongArray(MAX_DEPTH);
+        private final AtomicLongArray reportedNanos = new AtomicLongArray(MAX_DEPTH);
+        private int depth;
+
+        CallbackSlot(Thread thread) {
+            this.thread = new WeakReference<Thread>(thread);
+        }
+
+        void push(Object owner, Object listener, Object event, long start) {
+            int index = depth++;
+            if (index < MAX_DEPTH) {
+                owners[index] = owner;
+                listeners[index] = listener;
+                events[index] = event;
+                reportedNanos.set(index, 0);
+                startNanos.set(index, start);
+            }
+        }
+
+        // Returns true if the watchdog reported the callback
+        boolean pop(long start) {
+            int index = --depth;
+            if (index >= MAX_DEPTH)
+                return false;
+
+            startNanos.set(index, 0);
+            owners[index] = null;
+            listeners[index] = null;
+            events[index] = null;
+            return reportedNanos.getAndSet(index, 0) == start;
+        }
+    }
+
+    private static final class ListenerTimes {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong slowCount = new AtomicLong();
+
+        void record(long nanos, boolean slow) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            if (slow)
+                slowCount.incrementAndGet();
+            long max = maxNanos.get();
+            while (nanos > max && maxNanos.compareAndSet(max, nanos) == false)
+                max = maxNanos.get();
+        }
+
+        ListenerTime snapshot() {
+            return new ListenerTimeSnapshot(count.get(), totalNanos.get(), maxNanos.get(), slowCount.get());
+        }
+    }
+
+    private static final class ListenerTimeSnapshot implements ListenerTime {
+
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long slowCount;
+
+        ListenerTimeSnapshot(long count, long totalNanos, long maxNanos, long slowCount) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.slowCount = slowCount;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        @Override
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public long getSlowCount() {
+            return slowCount;
+        }
+
+        @Override
+        public String toString() {
+            return "ListenerTime[count=" + count + ",total=" + totalNanos + "ns,max=" + maxNanos + "ns,slow=" + slowCount + "]";
+        }
+    }
+}
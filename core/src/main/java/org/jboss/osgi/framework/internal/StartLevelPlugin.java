@@ -26,8 +26,6 @@ import static org.jboss.osgi.framework.internal.FrameworkMessages.MESSAGES;
 
 import java.util.Collection;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 
 import org.jboss.msc.service.ServiceBuilder;
 import org.jboss.msc.service.ServiceController.Mode;
@@ -36,6 +34,8 @@ import org.jboss.msc.service.StartContext;
 import org.jboss.msc.service.StartException;
 import org.jboss.msc.service.StopContext;
 import org.jboss.msc.value.InjectedValue;
+import org.jboss.osgi.framework.ExecutorServicePlugin;
+import org.jboss.osgi.framework.IntegrationService;
 import org.jboss.osgi.framework.Services;
 import org.jboss.osgi.framework.StorageState;
 import org.jboss.osgi.resolver.XBundle;
@@ -70,6 +70,7 @@ public final class StartLevelPlugin extends AbstractExecutorService<StartLevel>
         builder.addDependency(Services.BUNDLE_MANAGER, BundleManagerPlugin.class, service.injectedBundleManager);
         builder.addDependency(InternalServices.FRAMEWORK_EVENTS_PLUGIN, FrameworkEventsPlugin.class, service.injectedFrameworkEvents);
         builder.addDependency(InternalServices.SYSTEM_BUNDLE, SystemBundleState.class, service.injectedSystemBundle);
+        builder.addDependency(IntegrationService.EXECUTOR_SERVICE_PLUGIN, ExecutorServicePlugin.class, service.injectedExecutorPlugin);
         builder.addDependency(Services.FRAMEWORK_CREATE);
         builder.setInitialMode(Mode.ON_DEMAND);
         builder.install();
@@ -99,15 +100,7 @@ public final class StartLevelPlugin extends AbstractExecutorService<StartLevel>
 
     @Override
     ExecutorService createExecutorService() {
-        return Executors.newSingleThreadExecutor(new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable run) {
-                Thread thread = new Thread(run);
-                thread.setName("OSGi StartLevel Thread");
-                thread.setDaemon(true);
-                return thread;
-            }
-        });
+        return injectedExecutorPlugin.getValue().createExecutorService("OSGi StartLevel Thread", 1);
     }
 
     @Override
@@ -239,6 +232,16 @@ public final class StartLevelPlugin extends AbstractExecutorService<StartLevel>
      * @param level the target Start Level to which the Framework should move.
      */
     synchronized void increaseStartLevel(int level) {
+        FrameworkEventsPlugin eventsPlugin = injectedFrameworkEvents.getValue();
+        eventsPlugin.beginEventBatch();
+        try {
+            increaseStartLevelInternal(level);
+        } finally {
+            eventsPlugin.endEventBatch();
+        }
+    }
+
+    private void increaseStartLevelInternal(int level) {
         BundleManagerPlugin bundleManager = injectedBundleManager.getValue();
         Collection<XBundle> bundles = bundleManager.getBundles();
         while (startLevel < level) {
@@ -271,6 +274,16 @@ public final class StartLevelPlugin extends AbstractExecutorService<StartLevel>
      * @param level the target Start Level to which the Framework should move.
      */
     synchronized void decreaseStartLevel(int level) {
+        FrameworkEventsPlugin eventsPlugin = injectedFrameworkEvents.getValue();
+        eventsPlugin.beginEventBatch();
+        try {
+            decreaseStartLevelInternal(level);
+        } finally {
+            eventsPlugin.endEventBatch();
+        }
+    }
+
+    private void decreaseStartLevelInternal(int level) {
         BundleManagerPlugin bundleManager = injectedBundleManager.getValue();
         while (startLevel > level) {
             LOGGER.infoStoppingBundlesForStartLevel(level);
@@ -56,7 +56,6 @@ import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.url.URLConstants;
 import org.osgi.service.url.URLStreamHandlerService;
 import org.osgi.service.url.URLStreamHandlerSetter;
-import org.osgi.util.tracker.ServiceTracker;
 
 /**
  * This plugin provides OSGi URL handler support as per the specification.
@@ -70,8 +69,8 @@ final class URLHandlerPlugin extends AbstractPluginService<URLHandlerPlugin> imp
 
     private final InjectedValue<BundleManagerPlugin> injectedBundleManager = new InjectedValue<BundleManagerPlugin>();
     private final InjectedValue<BundleContext> injectedSystemContext = new InjectedValue<BundleContext>();
-    private ServiceTracker streamServiceTracker;
-    private ServiceTracker contentServiceTracker;
+    private ServiceClassTracker<Object> streamServiceTracker;
+    private ServiceClassTracker<Object> contentServiceTracker;
     private ServiceRegistration registration;
 
     private static OSGiContentHandlerFactoryDelegate contentHandlerDelegate;
@@ -136,6 +135,8 @@ final class URLHandlerPlugin extends AbstractPluginService<URLHandlerPlugin> imp
     @Override
     public void stop(StopContext context) {
         super.stop(context);
+        streamServiceTracker.close();
+        contentServiceTracker.close();
         streamHandlerDelegate.clearHandlers();
         contentHandlerDelegate.clearHandlers();
         registration.unregister();
@@ -161,64 +162,76 @@ final class URLHandlerPlugin extends AbstractPluginService<URLHandlerPlugin> imp
     }
 
     private void setupContentHandlerTracker() {
-        BundleContext systemContext = injectedSystemContext.getValue();
-        contentServiceTracker = new ServiceTracker(systemContext, ContentHandler.class.getName(), null) {
+        AbstractBundleContext systemContext = AbstractBundleContext.assertBundleContext(injectedSystemContext.getValue());
+        ServiceManagerPlugin serviceManager = systemContext.getFrameworkState().getServiceManagerPlugin();
+        contentServiceTracker = new ServiceClassTracker<Object>(serviceManager, systemContext.getBundleState(), ContentHandler.class.getName()) {
 
             @Override
-            public Object addingService(ServiceReference reference) {
-                Object service = super.addingService(reference);
-                String[] mimeTypes = parseServiceProperty(reference.getProperty(URLConstants.URL_CONTENT_MIMETYPE));
+            Object addingService(ServiceState serviceState) {
+                Object service = super.addingService(serviceState);
+                String[] mimeTypes = parseServiceProperty(serviceState.getProperty(URLConstants.URL_CONTENT_MIMETYPE));
                 if (mimeTypes != null && service instanceof ContentHandler) {
                     LOGGER.debugf("Adding content handler '%s' for: %s", service, Arrays.asList(mimeTypes));
                     for (String mimeType : mimeTypes) {
-                        contentHandlerDelegate.addHandler(mimeType, reference);
+                        contentHandlerDelegate.addHandler(mimeType, serviceState.getReference());
                     }
                 }
                 return service;
             }
 
             @Override
-            public void modifiedService(ServiceReference reference, Object service) {
-                removedService(reference, service);
-                addingService(reference);
+            void modifiedService(ServiceState serviceState, Object service) {
+                contentHandlerDelegate.removeHandler(serviceState.getReference());
+                String[] mimeTypes = parseServiceProperty(serviceState.getProperty(URLConstants.URL_CONTENT_MIMETYPE));
+                if (mimeTypes != null && service instanceof ContentHandler) {
+                    for (String mimeType : mimeTypes) {
+                        contentHandlerDelegate.addHandler(mimeType, serviceState.getReference());
+                    }
+                }
             }
 
             @Override
-            public void removedService(ServiceReference reference, Object service) {
-                super.removedService(reference, service);
-                contentHandlerDelegate.removeHandler(reference);
+            void removedService(ServiceState serviceState, Object service) {
+                super.removedService(serviceState, service);
+                contentHandlerDelegate.removeHandler(serviceState.getReference());
             }
         };
         contentServiceTracker.open();
     }
 
     private void setupStreamHandlerTracker() {
-        BundleContext systemContext = injectedSystemContext.getValue();
-        streamServiceTracker = new ServiceTracker(systemContext, URLStreamHandlerService.class.getName(), null) {
+        AbstractBundleContext systemContext = AbstractBundleContext.assertBundleContext(injectedSystemContext.getValue());
+        ServiceManagerPlugin serviceManager = systemContext.getFrameworkState().getServiceManagerPlugin();
+        streamServiceTracker = new ServiceClassTracker<Object>(serviceManager, systemContext.getBundleState(), URLStreamHandlerService.class.getName()) {
 
             @Override
-            public Object addingService(ServiceReference reference) {
-                Object service = super.addingService(reference);
-                String[] protocols = parseServiceProperty(reference.getProperty(URLConstants.URL_HANDLER_PROTOCOL));
+            Object addingService(ServiceState serviceState) {
+                Object service = super.addingService(serviceState);
+                String[] protocols = parseServiceProperty(serviceState.getProperty(URLConstants.URL_HANDLER_PROTOCOL));
                 if (protocols != null && service instanceof URLStreamHandlerService) {
                     LOGGER.tracef("Adding stream handler '%s' for: %s", service, Arrays.asList(protocols));
                     for (String protocol : protocols) {
-                        streamHandlerDelegate.addHandler(protocol, reference);
+                        streamHandlerDelegate.addHandler(protocol, serviceState.getReference());
                     }
                 }
                 return service;
             }
 
             @Override
-            public void modifiedService(ServiceReference reference, Object service) {
-                removedService(reference, service);
-                addingService(reference);
+            void modifiedService(ServiceState serviceState, Object service) {
+                streamHandlerDelegate.removeHandler(serviceState.getReference());
+                String[] protocols = parseServiceProperty(serviceState.getProperty(URLConstants.URL_HANDLER_PROTOCOL));
+                if (protocols != null && service instanceof URLStreamHandlerService) {
+                    for (String protocol : protocols) {
+                        streamHandlerDelegate.addHandler(protocol, serviceState.getReference());
+                    }
+                }
             }
 
             @Override
-            public void removedService(ServiceReference reference, Object service) {
-                super.removedService(reference, service);
-                streamHandlerDelegate.removeHandler(reference);
+            void removedService(ServiceState serviceState, Object service) {
+                super.removedService(serviceState, service);
+                streamHandlerDelegate.removeHandler(serviceState.getReference());
             }
         };
         streamServiceTracker.open();
@@ -325,6 +325,7 @@ abstract class UserBundleState extends AbstractBundleState {
 
         clearOldRevisions();
 
+        evictAssignability();
         FrameworkEventsPlugin eventsPlugin = getFrameworkState().getFrameworkEventsPlugin();
         eventsPlugin.fireBundleEvent(this, BundleEvent.UNRESOLVED);
 
@@ -21,10 +21,17 @@ package org.jboss.osgi.framework.internal;
  * #L%
  */
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.jboss.osgi.framework.BundleManager;
+import org.jboss.osgi.framework.Constants;
 import org.jboss.osgi.resolver.XBundle;
+import org.jboss.osgi.spi.util.ServiceLoader;
 import org.jboss.osgi.testing.OSGiFrameworkTest;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
 
 /**
  * An abstract core framework test
@@ -42,4 +49,29 @@ public abstract class AbstractFrameworkTest extends OSGiFrameworkTest {
     protected FrameworkState getFrameworkState() throws BundleException {
         return getBundleManager().getFrameworkState();
     }
+
+    /**
+     * Start a separate framework with the given properties. It must be stopped with {@link #stopFramework(Framework)}.
+     */
+    protected Framework startFramework(String storage, Map<String, String> props) throws BundleException {
+        Map<String, String> config = new HashMap<String, String>(props);
+        config.put(Constants.FRAMEWORK_STORAGE, "target/" + storage);
+        config.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        FrameworkFactory factory = ServiceLoader.loadService(FrameworkFactory.class);
+        Framework framework = factory.newFramework(config);
+        framework.start();
+        return framework;
+    }
+
+    protected void stopFramework(Framework framework) throws Exception {
+        if (framework != null) {
+            framework.stop();
+            framework.waitForStop(10000);
+        }
+    }
+
+    protected FrameworkState getFrameworkState(Framework framework) {
+        XBundle sysbundle = (XBundle) framework.getBundleContext().getBundle();
+        return ((BundleManagerPlugin) sysbundle.adapt(BundleManager.class)).getFrameworkState();
+    }
 }
\ No newline at end of file
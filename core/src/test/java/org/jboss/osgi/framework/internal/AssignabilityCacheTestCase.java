@@ -0,0 +1,155 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+
+import org.jboss.osgi.spi.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * Test the invalidation of the {@link AssignabilityCache}
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class AssignabilityCacheTestCase extends AbstractFrameworkTest {
+
+    @Test
+    public void testOwnerUninstalled() throws Exception {
+        Bundle owner = installBundle(getTestArchive("assignability-owner"));
+        Bundle requester = installBundle(getTestArchive("assignability-requester"));
+        try {
+            AbstractBundleState ownerState = AbstractBundleState.assertBundleState(owner);
+            AssignabilityCache cache = AbstractBundleState.assertBundleState(requester).getAssignabilityCache();
+            cache.put(ownerState, Runnable.class.getName(), true);
+            assertEquals(Boolean.TRUE, cache.get(ownerState, Runnable.class.getName()));
+
+            // The entries of an uninstalled owner are removed, so that they do not keep its revision reachable
+            owner.uninstall();
+            assertTrue(cache.isEmpty());
+            assertNull(cache.get(ownerState, Runnable.class.getName()));
+        } finally {
+            requester.uninstall();
+            if (owner.getState() != Bundle.UNINSTALLED)
+                owner.uninstall();
+        }
+    }
+
+    @Test
+    public void testRequesterUpdated() throws Exception {
+        Bundle owner = installBundle(getTestArchive("assignability-owner"));
+        JavaArchive archive = getTestArchive("assignability-requester");
+        Bundle requester = installBundle(archive);
+        try {
+            AbstractBundleState ownerState = AbstractBundleState.assertBundleState(owner);
+            AssignabilityCache cache = AbstractBundleState.assertBundleState(requester).getAssignabilityCache();
+            cache.put(ownerState, Runnable.class.getName(), false);
+            assertEquals(Boolean.FALSE, cache.get(ownerState, Runnable.class.getName()));
+
+            // A new revision of the requester invalidates all entries
+            requester.update(archive.as(ZipExporter.class).exportAsInputStream());
+            assertTrue(cache.isEmpty());
+            assertNull(cache.get(ownerState, Runnable.class.getName()));
+        } finally {
+            requester.uninstall();
+            owner.uninstall();
+        }
+    }
+
+    @Test
+    public void testOwnerUnresolved() throws Exception {
+        Bundle owner = installBundle(getTestArchive("assignability-owner"));
+        Bundle requester = installBundle(getTestArchive("assignability-requester"));
+        try {
+            owner.start();
+            AbstractBundleState ownerState = AbstractBundleState.assertBundleState(owner);
+            AssignabilityCache cache = AbstractBundleState.assertBundleState(requester).getAssignabilityCache();
+            cache.put(ownerState, Runnable.class.getName(), true);
+            assertEquals(Boolean.TRUE, cache.get(ownerState, Runnable.class.getName()));
+
+            // Refreshing the owner unresolves it, which removes its entries
+            BundleContext context = getSystemContext();
+            PackageAdmin packageAdmin = (PackageAdmin) context.getService(context.getServiceReference(PackageAdmin.class.getName()));
+            packageAdmin.refreshPackages(new Bundle[] { owner });
+            long timeout = System.currentTimeMillis() + 5000;
+            while (cache.isEmpty() == false && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertTrue(cache.isEmpty());
+        } finally {
+            requester.uninstall();
+            owner.uninstall();
+        }
+    }
+
+    @Test
+    public void testClassNotFound() throws Exception {
+        Bundle requester = installBundle(getTestArchive("assignability-requester"));
+        try {
+            BundleContext context = getSystemContext();
+            ServiceRegistration reg = context.registerService(Runnable.class.getName(), new SimpleRunnable(), null);
+            try {
+                // A class that cannot be loaded is assignable, but that is not remembered
+                String className = "org.jboss.test.osgi.missing.Missing";
+                AbstractBundleState requesterState = AbstractBundleState.assertBundleState(requester);
+                assertTrue(ServiceState.assertServiceState(reg.getReference()).isAssignableTo(requester, className));
+                assertTrue(requesterState.getAssignabilityCache().isEmpty());
+            } finally {
+                reg.unregister();
+            }
+        } finally {
+            requester.uninstall();
+        }
+    }
+
+    private JavaArchive getTestArchive(final String name) {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(archive.getName());
+                builder.addBundleVersion("1.0.0");
+                return builder.openStream();
+            }
+        });
+        return archive;
+    }
+
+    static class SimpleRunnable implements Runnable {
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.osgi.framework.AsynchronousServiceListener;
+import org.jboss.osgi.framework.Constants;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Verify that an {@link AsynchronousServiceListener} is called asynchronously and does not lose events
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 27-Oct-2012
+ */
+public class AsynchronousServiceListenerTestCase extends AbstractFrameworkTest {
+
+    @Test
+    public void testAsynchronousDelivery() throws Exception {
+        BundleContext context = getSystemContext();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Integer> events = Collections.synchronizedList(new ArrayList<Integer>());
+        AsynchronousServiceListener listener = new AsynchronousServiceListener() {
+            public void serviceChanged(ServiceEvent event) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add(event.getType());
+                done.countDown();
+            }
+        };
+
+        context.addServiceListener(listener, "(objectClass=" + Runnable.class.getName() + ")");
+        try {
+            // The registration does not wait for the blocked listener
+            ServiceRegistration reg = context.registerService(Runnable.class.getName(), new SimpleRunnable(), null);
+            reg.unregister();
+            assertTrue(events.isEmpty());
+
+            // The events arrive in order
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(ServiceEvent.REGISTERED), events.get(0));
+            assertEquals(Integer.valueOf(ServiceEvent.UNREGISTERING), events.get(1));
+        } finally {
+            release.countDown();
+            context.removeServiceListener(listener);
+        }
+    }
+
+    @Test
+    public void testFullQueueLosesNoEvents() throws Exception {
+        final BundleContext context = getSystemContext();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        AsynchronousServiceListener listener = new AsynchronousServiceListener() {
+            public void serviceChanged(ServiceEvent event) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                count.incrementAndGet();
+            }
+        };
+
+        context.addServiceListener(listener, "(objectClass=" + Runnable.class.getName() + ")");
+        try {
+            // More events than the listener queue can hold
+            final int registrations = Constants.DEFAULT_SERVICE_EVENT_QUEUE_CAPACITY;
+            final CountDownLatch registered = new CountDownLatch(1);
+            Thread registrar = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < registrations; i++) {
+                        ServiceRegistration reg = context.registerService(Runnable.class.getName(), new SimpleRunnable(), null);
+                        reg.unregister();
+                    }
+                    registered.countDown();
+                }
+            });
+            registrar.start();
+
+            // The registrations wait for the blocked listener
+            assertFalse("Registrations wait", registered.await(1, TimeUnit.SECONDS));
+
+            // Every event is delivered once the listener catches up
+            release.countDown();
+            assertTrue("Registrations done", registered.await(10, TimeUnit.SECONDS));
+            long timeout = System.currentTimeMillis() + 5000;
+            while (count.get() < 2 * registrations && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertEquals(2 * registrations, count.get());
+        } finally {
+            release.countDown();
+            context.removeServiceListener(listener);
+        }
+    }
+
+    static class SimpleRunnable implements Runnable {
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test the bounded view on a shared executor
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 28-Oct-2012
+ */
+public class BoundedExecutorServiceTestCase {
+
+    @Test
+    public void testSerialExecution() throws Exception {
+        ExecutorService shared = Executors.newFixedThreadPool(4);
+        try {
+            BoundedExecutorService executor = new BoundedExecutorService(shared, 1);
+            final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+            final CountDownLatch release = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    order.add(0);
+                }
+            });
+            for (int i = 1; i < 10; i++) {
+                final int index = i;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        order.add(index);
+                    }
+                });
+            }
+
+            // Only one task runs at a time, the others are queued
+            assertEquals(1, executor.getActiveCount());
+            assertEquals(9, executor.getQueueSize());
+
+            release.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(0), order.get(0));
+            for (int i = 1; i < 10; i++) {
+                assertEquals(Integer.valueOf(i), order.get(i));
+            }
+
+            // The shared executor is still running
+            assertFalse(shared.isShutdown());
+        } finally {
+            shared.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailingTask() throws Exception {
+        ExecutorService shared = Executors.newFixedThreadPool(2);
+        try {
+            BoundedExecutorService executor = new BoundedExecutorService(shared, 1);
+            final CountDownLatch done = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                public void run() {
+                    throw new IllegalStateException("expected");
+                }
+            });
+            executor.execute(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            shared.shutdown();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.osgi.spi.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.jboss.test.osgi.framework.subA.SimpleService;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+
+/**
+ * Verify that a slow asynchronous bundle listener does not delay the other listeners
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 26-Oct-2012
+ */
+public class BundleEventDeliveryTestCase extends AbstractFrameworkTest {
+
+    @Test
+    public void testSlowListener() throws Exception {
+        BundleContext context = getSystemContext();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> slowEvents = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch slowDone = new CountDownLatch(2);
+        BundleListener slowListener = new BundleListener() {
+            public void bundleChanged(BundleEvent event) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                slowEvents.add(event.getType());
+                slowDone.countDown();
+            }
+        };
+
+        final List<Integer> fastEvents = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch fastDone = new CountDownLatch(2);
+        BundleListener fastListener = new BundleListener() {
+            public void bundleChanged(BundleEvent event) {
+                fastEvents.add(event.getType());
+                fastDone.countDown();
+            }
+        };
+
+        context.addBundleListener(slowListener);
+        context.addBundleListener(fastListener);
+        try {
+            Bundle bundle = installBundle(getTestArchive());
+            bundle.uninstall();
+
+            // The fast listener is not blocked by the slow one
+            assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(BundleEvent.INSTALLED), fastEvents.get(0));
+            assertTrue(slowEvents.isEmpty());
+
+            // The slow listener receives its events in order
+            release.countDown();
+            assertTrue(slowDone.await(5, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(BundleEvent.INSTALLED), slowEvents.get(0));
+            assertEquals(Integer.valueOf(BundleEvent.UNINSTALLED), slowEvents.get(slowEvents.size() - 1));
+        } finally {
+            release.countDown();
+            context.removeBundleListener(slowListener);
+            context.removeBundleListener(fastListener);
+        }
+    }
+
+    private JavaArchive getTestArchive() {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "event-delivery-bundle");
+        archive.addClasses(SimpleService.class);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(archive.getName());
+                builder.addBundleVersion("1.0.0");
+                return builder.openStream();
+            }
+        });
+        return archive;
+    }
+}
@@ -0,0 +1,154 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+/**
+ * Test the {@link CapabilityIndex}
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class CapabilityIndexTestCase {
+
+    @Test
+    public void testProviders() throws Exception {
+        TestResource resA = new TestResource();
+        resA.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.a");
+        resA.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.b");
+        TestResource resB = new TestResource();
+        resB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.b");
+
+        CapabilityIndex index = new CapabilityIndex();
+        index.addResources(Arrays.asList(resA, resB));
+        assertEquals(Arrays.<Resource> asList(resA), index.getProviders(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.a"));
+        assertEquals(Arrays.<Resource> asList(resA, resB), index.getProviders(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.b"));
+        assertTrue(index.getProviders(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.c").isEmpty());
+        assertTrue(index.getProviders(HostNamespace.HOST_NAMESPACE, "org.acme.a").isEmpty());
+
+        index.removeResources(Collections.singleton(resA));
+        assertTrue(index.getProviders(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.a").isEmpty());
+        assertEquals(Arrays.<Resource> asList(resB), index.getProviders(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.b"));
+    }
+
+    @Test
+    public void testRequirers() throws Exception {
+        TestResource fragA = new TestResource();
+        fragA.addRequirement(HostNamespace.HOST_NAMESPACE, "(&(osgi.wiring.host=host)(bundle-version>=1.0))");
+        TestResource fragB = new TestResource();
+        fragB.addRequirement(HostNamespace.HOST_NAMESPACE, "(osgi.wiring.host=other)");
+        TestResource fragC = new TestResource();
+        fragC.addRequirement(HostNamespace.HOST_NAMESPACE, "(|(osgi.wiring.host=host)(osgi.wiring.host=other))");
+
+        CapabilityIndex index = new CapabilityIndex();
+        index.addResources(Arrays.asList(fragA, fragB, fragC));
+
+        // A requirement without a mandatory term is part of every lookup
+        assertEquals(Arrays.<Resource> asList(fragA, fragC), index.getRequirers(HostNamespace.HOST_NAMESPACE, "host"));
+        assertEquals(Arrays.<Resource> asList(fragB, fragC), index.getRequirers(HostNamespace.HOST_NAMESPACE, "other"));
+        assertEquals(Arrays.<Resource> asList(fragC), index.getRequirers(HostNamespace.HOST_NAMESPACE, "none"));
+
+        index.removeResources(Arrays.asList(fragA, fragC));
+        assertTrue(index.getRequirers(HostNamespace.HOST_NAMESPACE, "host").isEmpty());
+        assertEquals(Arrays.<Resource> asList(fragB), index.getRequirers(HostNamespace.HOST_NAMESPACE, "other"));
+    }
+
+    static class TestResource implements Resource {
+
+        private final List<Capability> capabilities = new ArrayList<Capability>();
+        private final List<Requirement> requirements = new ArrayList<Requirement>();
+
+        void addCapability(final String namespace, final String value) {
+            capabilities.add(new Capability() {
+                public String getNamespace() {
+                    return namespace;
+                }
+
+                public Map<String, String> getDirectives() {
+                    return Collections.emptyMap();
+                }
+
+                public Map<String, Object> getAttributes() {
+                    return Collections.<String, Object> singletonMap(namespace, value);
+                }
+
+                public Resource getResource() {
+                    return TestResource.this;
+                }
+            });
+        }
+
+        void addRequirement(final String namespace, final String filter) {
+            requirements.add(new Requirement() {
+                public String getNamespace() {
+                    return namespace;
+                }
+
+                public Map<String, String> getDirectives() {
+                    return Collections.singletonMap(Namespace.REQUIREMENT_FILTER_DIRECTIVE, filter);
+                }
+
+                public Map<String, Object> getAttributes() {
+                    return Collections.emptyMap();
+                }
+
+                public Resource getResource() {
+                    return TestResource.this;
+                }
+            });
+        }
+
+        public List<Capability> getCapabilities(String namespace) {
+            List<Capability> result = new ArrayList<Capability>();
+            for (Capability cap : capabilities) {
+                if (namespace == null || namespace.equals(cap.getNamespace()))
+                    result.add(cap);
+            }
+            return result;
+        }
+
+        public List<Requirement> getRequirements(String namespace) {
+            List<Requirement> result = new ArrayList<Requirement>();
+            for (Requirement req : requirements) {
+                if (namespace == null || namespace.equals(req.getNamespace()))
+                    result.add(req);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.framework.Constants;
+import org.jboss.osgi.spi.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.launch.Framework;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * Test that the asynchronous events of a package refresh are delivered as a batch
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class EventBatchingTestCase extends AbstractFrameworkTest {
+
+    private Framework framework;
+
+    @Before
+    public void before() throws Exception {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(Constants.PROPERTY_EVENT_BATCHING, "true");
+        framework = startFramework("event-batching", props);
+    }
+
+    @After
+    public void after() throws Exception {
+        stopFramework(framework);
+    }
+
+    @Test
+    public void testRefreshPackages() throws Exception {
+        final BundleContext context = framework.getBundleContext();
+        final Thread refreshThread = Thread.currentThread();
+        final List<BundleEvent> syncEvents = Collections.synchronizedList(new ArrayList<BundleEvent>());
+        final List<BundleEvent> asyncEvents = Collections.synchronizedList(new ArrayList<BundleEvent>());
+        final List<Integer> asyncCountsDuringRefresh = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<FrameworkEvent> frameworkEvents = Collections.synchronizedList(new ArrayList<FrameworkEvent>());
+        final List<Thread> syncThreads = Collections.synchronizedList(new ArrayList<Thread>());
+
+        Bundle bundle = context.installBundle("batch-bundle", toInputStream(getTestArchive("batch-bundle")));
+        try {
+            bundle.start();
+            final long bundleId = bundle.getBundleId();
+
+            // The synchronous listener sees every event on the refreshing thread, while the batch is still open
+            context.addBundleListener(new SynchronousBundleListener() {
+                public void bundleChanged(BundleEvent event) {
+                    if (event.getBundle().getBundleId() != bundleId)
+                        return;
+                    syncThreads.add(Thread.currentThread());
+                    syncEvents.add(event);
+                    asyncCountsDuringRefresh.add(asyncEvents.size());
+                }
+            });
+            context.addBundleListener(new BundleListener() {
+                public void bundleChanged(BundleEvent event) {
+                    if (event.getBundle().getBundleId() == bundleId)
+                        asyncEvents.add(event);
+                }
+            });
+            context.addFrameworkListener(new FrameworkListener() {
+                public void frameworkEvent(FrameworkEvent event) {
+                    if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED)
+                        frameworkEvents.add(event);
+                }
+            });
+
+            ServiceReference sref = context.getServiceReference(PackageAdmin.class.getName());
+            PackageAdmin packageAdmin = (PackageAdmin) context.getService(sref);
+            packageAdmin.refreshPackages(new Bundle[] { bundle });
+
+            // No asynchronous event was delivered before the outer batch ended
+            assertFalse("Synchronous events fired", syncEvents.isEmpty());
+            for (Thread thread : syncThreads) {
+                assertSame(refreshThread, thread);
+            }
+            for (Integer count : asyncCountsDuringRefresh) {
+                assertEquals(Integer.valueOf(0), count);
+            }
+
+            // The asynchronous listener gets every asynchronous event once and in firing order
+            List<Integer> expected = new ArrayList<Integer>();
+            for (BundleEvent event : syncEvents) {
+                int type = event.getType();
+                if (type != BundleEvent.STARTING && type != BundleEvent.STOPPING && type != BundleEvent.LAZY_ACTIVATION)
+                    expected.add(type);
+            }
+            waitForEvents(asyncEvents, expected.size());
+            waitForEvents(frameworkEvents, 1);
+            Thread.sleep(200);
+
+            List<Integer> actual = new ArrayList<Integer>();
+            for (BundleEvent event : asyncEvents) {
+                actual.add(event.getType());
+            }
+            assertEquals(expected, actual);
+            assertEquals(1, frameworkEvents.size());
+        } finally {
+            bundle.uninstall();
+        }
+    }
+
+    @Test
+    public void testBatchedEventsNotOvertaken() throws Exception {
+        final BundleContext context = framework.getBundleContext();
+        final List<Integer> asyncEvents = Collections.synchronizedList(new ArrayList<Integer>());
+
+        Bundle bundle = context.installBundle("overtake-bundle", toInputStream(getTestArchive("overtake-bundle")));
+        try {
+            final long bundleId = bundle.getBundleId();
+            context.addBundleListener(new BundleListener() {
+                public void bundleChanged(BundleEvent event) {
+                    if (event.getBundle().getBundleId() == bundleId)
+                        asyncEvents.add(event.getType());
+                }
+            });
+
+            final FrameworkEventsPlugin eventsPlugin = getFrameworkState(framework).getFrameworkEventsPlugin();
+            final AbstractBundleState bundleState = AbstractBundleState.assertBundleState(bundle);
+            eventsPlugin.beginEventBatch();
+            try {
+                eventsPlugin.fireBundleEvent(bundleState, BundleEvent.RESOLVED);
+
+                // An event that another thread fires later is delivered after the batched one
+                Thread other = new Thread(new Runnable() {
+                    public void run() {
+                        eventsPlugin.fireBundleEvent(bundleState, BundleEvent.UPDATED);
+                    }
+                });
+                other.start();
+                other.join(5000);
+            } finally {
+                eventsPlugin.endEventBatch();
+            }
+
+            waitForEvents(asyncEvents, 2);
+            Thread.sleep(200);
+            List<Integer> expected = new ArrayList<Integer>();
+            expected.add(BundleEvent.RESOLVED);
+            expected.add(BundleEvent.UPDATED);
+            assertEquals(expected, asyncEvents);
+        } finally {
+            bundle.uninstall();
+        }
+    }
+
+    private void waitForEvents(List<?> events, int count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (events.size() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertTrue("Expected " + count + " events, but got: " + events, events.size() >= count);
+    }
+
+    private JavaArchive getTestArchive(final String name) {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(archive.getName());
+                builder.addBundleVersion("1.0.0");
+                return builder.openStream();
+            }
+        });
+        return archive;
+    }
+}
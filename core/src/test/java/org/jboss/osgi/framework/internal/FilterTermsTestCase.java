@@ -0,0 +1,92 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test the extraction of mandatory equality terms from LDAP filters
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 19-Oct-2012
+ */
+public class FilterTermsTestCase {
+
+    @Test
+    public void testSimpleTerm() throws Exception {
+        Map<String, String> terms = FilterTerms.getEqualityTerms("(name=foo)");
+        assertEquals(1, terms.size());
+        assertEquals("foo", terms.get("name"));
+    }
+
+    @Test
+    public void testConjunction() throws Exception {
+        Map<String, String> terms = FilterTerms.getEqualityTerms(" (&(objectClass=org.acme.X) (Name=foo)(&(service.pid=bar)))");
+        assertEquals(3, terms.size());
+        assertEquals("org.acme.X", terms.get("objectclass"));
+        assertEquals("foo", terms.get("name"));
+        assertEquals("bar", terms.get("service.pid"));
+    }
+
+    @Test
+    public void testEscapedValue() throws Exception {
+        Map<String, String> terms = FilterTerms.getEqualityTerms("(name=a\\(b\\)\\*c)");
+        assertEquals("a(b)*c", terms.get("name"));
+    }
+
+    @Test
+    public void testNonMandatoryTerms() throws Exception {
+        assertTrue(FilterTerms.getEqualityTerms("(|(name=foo)(name=bar))").isEmpty());
+        assertTrue(FilterTerms.getEqualityTerms("(!(name=foo))").isEmpty());
+        assertTrue(FilterTerms.getEqualityTerms("(name=fo*)").isEmpty());
+        assertTrue(FilterTerms.getEqualityTerms("(name=*)").isEmpty());
+        assertTrue(FilterTerms.getEqualityTerms("(name~=foo)").isEmpty());
+        assertTrue(FilterTerms.getEqualityTerms("(rank>=10)").isEmpty());
+        assertTrue(FilterTerms.getEqualityTerms("(name= foo)").isEmpty());
+
+        Map<String, String> terms = FilterTerms.getEqualityTerms("(&(name=foo)(|(a=b)(c=d))(!(e=f))(g<=1))");
+        assertEquals(1, terms.size());
+        assertEquals("foo", terms.get("name"));
+    }
+
+    @Test
+    public void testInvalidFilter() throws Exception {
+        assertTrue(FilterTerms.getEqualityTerms("(&(name=foo)").isEmpty());
+        assertTrue(FilterTerms.getEqualityTerms("name=foo").isEmpty());
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+        assertEquals(new HashSet<String>(Arrays.asList("objectclass", "name", "rank", "pid")),
+                FilterTerms.getAttributes("(&(objectClass=org.acme.X)(|(Name=fo*)(!(rank>=10)))(pid~=bar))"));
+        assertNull(FilterTerms.getAttributes("(&(name=foo)"));
+        assertNull(FilterTerms.getAttributes(null));
+    }
+}
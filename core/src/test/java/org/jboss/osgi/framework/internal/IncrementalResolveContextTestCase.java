@@ -0,0 +1,120 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.resolver.XBundle;
+import org.jboss.osgi.resolver.XBundleRevision;
+import org.jboss.osgi.spi.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * Test the {@link IncrementalResolveContext}
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class IncrementalResolveContextTestCase extends AbstractFrameworkTest {
+
+    static final String PACKAGE = "org.jboss.test.osgi.incremental";
+
+    @Test
+    public void testResolvedProviderPreferred() throws Exception {
+        Bundle bundleA = installBundle(getTestArchive("incremental-a", PACKAGE + ";version=1.0", null));
+        Bundle bundleB = null;
+        Bundle bundleC = null;
+        try {
+            ResolverPlugin resolverPlugin = getFrameworkState().getResolverPlugin();
+            XBundleRevision revA = ((XBundle) bundleA).getBundleRevision();
+            resolverPlugin.resolveAndApply(Collections.singleton(revA), null);
+            assertBundleState(Bundle.RESOLVED, bundleA.getState());
+
+            bundleB = installBundle(getTestArchive("incremental-b", PACKAGE + ";version=2.0", null));
+            bundleC = installBundle(getTestArchive("incremental-c", null, PACKAGE));
+            XBundleRevision revB = ((XBundle) bundleB).getBundleRevision();
+            XBundleRevision revC = ((XBundle) bundleC).getBundleRevision();
+
+            // The unresolved provider is not offered to the resolver
+            ResolveContext context = resolverPlugin.createResolveContext(getFrameworkState().getEnvironment(), Collections.singleton(revC), null);
+            Map<Resource, List<Wire>> wiremap = resolverPlugin.resolve(new IncrementalResolveContext(context));
+            assertEquals(revA, getPackageProvider(wiremap.get(revC)));
+            assertEquals(null, wiremap.get(revB));
+
+            // Without a resolved provider the unresolved one is used
+            bundleC.uninstall();
+            bundleC = installBundle(getTestArchive("incremental-c", null, PACKAGE + ";version=\"[2.0,3.0)\""));
+            revC = ((XBundle) bundleC).getBundleRevision();
+            ResolveContext versioned = resolverPlugin.createResolveContext(getFrameworkState().getEnvironment(), Collections.singleton(revC), null);
+            wiremap = resolverPlugin.resolve(new IncrementalResolveContext(versioned));
+            assertEquals(revB, getPackageProvider(wiremap.get(revC)));
+        } finally {
+            if (bundleC != null)
+                bundleC.uninstall();
+            if (bundleB != null)
+                bundleB.uninstall();
+            bundleA.uninstall();
+        }
+    }
+
+    private Resource getPackageProvider(List<Wire> wires) {
+        assertNotNull("Wires not null", wires);
+        for (Wire wire : wires) {
+            if (PackageNamespace.PACKAGE_NAMESPACE.equals(wire.getRequirement().getNamespace()))
+                return wire.getProvider();
+        }
+        return null;
+    }
+
+    private JavaArchive getTestArchive(final String name, final String exports, final String imports) {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(archive.getName());
+                builder.addBundleVersion("1.0.0");
+                if (exports != null)
+                    builder.addExportPackages(exports);
+                if (imports != null)
+                    builder.addImportPackages(imports);
+                return builder.openStream();
+            }
+        });
+        return archive;
+    }
+}
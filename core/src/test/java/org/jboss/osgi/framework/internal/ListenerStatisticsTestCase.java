@@ -0,0 +1,180 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.osgi.framework.Constants;
+import org.jboss.osgi.framework.ServiceStatistics;
+import org.jboss.osgi.framework.ServiceStatistics.ListenerTime;
+import org.jboss.osgi.spi.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * Test the slow listener reporting and the per bundle listener times of the {@link ServiceStatisticsPlugin}
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class ListenerStatisticsTestCase extends AbstractFrameworkTest {
+
+    private static final long THRESHOLD = 100;
+
+    private Framework framework;
+
+    @Before
+    public void before() throws Exception {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(Constants.PROPERTY_SERVICE_STATISTICS, "true");
+        props.put(Constants.PROPERTY_SLOW_LISTENER_THRESHOLD, String.valueOf(THRESHOLD));
+        framework = startFramework("listener-statistics", props);
+    }
+
+    @After
+    public void after() throws Exception {
+        stopFramework(framework);
+    }
+
+    @Test
+    public void testListenerTimesByBundle() throws Exception {
+        BundleContext systemContext = framework.getBundleContext();
+        ServiceReference sref = systemContext.getServiceReference(ServiceStatistics.class.getName());
+        assertNotNull("ServiceStatistics registered", sref);
+        ServiceStatistics statistics = (ServiceStatistics) systemContext.getService(sref);
+
+        Bundle bundle = systemContext.installBundle("listener-bundle", toInputStream(getTestArchive("listener-bundle")));
+        bundle.start();
+        try {
+            BundleContext bundleContext = bundle.getBundleContext();
+            systemContext.addServiceListener(new SleepingListener(0, false));
+            systemContext.addServiceListener(new SleepingListener(2 * THRESHOLD, false));
+            bundleContext.addServiceListener(new SleepingListener(2 * THRESHOLD, true));
+            statistics.reset();
+
+            ServiceRegistration reg = systemContext.registerService(Runnable.class.getName(), new SimpleRunnable(), null);
+            reg.unregister();
+
+            // The listener that throws is recorded as well
+            Map<String, ListenerTime> byBundle = statistics.getListenerTimesByBundle();
+            ListenerTime systemTimes = byBundle.get(getBundleKey(systemContext));
+            assertEquals(4, systemTimes.getCount());
+            assertEquals(2, systemTimes.getSlowCount());
+            assertTrue(systemTimes.getMaxNanos() >= 2 * THRESHOLD * 1000000);
+            ListenerTime bundleTimes = byBundle.get(getBundleKey(bundleContext));
+            assertEquals(2, bundleTimes.getCount());
+            assertEquals(2, bundleTimes.getSlowCount());
+
+            ListenerTime listenerTimes = statistics.getListenerTimesByListener().get(SleepingListener.class.getName());
+            assertEquals(6, listenerTimes.getCount());
+            assertEquals(4, listenerTimes.getSlowCount());
+        } finally {
+            bundle.uninstall();
+        }
+    }
+
+    @Test
+    public void testCallbackInProgress() throws Exception {
+        ServiceStatisticsPlugin statistics = getFrameworkState(framework).getFrameworkEventsPlugin().getStatisticsPlugin();
+        AbstractBundleState owner = AbstractBundleContext.assertBundleContext(framework.getBundleContext()).getBundleState();
+        statistics.reset();
+
+        // The watchdog reports the callback before it returns
+        long reported = statistics.getSlowCallbacksInProgress();
+        SleepingListener listener = new SleepingListener(0, false);
+        long startNanos = statistics.beginListenerCallback(owner, listener, "event");
+        try {
+            long timeout = System.currentTimeMillis() + 5000;
+            while (statistics.getSlowCallbacksInProgress() == reported && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertEquals("Callback reported while in progress", reported + 1, statistics.getSlowCallbacksInProgress());
+        } finally {
+            statistics.endListenerCallback(owner, listener, "event", startNanos);
+        }
+        ListenerTime times = statistics.getListenerTimesByBundle().get(String.valueOf(owner));
+        assertEquals(1, times.getCount());
+        assertEquals(1, times.getSlowCount());
+    }
+
+    private String getBundleKey(BundleContext context) {
+        return String.valueOf(AbstractBundleContext.assertBundleContext(context).getBundleState());
+    }
+
+    private JavaArchive getTestArchive(final String name) {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(archive.getName());
+                builder.addBundleVersion("1.0.0");
+                return builder.openStream();
+            }
+        });
+        return archive;
+    }
+
+    static class SleepingListener implements ServiceListener {
+
+        private final long millis;
+        private final boolean fail;
+
+        SleepingListener(long millis, boolean fail) {
+            this.millis = millis;
+            this.fail = fail;
+        }
+
+        public void serviceChanged(ServiceEvent event) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (fail)
+                throw new IllegalStateException("Listener failed: " + event);
+        }
+    }
+
+    static class SimpleRunnable implements Runnable {
+        public void run() {
+        }
+    }
+}
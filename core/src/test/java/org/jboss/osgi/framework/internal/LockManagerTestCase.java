@@ -0,0 +1,144 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jboss.osgi.framework.LockStatistics;
+import org.jboss.osgi.framework.LockStatistics.LockState;
+import org.jboss.osgi.framework.LockStatistics.LockTime;
+import org.jboss.osgi.framework.internal.LockManagerPlugin.LockMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Test the shared and exclusive modes and the statistics of the {@link LockManagerPlugin}
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class LockManagerTestCase extends AbstractFrameworkTest {
+
+    private LockManagerPlugin lockManager;
+    private ExecutorService executor;
+
+    @Before
+    public void before() throws Exception {
+        lockManager = getBundleManager().injectedLockManager.getValue();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void after() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSharedMode() throws Exception {
+        long lockNanos = lockManager.lockEnvironment(LockMode.SHARED);
+        try {
+            assertTrue(lockFromOtherThread(LockMode.SHARED));
+            assertFalse(lockFromOtherThread(LockMode.EXCLUSIVE));
+        } finally {
+            lockManager.unlockEnvironment(LockMode.SHARED, lockNanos);
+        }
+        assertTrue(lockFromOtherThread(LockMode.EXCLUSIVE));
+    }
+
+    @Test
+    public void testFrameworkLock() throws Exception {
+        lockManager.aquireFrameworkLock();
+        try {
+            assertFalse(lockFromOtherThread(LockMode.SHARED));
+        } finally {
+            lockManager.releaseFrameworkLock();
+        }
+        assertTrue(lockFromOtherThread(LockMode.SHARED));
+    }
+
+    @Test
+    public void testLockUpgrade() throws Exception {
+        long lockNanos = lockManager.lockEnvironment(LockMode.SHARED);
+        try {
+            lockManager.lockEnvironment(LockMode.EXCLUSIVE);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        } finally {
+            lockManager.unlockEnvironment(LockMode.SHARED, lockNanos);
+        }
+    }
+
+    @Test
+    public void testLockStatistics() throws Exception {
+        ServiceReference sref = getSystemContext().getServiceReference(LockStatistics.class.getName());
+        assertNotNull("LockStatistics registered", sref);
+        LockStatistics statistics = (LockStatistics) getSystemContext().getService(sref);
+        statistics.reset();
+
+        long lockNanos = lockManager.lockEnvironment(LockMode.EXCLUSIVE);
+        try {
+            assertFalse(lockFromOtherThread(LockMode.SHARED));
+            LockState state = statistics.getLockStates().get("environment");
+            assertNotNull("Environment lock state", state);
+            assertEquals(Thread.currentThread().getName(), state.getOwner());
+            assertEquals(LockMode.EXCLUSIVE.toString(), state.getOperation());
+        } finally {
+            lockManager.unlockEnvironment(LockMode.EXCLUSIVE, lockNanos);
+        }
+        assertNull(statistics.getLockStates().get("environment"));
+
+        LockTime times = statistics.getLockTimes().get("environment");
+        assertEquals(2, times.getWaitTime().getCount());
+        assertEquals(1, times.getHoldTime().getCount());
+        assertEquals(1, times.getTimeoutCount());
+    }
+
+    private boolean lockFromOtherThread(final LockMode mode) throws Exception {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    long lockNanos = lockManager.lockEnvironment(mode, 200, TimeUnit.MILLISECONDS);
+                    lockManager.unlockEnvironment(mode, lockNanos);
+                    return true;
+                } catch (TimeoutException ex) {
+                    return false;
+                }
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+}
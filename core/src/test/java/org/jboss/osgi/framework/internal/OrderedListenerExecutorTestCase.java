@@ -0,0 +1,236 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the per listener queues of the {@link OrderedListenerExecutor}
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 26-Oct-2012
+ */
+public class OrderedListenerExecutorTestCase extends AbstractFrameworkTest {
+
+    private static final int CAPACITY = 4;
+    private static final long TIMEOUT = 500;
+
+    private OrderedListenerExecutor executor;
+
+    @Before
+    public void before() throws Exception {
+        ServiceStatisticsPlugin statistics = getFrameworkState().getFrameworkEventsPlugin().getStatisticsPlugin();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        executor = new OrderedListenerExecutor(threads, CAPACITY, TIMEOUT, statistics);
+    }
+
+    @After
+    public void after() throws Exception {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFullQueueWaits() throws Exception {
+        final Object listener = new Object();
+        executor.addListener(listener);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        executor.execute(listener, new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // Fill the queue, then submit more events than it can hold from another thread
+        for (int i = 0; i < CAPACITY; i++) {
+            executor.execute(listener, new RecordingDelivery(delivered, i));
+        }
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread submitter = new Thread(new Runnable() {
+            public void run() {
+                for (int i = CAPACITY; i < CAPACITY + 20; i++) {
+                    executor.execute(listener, new RecordingDelivery(delivered, i));
+                }
+                submitted.countDown();
+            }
+        });
+        submitter.start();
+
+        // The submitter waits for the listener beyond the warning timeout
+        assertFalse("Submitter waits", submitted.await(2 * TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(CAPACITY, executor.getQueueDepth());
+
+        // No event is lost and the order is kept
+        release.countDown();
+        assertTrue("Submitter done", submitted.await(5, TimeUnit.SECONDS));
+        awaitDelivered(delivered, CAPACITY + 20);
+        for (int i = 0; i < CAPACITY + 20; i++) {
+            assertEquals(Integer.valueOf(i), delivered.get(i));
+        }
+        awaitQueueDepth(0);
+    }
+
+    @Test
+    public void testDeliveryThreadDoesNotWait() throws Exception {
+        final Object listener = new Object();
+        executor.addListener(listener);
+
+        // A delivery that fires more events for its own listener than the queue can hold
+        final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        executor.execute(listener, new Runnable() {
+            public void run() {
+                for (int i = 0; i < 2 * CAPACITY; i++) {
+                    executor.execute(listener, new RecordingDelivery(delivered, i));
+                }
+            }
+        });
+        awaitDelivered(delivered, 2 * CAPACITY);
+        awaitQueueDepth(0);
+
+        // The permits are restored after the overdraft has been delivered
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(listener, new Runnable() {
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        long startMillis = System.currentTimeMillis();
+        for (int i = 0; i < CAPACITY - 1; i++) {
+            executor.execute(listener, new RecordingDelivery(delivered, 100 + i));
+        }
+        assertTrue("Not throttled", System.currentTimeMillis() - startMillis < TIMEOUT);
+        release.countDown();
+        awaitDelivered(delivered, 3 * CAPACITY - 1);
+    }
+
+    @Test
+    public void testRemovedListener() throws Exception {
+        Object listener = new Object();
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+
+        // Events for an unknown or removed listener are ignored
+        executor.execute(listener, new RecordingDelivery(delivered, 0));
+        executor.addListener(listener);
+        executor.removeListener(listener);
+        executor.execute(listener, new RecordingDelivery(delivered, 1));
+
+        // A listener that was added twice is removed with the second call
+        executor.addListener(listener);
+        executor.addListener(listener);
+        executor.removeListener(listener);
+        executor.execute(listener, new RecordingDelivery(delivered, 2));
+        executor.removeListener(listener);
+        executor.execute(listener, new RecordingDelivery(delivered, 3));
+        awaitDelivered(delivered, 1);
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList(2), delivered);
+    }
+
+    @Test
+    public void testListenerAddedAgain() throws Exception {
+        Object listener = new Object();
+        executor.addListener(listener);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        executor.execute(listener, new Runnable() {
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.execute(listener, new RecordingDelivery(delivered, 1));
+        executor.execute(listener, new RecordingDelivery(delivered, 2));
+
+        // The queued events are delivered before the events of the new registration
+        executor.removeListener(listener);
+        executor.addListener(listener);
+        executor.execute(listener, new RecordingDelivery(delivered, 3));
+        release.countDown();
+        awaitDelivered(delivered, 3);
+        assertEquals(3, delivered.size());
+        assertEquals(Integer.valueOf(1), delivered.get(0));
+        assertEquals(Integer.valueOf(2), delivered.get(1));
+        assertEquals(Integer.valueOf(3), delivered.get(2));
+    }
+
+    private void awaitQueueDepth(int depth) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (executor.getQueueDepth() != depth && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, executor.getQueueDepth());
+    }
+
+    private void awaitDelivered(List<Integer> delivered, int size) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (delivered.size() < size && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, delivered.size());
+    }
+
+    static class RecordingDelivery implements Runnable {
+
+        private final List<Integer> delivered;
+        private final int index;
+
+        RecordingDelivery(List<Integer> delivered, int index) {
+            this.delivered = delivered;
+            this.index = index;
+        }
+
+        public void run() {
+            delivered.add(index);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.osgi.framework.Constants;
+import org.jboss.osgi.resolver.XBundle;
+import org.jboss.osgi.resolver.XBundleRevision;
+import org.jboss.osgi.spi.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.jboss.test.osgi.framework.subA.SimpleService;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.launch.Framework;
+import org.osgi.service.resolver.ResolutionException;
+
+/**
+ * Test the batch resolution of the {@link ResolutionCoordinator}
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class ResolutionCoordinatorTestCase extends AbstractFrameworkTest {
+
+    private static final long BATCH_WINDOW = 500;
+
+    @Test
+    public void testUnresolvableRevision() throws Exception {
+        Bundle bundleA = installBundle(getTestArchive("batch-a", null));
+        Bundle bundleB = installBundle(getTestArchive("batch-b", "org.jboss.test.osgi.missing"));
+        try {
+            XBundleRevision revA = ((XBundle) bundleA).getBundleRevision();
+            XBundleRevision revB = ((XBundle) bundleB).getBundleRevision();
+
+            // The unresolvable revision does not fail the batch
+            ResolverPlugin resolverPlugin = getFrameworkState().getResolverPlugin();
+            Set<XBundleRevision> unresolved = resolverPlugin.resolveAndApplyBatched(Arrays.asList(revA, revB));
+            assertEquals(1, unresolved.size());
+            assertTrue(unresolved.contains(revB));
+            assertBundleState(Bundle.RESOLVED, bundleA.getState());
+            assertBundleState(Bundle.INSTALLED, bundleB.getState());
+        } finally {
+            bundleB.uninstall();
+            bundleA.uninstall();
+        }
+    }
+
+    @Test
+    public void testResolutionFailure() throws Exception {
+        Bundle bundle = installBundle(getTestArchive("batch-c", "org.jboss.test.osgi.missing"));
+        try {
+            XBundleRevision brev = ((XBundle) bundle).getBundleRevision();
+            ResolverPlugin resolverPlugin = getFrameworkState().getResolverPlugin();
+            ResolutionCoordinator coordinator = resolverPlugin.getResolutionCoordinator();
+            int passes = coordinator.getResolverPasses();
+            try {
+                resolverPlugin.resolveAndApplyBatched(brev);
+                fail("ResolutionException expected");
+            } catch (ResolutionException ex) {
+                // expected
+            }
+
+            // The reason comes from the batch, the revision is not resolved again
+            assertEquals(1, coordinator.getResolverPasses() - passes);
+            assertBundleState(Bundle.INSTALLED, bundle.getState());
+        } finally {
+            bundle.uninstall();
+        }
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(Constants.PROPERTY_RESOLVER_BATCH_WINDOW, String.valueOf(BATCH_WINDOW));
+        Framework framework = startFramework("resolver-batch", props);
+        try {
+            BundleContext context = framework.getBundleContext();
+            List<Bundle> bundles = new ArrayList<Bundle>();
+            for (int i = 0; i < 8; i++) {
+                String name = "batch-" + i;
+                bundles.add(context.installBundle(name, toInputStream(getTestArchive(name, null))));
+            }
+            ResolutionCoordinator coordinator = getFrameworkState(framework).getResolverPlugin().getResolutionCoordinator();
+            int passes = coordinator.getResolverPasses();
+            resolveConcurrently(bundles);
+
+            // The concurrent requests arrive within the window of the first request
+            passes = coordinator.getResolverPasses() - passes;
+            assertTrue("Resolver passes for " + bundles.size() + " requests: " + passes, passes >= 1 && passes <= 2);
+        } finally {
+            stopFramework(framework);
+        }
+    }
+
+    private void resolveConcurrently(List<Bundle> bundles) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(bundles.size());
+        try {
+            final CountDownLatch startSignal = new CountDownLatch(1);
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final Bundle bundle : bundles) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        startSignal.await();
+                        return AbstractBundleState.assertBundleState(bundle).ensureResolved(true);
+                    }
+                }));
+            }
+            startSignal.countDown();
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get(10, TimeUnit.SECONDS));
+            }
+            for (Bundle bundle : bundles) {
+                assertBundleState(Bundle.RESOLVED, bundle.getState());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private JavaArchive getTestArchive(final String name, final String importPackage) {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.addClasses(SimpleService.class);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(archive.getName());
+                builder.addBundleVersion("1.0.0");
+                if (importPackage != null)
+                    builder.addImportPackages(importPackage);
+                return builder.openStream();
+            }
+        });
+        return archive;
+    }
+}
@@ -0,0 +1,136 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.jboss.osgi.framework.BatchBundleContext;
+import org.jboss.osgi.framework.BatchBundleContext.ServiceBatch;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Verify the batch registration of services
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 24-Oct-2012
+ */
+public class ServiceBatchTestCase extends AbstractFrameworkTest {
+
+    @Test
+    public void testRegisterBatch() throws Exception {
+        BundleContext context = getSystemContext();
+        assertTrue(context instanceof BatchBundleContext);
+
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        ServiceListener listener = new ServiceListener() {
+            public void serviceChanged(ServiceEvent event) {
+                events.add(event);
+            }
+        };
+        context.addServiceListener(listener, "(foo=*)");
+        try {
+            Hashtable<String, Object> props = new Hashtable<String, Object>();
+            props.put("foo", "a");
+            Runnable first = new SimpleRunnable();
+            Runnable second = new SimpleRunnable();
+            Runnable third = new SimpleRunnable();
+
+            ServiceBatch batch = ((BatchBundleContext) context).createServiceBatch();
+            batch.addService(Runnable.class.getName(), first, props);
+            batch.addService(Runnable.class.getName(), second, null);
+            batch.addService(new String[] { Runnable.class.getName() }, third, props);
+            List<ServiceRegistration> regs = batch.register();
+            try {
+                assertEquals(3, regs.size());
+
+                // Events are delivered in the order the services were added
+                assertEquals(2, events.size());
+                assertEquals(ServiceEvent.REGISTERED, events.get(0).getType());
+                assertEquals(regs.get(0).getReference(), events.get(0).getServiceReference());
+                assertEquals(regs.get(2).getReference(), events.get(1).getServiceReference());
+
+                // The first service has the lowest id and is returned for the class
+                ServiceReference sref = context.getServiceReference(Runnable.class.getName());
+                assertEquals(regs.get(0).getReference(), sref);
+                assertSame(first, context.getService(sref));
+                context.ungetService(sref);
+
+                ServiceReference[] srefs = context.getServiceReferences(Runnable.class.getName(), "(foo=a)");
+                assertEquals(2, srefs.length);
+            } finally {
+                for (ServiceRegistration reg : regs)
+                    reg.unregister();
+            }
+        } finally {
+            context.removeServiceListener(listener);
+        }
+    }
+
+    @Test
+    public void testInvalidBatch() throws Exception {
+        BundleContext context = getSystemContext();
+        ServiceBatch batch = ((BatchBundleContext) context).createServiceBatch();
+        batch.addService(Runnable.class.getName(), new SimpleRunnable(), null);
+        batch.addService(BundleContext.class.getName(), new SimpleRunnable(), null);
+        try {
+            batch.register();
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        assertNull(context.getServiceReference(Runnable.class.getName()));
+    }
+
+    @Test
+    public void testRegisterTwice() throws Exception {
+        BundleContext context = getSystemContext();
+        ServiceBatch batch = ((BatchBundleContext) context).createServiceBatch();
+        batch.addService(Runnable.class.getName(), new SimpleRunnable(), null);
+        List<ServiceRegistration> regs = batch.register();
+        try {
+            batch.register();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        } finally {
+            regs.get(0).unregister();
+        }
+    }
+
+    static class SimpleRunnable implements Runnable {
+        public void run() {
+        }
+    }
+}
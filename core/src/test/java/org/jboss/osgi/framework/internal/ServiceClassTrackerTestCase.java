@@ -0,0 +1,205 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Verify that the {@link ServiceClassTracker} follows its objectClass bucket in ranking order
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 24-Oct-2012
+ */
+public class ServiceClassTrackerTestCase extends AbstractFrameworkTest {
+
+    @Test
+    public void testTrackServices() throws Exception {
+        BundleContext context = getSystemContext();
+        AbstractBundleContext systemContext = AbstractBundleContext.assertBundleContext(context);
+        ServiceManagerPlugin serviceManager = systemContext.getFrameworkState().getServiceManagerPlugin();
+
+        Runnable low = new SimpleRunnable();
+        ServiceRegistration lowReg = context.registerService(Runnable.class.getName(), low, ranking(1));
+
+        final List<String> notifications = new ArrayList<String>();
+        ServiceClassTracker<Object> tracker = new ServiceClassTracker<Object>(serviceManager, systemContext.getBundleState(), Runnable.class.getName()) {
+
+            @Override
+            Object addingService(ServiceState serviceState) {
+                notifications.add("added:" + serviceState.getServiceRanking());
+                return super.addingService(serviceState);
+            }
+
+            @Override
+            void modifiedService(ServiceState serviceState, Object service) {
+                notifications.add("modified:" + serviceState.getServiceRanking());
+            }
+
+            @Override
+            void removedService(ServiceState serviceState, Object service) {
+                notifications.add("removed:" + serviceState.getServiceRanking());
+                super.removedService(serviceState, service);
+            }
+        };
+        tracker.open();
+        try {
+            assertEquals(1, tracker.getServiceStates().size());
+
+            Runnable high = new SimpleRunnable();
+            ServiceRegistration highReg = context.registerService(Runnable.class.getName(), high, ranking(10));
+            ServiceRegistration otherReg = context.registerService(Object.class.getName(), new Object(), null);
+            otherReg.unregister();
+
+            List<ServiceState> states = tracker.getServiceStates();
+            assertEquals(2, states.size());
+            assertSame(ServiceState.assertServiceState(highReg.getReference()), states.get(0));
+            assertSame(ServiceState.assertServiceState(lowReg.getReference()), states.get(1));
+
+            lowReg.setProperties(ranking(20));
+            states = tracker.getServiceStates();
+            assertSame(ServiceState.assertServiceState(lowReg.getReference()), states.get(0));
+
+            highReg.unregister();
+            assertEquals(1, tracker.getServiceStates().size());
+            assertEquals("[added:1, added:10, modified:20, removed:10]", notifications.toString());
+        } finally {
+            tracker.close();
+        }
+        assertTrue(tracker.getServiceStates().isEmpty());
+        assertEquals("removed:20", notifications.get(notifications.size() - 1));
+        lowReg.unregister();
+    }
+
+    @Test
+    public void testServiceFactoryCallsOutsideTracker() throws Exception {
+        final BundleContext context = getSystemContext();
+        AbstractBundleContext systemContext = AbstractBundleContext.assertBundleContext(context);
+        ServiceManagerPlugin serviceManager = systemContext.getFrameworkState().getServiceManagerPlugin();
+
+        // The factory registers another tracked service from a different thread and waits for it
+        final AtomicReference<ServiceRegistration> otherReg = new AtomicReference<ServiceRegistration>();
+        ServiceFactory factory = new ServiceFactory() {
+
+            public Object getService(Bundle bundle, ServiceRegistration registration) {
+                final CountDownLatch latch = new CountDownLatch(1);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        otherReg.set(context.registerService(Runnable.class.getName(), new SimpleRunnable(), ranking(1)));
+                        latch.countDown();
+                    }
+                });
+                thread.start();
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return new SimpleRunnable();
+            }
+
+            public void ungetService(Bundle bundle, ServiceRegistration registration, Object service) {
+            }
+        };
+        ServiceRegistration factoryReg = context.registerService(Runnable.class.getName(), factory, ranking(10));
+
+        ServiceClassTracker<Object> tracker = new ServiceClassTracker<Object>(serviceManager, systemContext.getBundleState(), Runnable.class.getName());
+        tracker.open();
+        try {
+            assertTrue("Registration did not block on the tracker", otherReg.get() != null);
+            List<ServiceState> states = tracker.getServiceStates();
+            assertEquals(2, states.size());
+            assertSame(ServiceState.assertServiceState(factoryReg.getReference()), states.get(0));
+        } finally {
+            tracker.close();
+        }
+        otherReg.get().unregister();
+        factoryReg.unregister();
+    }
+
+    @Test
+    public void testServiceUnregisteredWhileAdding() throws Exception {
+        BundleContext context = getSystemContext();
+        AbstractBundleContext systemContext = AbstractBundleContext.assertBundleContext(context);
+        ServiceManagerPlugin serviceManager = systemContext.getFrameworkState().getServiceManagerPlugin();
+
+        final AtomicInteger ungetCount = new AtomicInteger();
+        ServiceFactory factory = new ServiceFactory() {
+
+            public Object getService(Bundle bundle, ServiceRegistration registration) {
+                return new SimpleRunnable();
+            }
+
+            public void ungetService(Bundle bundle, ServiceRegistration registration, Object service) {
+                ungetCount.incrementAndGet();
+            }
+        };
+        final ServiceRegistration reg = context.registerService(Runnable.class.getName(), factory, null);
+
+        // The service gets unregistered after the tracker obtained it, but before it is tracked
+        ServiceClassTracker<Object> tracker = new ServiceClassTracker<Object>(serviceManager, systemContext.getBundleState(), Runnable.class.getName()) {
+
+            @Override
+            Object addingService(ServiceState serviceState) {
+                Object service = super.addingService(serviceState);
+                reg.unregister();
+                return service;
+            }
+        };
+        tracker.open();
+        try {
+            assertTrue(tracker.getServiceStates().isEmpty());
+            assertEquals(1, ungetCount.get());
+            assertNull(context.getServiceReference(Runnable.class.getName()));
+        } finally {
+            tracker.close();
+        }
+    }
+
+    private Hashtable<String, Object> ranking(int ranking) {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put(Constants.SERVICE_RANKING, Integer.valueOf(ranking));
+        return props;
+    }
+
+    static class SimpleRunnable implements Runnable {
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Verify concurrent getService/ungetService on a {@link ServiceFactory}
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 23-Oct-2012
+ */
+public class ServiceFactoryConcurrencyTestCase extends AbstractFrameworkTest {
+
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 1000;
+
+    @Test
+    public void testConcurrentFirstUse() throws Exception {
+        BundleContext context = getSystemContext();
+        CountingFactory factory = new CountingFactory();
+        ServiceRegistration reg = context.registerService(Runnable.class.getName(), factory, null);
+        final ServiceReference sref = reg.getReference();
+        try {
+            final BundleContext systemContext = context;
+            final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+            List<Object> values = runConcurrently(new Callable<Object>() {
+                public Object call() throws Exception {
+                    barrier.await(10, TimeUnit.SECONDS);
+                    return systemContext.getService(sref);
+                }
+            });
+
+            // All threads share the single value created for the bundle
+            assertEquals(1, factory.created.get());
+            for (Object value : values)
+                assertSame(values.get(0), value);
+
+            for (int i = 0; i < THREADS; i++)
+                context.ungetService(sref);
+
+            assertEquals(1, factory.released.get());
+            assertNull(sref.getUsingBundles());
+            assertFalse(context.ungetService(sref));
+        } finally {
+            reg.unregister();
+        }
+    }
+
+    @Test
+    public void testConcurrentGetUnget() throws Exception {
+        BundleContext context = getSystemContext();
+        CountingFactory factory = new CountingFactory();
+        ServiceRegistration reg = context.registerService(Runnable.class.getName(), factory, null);
+        final ServiceReference sref = reg.getReference();
+        try {
+            final BundleContext systemContext = context;
+            runConcurrently(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        if (systemContext.getService(sref) == null)
+                            throw new IllegalStateException("Null service");
+                        if (systemContext.ungetService(sref) == false)
+                            throw new IllegalStateException("Service not in use");
+                    }
+                    return null;
+                }
+            });
+
+            // Every created value has been released exactly once
+            assertEquals(factory.created.get(), factory.released.get());
+            assertNull(sref.getUsingBundles());
+        } finally {
+            reg.unregister();
+        }
+    }
+
+    @Test
+    public void testHeldUsage() throws Exception {
+        BundleContext context = getSystemContext();
+        CountingFactory factory = new CountingFactory();
+        ServiceRegistration reg = context.registerService(Runnable.class.getName(), factory, null);
+        final ServiceReference sref = reg.getReference();
+        try {
+            final BundleContext systemContext = context;
+            final Object held = context.getService(sref);
+            runConcurrently(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        if (systemContext.getService(sref) != held)
+                            throw new IllegalStateException("Unexpected service");
+                        systemContext.ungetService(sref);
+                    }
+                    return null;
+                }
+            });
+
+            // The held usage keeps the factory value alive
+            assertEquals(1, factory.created.get());
+            assertEquals(0, factory.released.get());
+
+            context.ungetService(sref);
+            assertEquals(1, factory.released.get());
+        } finally {
+            reg.unregister();
+        }
+    }
+
+    private List<Object> runConcurrently(Callable<Object> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < THREADS; i++)
+                futures.add(executor.submit(task));
+
+            List<Object> result = new ArrayList<Object>();
+            for (Future<Object> future : futures)
+                result.add(future.get(30, TimeUnit.SECONDS));
+
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static class CountingFactory implements ServiceFactory {
+
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger released = new AtomicInteger();
+
+        public Object getService(Bundle bundle, ServiceRegistration registration) {
+            created.incrementAndGet();
+            return new Runnable() {
+                public void run() {
+                }
+            };
+        }
+
+        public void ungetService(Bundle bundle, ServiceRegistration registration, Object service) {
+            released.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.osgi.spi.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.service.FindHook;
+
+/**
+ * Test that the {@link ServiceHooks} obtain a find hook with the context of the calling bundle
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class ServiceHooksTestCase extends AbstractFrameworkTest {
+
+    @Test
+    public void testFindHookFactory() throws Exception {
+        BundleContext context = getSystemContext();
+        final List<Bundle> clients = Collections.synchronizedList(new ArrayList<Bundle>());
+        ServiceRegistration hookReg = context.registerService(FindHook.class.getName(), new ServiceFactory() {
+            public Object getService(final Bundle bundle, ServiceRegistration registration) {
+                clients.add(bundle);
+                return new FindHook() {
+                    public void find(BundleContext context, String name, String filter, boolean allServices, Collection<ServiceReference> references) {
+                        // A hook object is only called for the bundle that obtained it
+                        assertEquals(bundle, context.getBundle());
+                    }
+                };
+            }
+
+            public void ungetService(Bundle bundle, ServiceRegistration registration, Object service) {
+            }
+        }, null);
+
+        Bundle bundle = installBundle(getTestArchive("hook-client"));
+        try {
+            bundle.start();
+            BundleContext bundleContext = bundle.getBundleContext();
+            assertNotNull(bundleContext.getServiceReferences(FindHook.class.getName(), null));
+            bundleContext.getServiceReference(Runnable.class.getName());
+            bundleContext.getServiceReference(Runnable.class.getName());
+            context.getServiceReference(Runnable.class.getName());
+
+            // The hook is obtained once by every calling bundle
+            assertEquals(1, Collections.frequency(clients, bundle));
+            assertEquals(1, Collections.frequency(clients, context.getBundle()));
+
+            // A bundle that released its hooks obtains them again
+            bundle.stop();
+            bundle.start();
+            bundle.getBundleContext().getServiceReference(Runnable.class.getName());
+            assertEquals(2, Collections.frequency(clients, bundle));
+        } finally {
+            bundle.uninstall();
+            hookReg.unregister();
+        }
+    }
+
+    private JavaArchive getTestArchive(final String name) {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(archive.getName());
+                builder.addBundleVersion("1.0.0");
+                builder.addImportPackages(FindHook.class);
+                return builder.openStream();
+            }
+        });
+        return archive;
+    }
+}
@@ -0,0 +1,114 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Verify that service events reach indexed and unindexed listeners
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 25-Oct-2012
+ */
+public class ServiceListenerIndexTestCase extends AbstractFrameworkTest {
+
+    @Test
+    public void testIndexedListeners() throws Exception {
+        BundleContext context = getSystemContext();
+
+        RecordingListener runnableListener = new RecordingListener();
+        RecordingListener objectListener = new RecordingListener();
+        RecordingListener orListener = new RecordingListener();
+        RecordingListener allListener = new RecordingListener();
+        context.addServiceListener(runnableListener, "(&(objectClass=" + Runnable.class.getName() + ")(foo=*))");
+        context.addServiceListener(objectListener, "(objectClass=" + Object.class.getName() + ")");
+        context.addServiceListener(orListener, "(|(objectClass=" + Runnable.class.getName() + ")(objectClass=" + Object.class.getName() + "))");
+        context.addServiceListener(allListener);
+        try {
+            // Replace the filter of an indexed listener
+            context.addServiceListener(runnableListener, "(objectClass=" + Runnable.class.getName() + ")");
+
+            ServiceRegistration reg = context.registerService(new String[] { Runnable.class.getName(), Object.class.getName() }, new SimpleRunnable(), null);
+            reg.unregister();
+            ServiceRegistration other = context.registerService(String.class.getName(), "foo", null);
+            other.unregister();
+
+            assertEquals(2, runnableListener.events.size());
+            assertEquals(2, objectListener.events.size());
+            assertEquals(2, orListener.events.size());
+            assertEquals(4, allListener.events.size());
+            assertEquals(ServiceEvent.REGISTERED, runnableListener.events.get(0).getType());
+            assertEquals(ServiceEvent.UNREGISTERING, runnableListener.events.get(1).getType());
+
+            // A removed listener is removed from the index
+            context.removeServiceListener(objectListener);
+            reg = context.registerService(Object.class.getName(), new Object(), null);
+            reg.unregister();
+            assertEquals(2, objectListener.events.size());
+            assertEquals(4, orListener.events.size());
+        } finally {
+            context.removeServiceListener(runnableListener);
+            context.removeServiceListener(objectListener);
+            context.removeServiceListener(orListener);
+            context.removeServiceListener(allListener);
+        }
+    }
+
+    @Test
+    public void testRepeatedClassNames() throws Exception {
+        BundleContext context = getSystemContext();
+
+        RecordingListener runnableListener = new RecordingListener();
+        context.addServiceListener(runnableListener, "(objectClass=" + Runnable.class.getName() + ")");
+        try {
+            // A listener is called once, also if the service repeats its class name
+            String[] classNames = new String[] { Runnable.class.getName(), Object.class.getName(), Runnable.class.getName() };
+            ServiceRegistration reg = context.registerService(classNames, new SimpleRunnable(), null);
+            reg.unregister();
+            assertEquals(2, runnableListener.events.size());
+        } finally {
+            context.removeServiceListener(runnableListener);
+        }
+    }
+
+    static class RecordingListener implements ServiceListener {
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+
+        public void serviceChanged(ServiceEvent event) {
+            events.add(event);
+        }
+    }
+
+    static class SimpleRunnable implements Runnable {
+        public void run() {
+        }
+    }
+}
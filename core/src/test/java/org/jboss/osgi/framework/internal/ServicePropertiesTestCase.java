@@ -0,0 +1,135 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.junit.Test;
+import org.osgi.framework.Constants;
+
+/**
+ * Test the case insensitive service properties
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 21-Oct-2012
+ */
+public class ServicePropertiesTestCase {
+
+    private static final String[] CLASSES = new String[] { "org.acme.Foo" };
+
+    @Test
+    public void testCaseInsensitiveLookup() throws Exception {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("Foo.Bar", "a");
+        props.put(Constants.SERVICE_RANKING, 10);
+        ServiceProperties sp = new ServiceProperties(props, 5, CLASSES);
+        assertEquals("a", sp.get("foo.bar"));
+        assertEquals("a", sp.get("FOO.BAR"));
+        assertEquals(10, sp.get("Service.Ranking"));
+        assertEquals(5L, sp.get("SERVICE.ID"));
+        assertArrayEquals(CLASSES, (String[]) sp.get("objectclass"));
+        assertNull(sp.get("foo"));
+        assertNull(sp.get(null));
+        assertEquals(4, sp.size());
+    }
+
+    @Test
+    public void testReservedKeysOverridden() throws Exception {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("SERVICE.ID", 100L);
+        props.put("objectclass", "org.acme.Bar");
+        ServiceProperties sp = new ServiceProperties(props, 5, CLASSES);
+        assertEquals(2, sp.size());
+        assertEquals(5L, sp.get(Constants.SERVICE_ID));
+        assertArrayEquals(CLASSES, (String[]) sp.get(Constants.OBJECTCLASS));
+    }
+
+    @Test
+    public void testPropertyKeys() throws Exception {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("Foo", "a");
+        ServiceProperties sp = new ServiceProperties(props, 1, CLASSES);
+        List<String> keys = Arrays.asList(sp.getKeys());
+        assertEquals(Arrays.asList(Constants.SERVICE_ID, Constants.OBJECTCLASS, "Foo"), keys);
+
+        // The returned array is a copy
+        sp.getKeys()[0] = "bar";
+        assertEquals(Constants.SERVICE_ID, sp.getKeys()[0]);
+    }
+
+    @Test
+    public void testNullProperties() throws Exception {
+        ServiceProperties sp = new ServiceProperties(null, 1, CLASSES);
+        assertEquals(2, sp.size());
+        assertEquals(1L, sp.get(Constants.SERVICE_ID));
+    }
+
+    @Test
+    public void testImmutable() throws Exception {
+        ServiceProperties sp = new ServiceProperties(null, 1, CLASSES);
+        try {
+            sp.put("foo", "bar");
+            fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCaseVariantKeys() throws Exception {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("foo", "a");
+        props.put("FOO", "b");
+        try {
+            new ServiceProperties(props, 1, CLASSES);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testModifiedKeys() throws Exception {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("Same", new String[] { "a", "b" });
+        props.put("Changed", "a");
+        props.put("Removed", "a");
+        ServiceProperties previous = new ServiceProperties(props, 1, CLASSES);
+
+        props = new Hashtable<String, Object>();
+        props.put("same", new String[] { "a", "b" });
+        props.put("Changed", "b");
+        props.put("Added", "a");
+        ServiceProperties current = new ServiceProperties(props, 1, CLASSES);
+
+        assertEquals(new HashSet<String>(Arrays.asList("changed", "removed", "added")), current.getModifiedKeys(previous));
+        assertEquals(current.getModifiedKeys(previous), previous.getModifiedKeys(current));
+    }
+}
@@ -0,0 +1,149 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Verify that the {@link ServiceRegistryIndex} stays ordered while rankings change concurrently
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class ServiceRegistryIndexTestCase extends AbstractFrameworkTest {
+
+    private static final int SERVICES = 20;
+    private static final int ITERATIONS = 500;
+
+    @Test
+    public void testConcurrentRankingChanges() throws Exception {
+        final BundleContext context = getSystemContext();
+        final List<ServiceRegistration> regs = new ArrayList<ServiceRegistration>();
+        for (int i = 0; i < SERVICES; i++) {
+            regs.add(context.registerService(Runnable.class.getName(), new SimpleRunnable(), ranking(i)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 2; t++) {
+                final Random random = new Random(t);
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            ServiceRegistration reg = regs.get(random.nextInt(SERVICES));
+                            reg.setProperties(ranking(random.nextInt(100)));
+                        }
+                        return null;
+                    }
+                }));
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            ServiceRegistration reg = context.registerService(Runnable.class.getName(), new SimpleRunnable(), ranking(random.nextInt(100)));
+                            reg.unregister();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The registry keeps the highest ranked service last
+        ServiceManagerPlugin serviceManager = getFrameworkState().getServiceManagerPlugin();
+        List<ServiceState> registered = serviceManager.getRegisteredServices(Runnable.class.getName());
+        assertEquals(SERVICES, registered.size());
+        for (int i = 1; i < registered.size(); i++) {
+            ServiceState prev = registered.get(i - 1);
+            ServiceState next = registered.get(i);
+            assertTrue("Ordered: " + prev + ", " + next, ServiceReferenceComparator.getInstance().compare(prev, next) < 0);
+        }
+        ServiceReference sref = context.getServiceReference(Runnable.class.getName());
+        assertEquals(registered.get(SERVICES - 1), ServiceState.assertServiceState(sref));
+
+        for (ServiceRegistration reg : regs) {
+            reg.unregister();
+        }
+    }
+
+    @Test
+    public void testUnindexedValues() throws Exception {
+        BundleContext context = getSystemContext();
+        String filter = "(" + Constants.SERVICE_PID + "=1)";
+
+        // A value that is not a string is part of every lookup for its key
+        ServiceRegistration unindexed = context.registerService(Runnable.class.getName(), new SimpleRunnable(), pid(Integer.valueOf(1)));
+        try {
+            assertEquals(1, context.getServiceReferences(Runnable.class.getName(), filter).length);
+            ServiceRegistration indexed = context.registerService(Runnable.class.getName(), new SimpleRunnable(), pid("1"));
+            try {
+                assertEquals(2, context.getServiceReferences(Runnable.class.getName(), filter).length);
+            } finally {
+                indexed.unregister();
+            }
+            assertEquals(1, context.getServiceReferences(Runnable.class.getName(), filter).length);
+        } finally {
+            unindexed.unregister();
+        }
+        assertNull(context.getServiceReferences(Runnable.class.getName(), filter));
+    }
+
+    private static Hashtable<String, Object> pid(Object value) {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put(Constants.SERVICE_PID, value);
+        return props;
+    }
+
+    private static Hashtable<String, Object> ranking(int ranking) {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put(Constants.SERVICE_RANKING, Integer.valueOf(ranking));
+        return props;
+    }
+
+    static class SimpleRunnable implements Runnable {
+        public void run() {
+        }
+    }
+}
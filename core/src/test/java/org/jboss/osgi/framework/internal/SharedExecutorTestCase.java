@@ -0,0 +1,102 @@
+package org.jboss.osgi.framework.internal;
+/*
+ * #%L
+ * JBossOSGi Framework
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.osgi.framework.Constants;
+import org.jboss.osgi.framework.IntegrationService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * Test the shared thread pool of the {@link DefaultExecutorServicePlugin}
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 30-Oct-2012
+ */
+public class SharedExecutorTestCase extends AbstractFrameworkTest {
+
+    private Framework framework;
+
+    @Before
+    public void before() throws Exception {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(Constants.PROPERTY_FRAMEWORK_EXECUTOR, Constants.EXECUTOR_SHARED);
+        framework = startFramework("shared-executor", props);
+    }
+
+    @After
+    public void after() throws Exception {
+        stopFramework(framework);
+    }
+
+    @Test
+    public void testSizedFromExecutors() throws Exception {
+        BundleManagerPlugin bundleManager = getFrameworkState(framework).getBundleManager();
+        DefaultExecutorServicePlugin plugin = (DefaultExecutorServicePlugin) bundleManager.getServiceContainer().getRequiredService(IntegrationService.EXECUTOR_SERVICE_PLUGIN).getValue();
+        int threads = plugin.getSharedThreads();
+        assertTrue("Shared threads: " + threads, threads > 0);
+
+        // The new executor can run all its tasks at the same time, no matter what the framework runs
+        ExecutorService executor = plugin.createExecutorService("Test Thread", 3);
+        assertEquals(threads + 3, plugin.getSharedThreads());
+        assertTrue(plugin.getQueueSizes().containsKey("Test Thread"));
+        final CountDownLatch started = new CountDownLatch(3);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        try {
+            assertTrue("All tasks started", started.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+
+        // A shut down executor is no longer reported and gives back its threads
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse(plugin.getQueueSizes().containsKey("Test Thread"));
+        assertFalse(plugin.getUtilization().containsKey("Test Thread"));
+        assertEquals(threads, plugin.getSharedThreads());
+    }
+}